@@ -25,11 +25,13 @@ import uk.ac.ebi.chembl.services.DictionaryAnalyzer;
 import uk.ac.ebi.chembl.services.EnsemblService;
 import uk.ac.ebi.chembl.services.IdgAnnotationWriter;
 import uk.ac.ebi.chembl.services.IdgTargetLoader;
+import uk.ac.ebi.chembl.services.PatentXmlMigrator;
 import uk.ac.ebi.chembl.storage.*;
 
 import javax.mail.internet.AddressException;
 import javax.mail.internet.InternetAddress;
 import java.io.IOException;
+import java.sql.SQLException;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -50,13 +52,20 @@ public class AnnotatorApp {
     DBI patentAnnotHandle(@Value("${patentannot.url}") String url,
                           @Value("${patentannot.user}") String user,
                           @Value("${patentannot.password}") String password,
-                          @Value("${clear-db:#{false}}") boolean clearDb) {
+                          @Value("${clear-db:#{false}}") boolean clearDb,
+                          @Value("${pipeline.persistence.load-data:false}") boolean loadData) {
         PoolProperties props = new PoolProperties();
         props.setDriverClassName(com.mysql.jdbc.Driver.class.getName());
         props.setUrl(url);
         props.setUsername(user);
         props.setPassword(password);
 
+        // Send the JDBC batches (of annotations and dictionary entities) as
+        // multi-row INSERTs, rather than one statement per row. LOAD DATA
+        // LOCAL INFILE is only allowed if the annotations are saved with it
+        props.setConnectionProperties("rewriteBatchedStatements=true" +
+                (loadData ? ";allowLoadLocalInfile=true" : ""));
+
         org.apache.tomcat.jdbc.pool.DataSource dataSource = new org.apache.tomcat.jdbc.pool.DataSource();
         dataSource.setPoolProperties(props);
 
@@ -193,8 +202,11 @@ public class AnnotatorApp {
 
 
     @Bean
-    AnnotationRepository annotationRepository(@Qualifier("patentAnnotHandle") DBI patentAnnotHandle) {
-        return patentAnnotHandle.onDemand(AnnotationRepository.class);
+    AnnotationRepository annotationRepository(@Qualifier("patentAnnotHandle") DBI patentAnnotHandle,
+                                              @Value("${pipeline.persistence.load-data:false}") boolean loadData) {
+        AnnotationRepository repository = patentAnnotHandle.onDemand(AnnotationRepository.class);
+        repository.setLoadData(loadData);
+        return repository;
     }
 
 
@@ -263,12 +275,18 @@ public class AnnotatorApp {
     @Autowired
     private IdgAnnotationWriter idgAnnotationWriter;
 
+    @Autowired
+    private PatentXmlMigrator patentXmlMigrator;
+
     @Value("${email.to:#{null}}")
     private String emailTo;
 
     @Value("${skip.output:#{false}}")
     private boolean skipOutput;
 
+    @Value("${migrate-xml:#{false}}")
+    private boolean migrateXml;
+
 
     /**
      * Prepares the system for the annotation process by:
@@ -326,6 +344,28 @@ public class AnnotatorApp {
     }
 
 
+    /**
+     * Migrates the patents' XML into segments, if --migrate-xml=true
+     *
+     * Returns whether the migration was requested, in which case the
+     * application does nothing else.
+     */
+    public boolean migrateXmlIfRequested() {
+        if (!migrateXml) {
+            return false;
+        }
+
+        try {
+            patentXmlMigrator.migrate();
+        } catch (Exception ex) {
+            logger.error("An error occurred while migrating the patents' XML", ex);
+            System.exit(1);
+        }
+
+        return true;
+    }
+
+
     /**
      * Clears the database, if --clear-db=true
      */
@@ -376,7 +416,7 @@ public class AnnotatorApp {
                         "what's in the database. Aborting...");
                 System.exit(1);
             }
-        } catch (IOException ex) {
+        } catch (IOException | SQLException ex) {
             logger.error("An error occurred while analyzing the dictionaries", ex);
             System.exit(1);
         }
@@ -386,13 +426,14 @@ public class AnnotatorApp {
     /**
      * Updates the Ensembl Peptide id to UniProt accession mapping, if necessary
      *
-     * This is only applicable to the Tagger annotator.
+     * This is only applicable to the annotators that use the Tagger
+     * dictionaries: Tagger and the Aho-Corasick annotator.
      */
     private void updateEnsemblMapping() {
         try {
-            if (annotator.getName().equals("tagger")) {
+            if (annotator.getName().equals("tagger") || annotator.getName().equals("aho-corasick")) {
                 Dictionary dictionary = dictionaryRepository.get(annotator);
-                Set<String> ensemblPeptides = dictionary.getEntities().get("HUMAN_GENE").keySet()
+                Set<String> ensemblPeptides = dictionary.getNames("HUMAN_GENE")
                         .stream()
                         .filter(name -> name.startsWith("ENSP"))
                         .collect(Collectors.toSet());
@@ -429,6 +470,11 @@ public class AnnotatorApp {
         ApplicationContext ctx = app.run(args);
 
         AnnotatorApp annotatorApp = ctx.getBean(AnnotatorApp.class);
+        if (annotatorApp.migrateXmlIfRequested()) {
+            logger.warn("The migration finished successfully. Terminating...");
+            return;
+        }
+
         annotatorApp.prepare();
         annotatorApp.annotate();
         annotatorApp.writeOutput();
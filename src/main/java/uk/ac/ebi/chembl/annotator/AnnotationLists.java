@@ -0,0 +1,49 @@
+package uk.ac.ebi.chembl.annotator;
+
+
+import uk.ac.ebi.chembl.model.Annotation;
+
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * A sink that makes an Annotation of each annotation it receives, grouped by
+ * text. For the annotators that implement annotateAll() on top of
+ * annotateInto().
+ */
+public class AnnotationLists implements AnnotationSink {
+
+    private final List<String> texts;
+
+    private final List<List<Annotation>> annotations;
+
+
+    public AnnotationLists(List<String> texts) {
+        this.texts = texts;
+        this.annotations = new ArrayList<>(texts.size());
+        for (int i = 0; i < texts.size(); i++) {
+            annotations.add(new ArrayList<>());
+        }
+    }
+
+
+    @Override
+    public void add(int text, String type, String name, String term, int start, int end) {
+        annotations.get(text).add(new Annotation(type, name, term, start, end));
+    }
+
+
+    @Override
+    public void addSpan(int text, String type, String name, int start, int end) {
+        add(text, type, name, texts.get(text).substring(start, end), start, end);
+    }
+
+
+    /**
+     * The annotations of each text, in the same order as the texts
+     */
+    public List<List<Annotation>> getAnnotations() {
+        return annotations;
+    }
+}
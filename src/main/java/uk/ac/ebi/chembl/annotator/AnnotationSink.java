@@ -0,0 +1,21 @@
+package uk.ac.ebi.chembl.annotator;
+
+
+/**
+ * Receives the annotations found by an annotator, one at a time, so that no
+ * object has to be made for each one
+ */
+public interface AnnotationSink {
+
+    /**
+     * An annotation of the text at the given index
+     */
+    void add(int text, String type, String name, String term, int start, int end);
+
+
+    /**
+     * An annotation of the text at the given index, whose term is the text
+     * between start and end
+     */
+    void addSpan(int text, String type, String name, int start, int end);
+}
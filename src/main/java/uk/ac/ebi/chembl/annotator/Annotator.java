@@ -3,6 +3,7 @@ package uk.ac.ebi.chembl.annotator;
 
 import uk.ac.ebi.chembl.model.Annotation;
 
+import java.util.ArrayList;
 import java.util.List;
 
 
@@ -17,6 +18,40 @@ public interface Annotator {
     List<Annotation> annotate(String text);
 
 
+    /**
+     * Returns the annotations found in each of the given texts, in the same
+     * order
+     *
+     * Annotators with a high per-call overhead (e.g., native ones) should
+     * override this to process the whole batch at once.
+     */
+    default List<List<Annotation>> annotateAll(List<String> texts) {
+        List<List<Annotation>> annotations = new ArrayList<>(texts.size());
+        for (String text : texts) {
+            annotations.add(annotate(text));
+        }
+        return annotations;
+    }
+
+
+    /**
+     * Passes the annotations found in each of the given texts to the sink,
+     * along with the index of their text
+     *
+     * Annotators should override this to pass their matches straight to the
+     * sink, rather than making an Annotation for each one.
+     */
+    default void annotateInto(List<String> texts, AnnotationSink sink) {
+        List<List<Annotation>> annotations = annotateAll(texts);
+        for (int text = 0; text < annotations.size(); text++) {
+            for (Annotation annotation : annotations.get(text)) {
+                sink.add(text, annotation.getType(), annotation.getName(), annotation.getTerm(),
+                        annotation.getStart(), annotation.getEnd());
+            }
+        }
+    }
+
+
     /**
      * Shuts down the annotator
      */
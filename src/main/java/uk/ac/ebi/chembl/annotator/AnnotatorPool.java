@@ -0,0 +1,276 @@
+package uk.ac.ebi.chembl.annotator;
+
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import uk.ac.ebi.chembl.model.AnnotatorMetadata;
+import uk.ac.ebi.chembl.storage.DictionaryRepository;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.text.NumberFormat;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+
+/**
+ * A bounded pool of patent annotators
+ *
+ * Annotators may be heavy (e.g., each Tagger annotator may hold its own copy
+ * of the dictionaries), so their number is set apart from the number of
+ * threads that use them (annotator.pool.size). A thread borrows an annotator
+ * only while annotating a patent, and waits for one to be returned if all of
+ * them are busy.
+ *
+ * The annotators are made lazily, up to the size of the pool, unless the pool
+ * is warmed up first. An annotator that failed is checked before it's reused:
+ * if it can't annotate a probe text anymore, it's shut down and replaced by a
+ * new one. All annotators are shut down, freeing their native resources, when
+ * the pool is shut down.
+ */
+@Component
+public class AnnotatorPool {
+
+    /** Text annotated to check that an annotator works */
+    private static final String PROBE_TEXT = "Treatment of cancer with aspirin and inhibitors of the EGFR kinase.";
+
+    /** How often a waiting thread checks if it can make a new annotator, in ms */
+    private static final long POLL_INTERVAL = 100;
+
+    private Logger logger = LoggerFactory.getLogger(getClass());
+
+    @Autowired
+    private Supplier<Annotator> annotatorMaker;
+
+    @Autowired
+    private DictionaryRepository dictionaryRepository;
+
+    @Autowired
+    private AnnotatorMetadata annotatorMetadata;
+
+    @Value("${annotator.pool.size:${annotator.threads}}")
+    private int size;
+
+    /** Annotators that are not borrowed */
+    private BlockingQueue<PatentAnnotator> idle;
+
+    /** Number of annotators alive, either idle or borrowed */
+    private final AtomicInteger alive = new AtomicInteger();
+
+    /** Time spent by the threads waiting for an annotator */
+    private final LongAdder waitNanos = new LongAdder();
+
+    private volatile boolean closed = false;
+
+    private NumberFormat nf = NumberFormat.getInstance();
+
+
+    @PostConstruct
+    private void init() {
+        if (size < 1) {
+            throw new IllegalArgumentException("The annotator pool needs at least one annotator, but " +
+                    "annotator.pool.size is " + size);
+        }
+
+        idle = new ArrayBlockingQueue<>(size);
+    }
+
+
+    /**
+     * Number of annotators in the pool, at most
+     */
+    public int getSize() {
+        return size;
+    }
+
+
+    /**
+     * Makes and checks all the annotators of the pool in parallel, so that
+     * they are ready when the first patents arrive
+     */
+    public void warmUp() throws InterruptedException {
+        int missing = size - alive.get();
+        if (missing <= 0) {
+            return;
+        }
+
+        logger.info("Warming up {} annotators...", missing);
+        long start = System.currentTimeMillis();
+
+        ExecutorService executor = Executors.newFixedThreadPool(missing);
+        try {
+            List<Future<?>> made = new ArrayList<>();
+            for (int i = 0; i < missing; i++) {
+                made.add(executor.submit(() -> {
+                    if (reserve()) {
+                        PatentAnnotator annotator = make();
+                        if (!isHealthy(annotator)) {
+                            discard(annotator);
+                            throw new IllegalStateException("A new annotator failed to annotate the probe text");
+                        }
+                        idle.add(annotator);
+                    }
+                    return null;
+                }));
+            }
+
+            for (Future<?> future : made) {
+                try {
+                    future.get();
+                } catch (ExecutionException ex) {
+                    throw new IllegalStateException("Unable to warm up the annotators", ex.getCause());
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        logger.info("{} annotators ready in {} ms", alive.get(), nf.format(System.currentTimeMillis() - start));
+    }
+
+
+    /**
+     * Takes an annotator from the pool, making a new one if there is room for
+     * it, or waiting for one to be returned otherwise
+     */
+    public PatentAnnotator borrow() throws InterruptedException {
+        PatentAnnotator annotator = idle.poll();
+        if (annotator != null) {
+            return annotator;
+        }
+
+        long start = System.nanoTime();
+        try {
+            while (true) {
+                if (closed) {
+                    throw new IllegalStateException("The annotator pool has been shut down");
+                }
+
+                if (reserve()) {
+                    return make();
+                }
+
+                // Wake up from time to time, in case a broken annotator was
+                // discarded and there is room for a new one
+                annotator = idle.poll(POLL_INTERVAL, TimeUnit.MILLISECONDS);
+                if (annotator != null) {
+                    return annotator;
+                }
+            }
+        } finally {
+            waitNanos.add(System.nanoTime() - start);
+        }
+    }
+
+
+    /**
+     * Returns an annotator to the pool
+     *
+     * If the annotator failed while it was borrowed, it's checked first, and
+     * it's discarded if it doesn't work anymore.
+     */
+    public void release(PatentAnnotator annotator, boolean failed) {
+        if (failed && !isHealthy(annotator)) {
+            logger.warn("An annotator stopped working after a failure. It will be replaced by a new one");
+            discard(annotator);
+            return;
+        }
+
+        idle.add(annotator);
+
+        // The pool may have been shut down while the annotator was borrowed
+        if (closed && idle.remove(annotator)) {
+            discard(annotator);
+        }
+    }
+
+
+    /**
+     * Shuts down the idle annotators, and those still borrowed as soon as
+     * they are returned
+     */
+    @PreDestroy
+    public synchronized void shutdown() {
+        if (closed) {
+            return;
+        }
+
+        closed = true;
+
+        PatentAnnotator annotator;
+        while ((annotator = idle.poll()) != null) {
+            discard(annotator);
+        }
+
+        logger.info("Annotator pool shut down. Threads waited {} ms for an annotator",
+                nf.format(TimeUnit.NANOSECONDS.toMillis(waitNanos.sum())));
+    }
+
+
+    /**
+     * Reserves room for a new annotator, if the pool isn't full
+     */
+    private boolean reserve() {
+        int current;
+        do {
+            current = alive.get();
+            if (current >= size) {
+                return false;
+            }
+        } while (!alive.compareAndSet(current, current + 1));
+
+        return true;
+    }
+
+
+    /**
+     * Makes a new annotator in the room reserved for it
+     */
+    private PatentAnnotator make() {
+        try {
+            logger.debug("Making annotator #{}", alive.get());
+            // The annotators resolve the ids of the entities they find, so the
+            // dictionary must be in the database by now
+            return new PatentAnnotator(annotatorMaker.get(),
+                    dictionaryRepository.get(annotatorMetadata));
+        } catch (RuntimeException | Error ex) {
+            alive.decrementAndGet();
+            throw ex;
+        }
+    }
+
+
+    /**
+     * Shuts down an annotator and makes room for a new one
+     */
+    private void discard(PatentAnnotator annotator) {
+        try {
+            annotator.shutdown();
+        } catch (Exception ex) {
+            logger.warn("Unable to shut down an annotator", ex);
+        } finally {
+            alive.decrementAndGet();
+        }
+    }
+
+
+    /**
+     * Checks that an annotator is still able to annotate
+     */
+    private boolean isHealthy(PatentAnnotator annotator) {
+        try {
+            annotator.check(PROBE_TEXT);
+            return true;
+        } catch (Exception ex) {
+            logger.debug("The annotator failed to annotate the probe text", ex);
+            return false;
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package uk.ac.ebi.chembl.annotator;
+
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.stream.Stream;
+
+
+/**
+ * A content hash of a dictionary: the SHA-256 of the type and name of each
+ * of its entries, in the order they are read, followed by the contents of
+ * the files the annotator finds the entries by (e.g., Tagger's names.tsv and
+ * global.tsv), so that changing the names of an entity changes it too
+ *
+ * It's computed in a single pass over the entries, without keeping them, and
+ * stored with the annotator when its dictionary is persisted, so that a
+ * dictionary can be checked against the database without comparing it entry
+ * by entry.
+ */
+public class DictionaryFingerprint {
+
+    private DictionaryFingerprint() {
+    }
+
+
+    /**
+     * Returns the fingerprint of the entries and name files of a dictionary,
+     * as 64 hex digits
+     */
+    public static String of(DictionaryReader reader) throws IOException {
+        try (Stream<DictionaryEntry> entries = reader.read()) {
+            return of(entries, reader.nameFiles());
+        }
+    }
+
+
+    /**
+     * Returns the fingerprint of the given entries and name files, as 64 hex
+     * digits
+     */
+    public static String of(Stream<DictionaryEntry> entries, List<Path> nameFiles) throws IOException {
+        MessageDigest digest = newDigest();
+
+        entries.forEachOrdered(entry -> {
+            // Neither can contain a tab or a line break, so these delimit them
+            digest.update(entry.getType().getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) '\t');
+            digest.update(entry.getName().getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) '\n');
+        });
+
+        // Each file is preceded by its size, so that where one ends is
+        // never ambiguous
+        byte[] buffer = new byte[1 << 16];
+        for (Path file : nameFiles) {
+            digest.update(ByteBuffer.allocate(Long.BYTES).putLong(Files.size(file)).array());
+            try (InputStream in = Files.newInputStream(file)) {
+                int n;
+                while ((n = in.read(buffer)) > 0) {
+                    digest.update(buffer, 0, n);
+                }
+            }
+        }
+
+        StringBuilder hex = new StringBuilder(64);
+        for (byte b : digest.digest()) {
+            hex.append(Character.forDigit(b >> 4 & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+
+        return hex.toString();
+    }
+
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            // Every Java platform is required to support SHA-256
+            throw new IllegalStateException(ex);
+        }
+    }
+}
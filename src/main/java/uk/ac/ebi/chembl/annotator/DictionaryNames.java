@@ -0,0 +1,197 @@
+package uk.ac.ebi.chembl.annotator;
+
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import uk.ac.ebi.chembl.model.AnnotatorMetadata;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.file.Paths;
+import java.text.NumberFormat;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Optional;
+import java.util.Set;
+
+
+/**
+ * The names of the entities of a dictionary, as they were when the dictionary
+ * was last persisted, so that the names added since (to new entities or to
+ * existing ones) can be found when the dictionary is upgraded
+ *
+ * Only a 64-bit hash of each (type, entity, name) is kept, sorted, in a
+ * DictionarySnapshot. Unlike the other snapshots, it isn't tied to the
+ * dictionary files, which are the ones that change, but to the fingerprint
+ * of the dictionary it was taken from. The caller checks it against the one
+ * stored in the database before using it.
+ */
+public class DictionaryNames {
+
+    /** Version of the contents of the snapshot */
+    private static final int SNAPSHOT_VERSION = 1;
+
+    private static final Logger logger = LoggerFactory.getLogger(DictionaryNames.class);
+
+    /** Fingerprint of the dictionary the names were taken from */
+    private final String fingerprint;
+
+    /** Sorted hashes of the names, straight from the mapped snapshot */
+    private final LongBuffer hashes;
+
+
+    private DictionaryNames(String fingerprint, LongBuffer hashes) {
+        this.fingerprint = fingerprint;
+        this.hashes = hashes;
+    }
+
+
+    /**
+     * Reads the names kept for the annotator, if there are any
+     */
+    public static Optional<DictionaryNames> read(String snapshotHome, AnnotatorMetadata annotator) throws IOException {
+        if (snapshotHome == null || snapshotHome.trim().isEmpty()) {
+            return Optional.empty();
+        }
+
+        Optional<ByteBuffer> contents = snapshot(snapshotHome, annotator).open();
+        if (!contents.isPresent()) {
+            return Optional.empty();
+        }
+
+        try {
+            ByteBuffer buffer = contents.get();
+            String fingerprint = DictionarySnapshot.readString(buffer);
+            int size = buffer.getInt();
+
+            LongBuffer hashes = buffer.slice().asLongBuffer();
+            if (hashes.remaining() < size) {
+                throw new BufferUnderflowException();
+            }
+            hashes.limit(size);
+
+            return Optional.of(new DictionaryNames(fingerprint, hashes));
+        } catch (BufferUnderflowException | IllegalArgumentException | NegativeArraySizeException ex) {
+            logger.warn("The dictionary names of {} are corrupt. Ignoring them...", annotator, ex);
+            return Optional.empty();
+        }
+    }
+
+
+    /**
+     * Keeps the names the reader reports, as the names of the dictionary with
+     * the given fingerprint. Does nothing if there is no snapshot directory.
+     */
+    public static void write(String snapshotHome, AnnotatorMetadata annotator, String fingerprint,
+                             DictionaryReader reader) throws IOException {
+        if (snapshotHome == null || snapshotHome.trim().isEmpty()) {
+            return;
+        }
+
+        HashCollector collector = new HashCollector();
+        reader.forEachName(collector);
+        long[] sorted = collector.sorted();
+
+        snapshot(snapshotHome, annotator).write(out -> {
+            DictionarySnapshot.writeString(out, fingerprint);
+            out.writeInt(sorted.length);
+            for (long hash : sorted) {
+                out.writeLong(hash);
+            }
+        });
+
+        logger.info("Kept the {} names of the dictionary of {}", NumberFormat.getInstance().format(sorted.length),
+                annotator);
+    }
+
+
+    public String getFingerprint() {
+        return fingerprint;
+    }
+
+
+    /**
+     * Returns the names the reader reports that weren't there, for the same
+     * entity, when the names were kept
+     */
+    public Set<String> addedNames(DictionaryReader reader) throws IOException {
+        Set<String> added = new HashSet<>();
+        reader.forEachName((entry, name) -> {
+            if (!contains(hash(entry, name))) {
+                added.add(name);
+            }
+        });
+
+        return added;
+    }
+
+
+    private boolean contains(long hash) {
+        int low = 0;
+        int high = hashes.limit() - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            long value = hashes.get(middle);
+            if (value < hash) {
+                low = middle + 1;
+            } else if (value > hash) {
+                high = middle - 1;
+            } else {
+                return true;
+            }
+        }
+        return false;
+    }
+
+
+    /**
+     * 64-bit FNV-1a of the type, the entity and the name, which makes
+     * collisions very unlikely even with tens of millions of names
+     */
+    private static long hash(DictionaryEntry entry, String name) {
+        long hash = 0xcbf29ce484222325L;
+        for (String part : new String[]{entry.getType(), entry.getName(), name}) {
+            for (int i = 0; i < part.length(); i++) {
+                hash = (hash ^ part.charAt(i)) * 0x100000001b3L;
+            }
+            hash = (hash ^ '\t') * 0x100000001b3L;
+        }
+        return hash;
+    }
+
+
+    /**
+     * Collects the hashes of the names, without keeping the names
+     */
+    private static class HashCollector implements DictionaryReader.NameConsumer {
+
+        private long[] hashes = new long[1 << 16];
+
+        private int size = 0;
+
+
+        @Override
+        public void accept(DictionaryEntry entry, String name) {
+            if (size == hashes.length) {
+                hashes = Arrays.copyOf(hashes, 2 * size);
+            }
+            hashes[size++] = hash(entry, name);
+        }
+
+
+        long[] sorted() {
+            long[] sorted = Arrays.copyOf(hashes, size);
+            Arrays.sort(sorted);
+            return sorted;
+        }
+    }
+
+
+    private static DictionarySnapshot snapshot(String snapshotHome, AnnotatorMetadata annotator) {
+        return new DictionarySnapshot(Paths.get(snapshotHome, "dictionary-names-" + annotator.getId() + ".snapshot"),
+                SNAPSHOT_VERSION, Collections.emptyList());
+    }
+}
@@ -2,6 +2,9 @@ package uk.ac.ebi.chembl.annotator;
 
 
 import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.List;
 import java.util.stream.Stream;
 
 
@@ -14,4 +17,37 @@ public interface DictionaryReader {
      * Reads the annotator's dictionary files, entry by entry
      */
     Stream<DictionaryEntry> read() throws IOException;
+
+
+    /**
+     * Reads the names the annotator finds each entity by, in the text. An
+     * entity may have several names (e.g., its synonyms).
+     *
+     * By default, an entity is found by its own name.
+     */
+    default void forEachName(NameConsumer consumer) throws IOException {
+        try (Stream<DictionaryEntry> entries = read()) {
+            entries.forEach(entry -> consumer.accept(entry, entry.getName()));
+        }
+    }
+
+
+    /**
+     * The files, besides the entries, that decide which names the annotator
+     * finds the entities by. They are part of the fingerprint of the
+     * dictionary.
+     *
+     * By default, there are none.
+     */
+    default List<Path> nameFiles() {
+        return Collections.emptyList();
+    }
+
+
+    /**
+     * Receives the names of the entities of a dictionary
+     */
+    interface NameConsumer {
+        void accept(DictionaryEntry entry, String name);
+    }
 }
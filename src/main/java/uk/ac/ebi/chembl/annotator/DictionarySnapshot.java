@@ -0,0 +1,262 @@
+package uk.ac.ebi.chembl.annotator;
+
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.Optional;
+
+
+/**
+ * A compiled, binary copy of a dictionary, so that the dictionary files don't
+ * have to be parsed again on every start
+ *
+ * The snapshot starts with a header that identifies the source files it was
+ * compiled from (by their path, size and modification time) and the version
+ * of its contents. It's only used while both match: if the dictionary files
+ * change, or the code that compiles them does, the snapshot is compiled and
+ * written again.
+ *
+ * The snapshot is memory-mapped, and its contents are read straight from the
+ * mapping. Numbers are big-endian, as written by DataOutputStream.
+ */
+public class DictionarySnapshot {
+
+    /** "DICT" */
+    private static final int MAGIC = 0x44494354;
+
+    /** Version of the layout of the header */
+    private static final int FORMAT_VERSION = 1;
+
+    private static final Logger logger = LoggerFactory.getLogger(DictionarySnapshot.class);
+
+    /** The snapshot file */
+    private final Path path;
+
+    /** Version of the contents, as written by their writer */
+    private final int version;
+
+    /** Files the snapshot is compiled from */
+    private final List<Path> sources;
+
+
+    public DictionarySnapshot(Path path, int version, List<Path> sources) {
+        this.path = path;
+        this.version = version;
+        this.sources = sources;
+    }
+
+
+    /**
+     * Reads the dictionary from its snapshot in the given directory, if it's
+     * up to date. Otherwise, compiles the dictionary and writes its snapshot
+     * for the next time.
+     *
+     * If the directory is empty or null, the dictionary is always compiled.
+     */
+    public static <T> T loadOrCompile(String snapshotHome, String name, int version, List<Path> sources,
+                                      Compiler<T> compiler, Reader<T> reader, Writer<T> writer) throws IOException {
+        if (snapshotHome == null || snapshotHome.trim().isEmpty()) {
+            return compiler.compile();
+        }
+
+        DictionarySnapshot snapshot = new DictionarySnapshot(Paths.get(snapshotHome, name), version, sources);
+
+        Optional<ByteBuffer> contents = snapshot.open();
+        if (contents.isPresent()) {
+            try {
+                long start = System.currentTimeMillis();
+                T dictionary = reader.read(contents.get());
+                logger.info("Read the dictionary snapshot {} in {} ms", snapshot.path,
+                        System.currentTimeMillis() - start);
+                return dictionary;
+            } catch (BufferUnderflowException | IllegalArgumentException | NegativeArraySizeException ex) {
+                logger.warn("The dictionary snapshot {} is corrupt. Compiling the dictionary again...",
+                        snapshot.path, ex);
+            }
+        }
+
+        T dictionary = compiler.compile();
+
+        try {
+            snapshot.write(out -> writer.write(dictionary, out));
+        } catch (IOException ex) {
+            // Not fatal: the dictionary will just be compiled again next time
+            logger.warn("Unable to write the dictionary snapshot {}", snapshot.path, ex);
+        }
+
+        return dictionary;
+    }
+
+
+    /**
+     * Maps the snapshot and returns its contents, if it's up to date with its
+     * source files
+     */
+    public Optional<ByteBuffer> open() throws IOException {
+        if (!Files.exists(path)) {
+            logger.debug("There is no dictionary snapshot {}", path);
+            return Optional.empty();
+        }
+
+        ByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(path)) {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+
+        try {
+            if (buffer.getInt() != MAGIC || buffer.getInt() != FORMAT_VERSION || buffer.getInt() != version) {
+                logger.info("The dictionary snapshot {} was written by another version. Ignoring it...", path);
+                return Optional.empty();
+            }
+
+            int nSources = buffer.getInt();
+            if (nSources != sources.size()) {
+                logger.info("The dictionary snapshot {} was compiled from other files. Ignoring it...", path);
+                return Optional.empty();
+            }
+
+            for (Path source : sources) {
+                String sourcePath = readString(buffer);
+                long size = buffer.getLong();
+                long lastModified = buffer.getLong();
+
+                if (!sourcePath.equals(source.toAbsolutePath().toString()) || size != Files.size(source)
+                        || lastModified != Files.getLastModifiedTime(source).toMillis()) {
+                    logger.info("{} changed since the dictionary snapshot {} was compiled. Ignoring it...",
+                            source, path);
+                    return Optional.empty();
+                }
+            }
+        } catch (BufferUnderflowException | IllegalArgumentException | NegativeArraySizeException ex) {
+            logger.warn("The dictionary snapshot {} is corrupt. Ignoring it...", path);
+            return Optional.empty();
+        }
+
+        return Optional.of(buffer.slice());
+    }
+
+
+    /**
+     * Writes the snapshot, replacing the previous one atomically
+     */
+    public void write(Contents contents) throws IOException {
+        Files.createDirectories(path.toAbsolutePath().getParent());
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp),
+                1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeInt(version);
+
+            out.writeInt(sources.size());
+            for (Path source : sources) {
+                writeString(out, source.toAbsolutePath().toString());
+                out.writeLong(Files.size(source));
+                out.writeLong(Files.getLastModifiedTime(source).toMillis());
+            }
+
+            contents.writeTo(out);
+        }
+
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        logger.info("Wrote the dictionary snapshot {}", path);
+    }
+
+
+    public static void writeString(DataOutputStream out, String string) throws IOException {
+        byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+
+    public static String readString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+
+    public static void writeInts(DataOutputStream out, int[] values) throws IOException {
+        out.writeInt(values.length);
+        for (int value : values) {
+            out.writeInt(value);
+        }
+    }
+
+
+    /**
+     * Reads an array written by writeInts(), in bulk
+     */
+    public static int[] readInts(ByteBuffer buffer) {
+        int[] values = new int[buffer.getInt()];
+        buffer.asIntBuffer().get(values);
+        buffer.position(buffer.position() + values.length * Integer.BYTES);
+        return values;
+    }
+
+
+    public static void writeChars(DataOutputStream out, char[] values) throws IOException {
+        out.writeInt(values.length);
+        for (char value : values) {
+            out.writeChar(value);
+        }
+    }
+
+
+    /**
+     * Reads an array written by writeChars(), in bulk
+     */
+    public static char[] readChars(ByteBuffer buffer) {
+        char[] values = new char[buffer.getInt()];
+        buffer.asCharBuffer().get(values);
+        buffer.position(buffer.position() + values.length * Character.BYTES);
+        return values;
+    }
+
+
+    /**
+     * Writes the contents of a snapshot, after its header
+     */
+    public interface Contents {
+        void writeTo(DataOutputStream out) throws IOException;
+    }
+
+
+    /**
+     * Compiles a dictionary from its source files
+     */
+    public interface Compiler<T> {
+        T compile() throws IOException;
+    }
+
+
+    /**
+     * Reads a dictionary from the contents of its snapshot
+     */
+    public interface Reader<T> {
+        T read(ByteBuffer contents);
+    }
+
+
+    /**
+     * Writes a dictionary as the contents of its snapshot
+     */
+    public interface Writer<T> {
+        void write(T dictionary, DataOutputStream out) throws IOException;
+    }
+}
@@ -2,17 +2,15 @@ package uk.ac.ebi.chembl.annotator;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import uk.ac.ebi.chembl.model.Annotation;
+import uk.ac.ebi.chembl.model.Dictionary;
 import uk.ac.ebi.chembl.model.Field;
 import uk.ac.ebi.chembl.model.PatentAnnotations;
 import uk.ac.ebi.chembl.model.PatentContent;
 
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.EnumMap;
 import java.util.List;
 import java.util.Map;
-import java.util.stream.Collectors;
-
-import static java.util.stream.Collectors.toMap;
 
 
 /**
@@ -25,9 +23,13 @@ public class PatentAnnotator {
     /** The actual text-based annotator */
     private Annotator annotator;
 
+    /** Dictionary to resolve the ids of the entities, shared by all patent annotators */
+    private Dictionary dictionary;
+
 
-    public PatentAnnotator(Annotator annotator) {
+    public PatentAnnotator(Annotator annotator, Dictionary dictionary) {
         this.annotator = annotator;
+        this.dictionary = dictionary;
     }
 
 
@@ -35,23 +37,54 @@ public class PatentAnnotator {
      * Annotates a patent and returns the annotations found
      */
     public PatentAnnotations processPatent(PatentContent patent) {
-        Map<Field, List<String>> fields = new HashMap<>();
+        Map<Field, List<String>> fields = new EnumMap<>(Field.class);
         fields.put(Field.CLAIMS, patent.getClaims());
         fields.put(Field.ABSTRACT, patent.getAbstracts());
         fields.put(Field.DESCRIPTION, patent.getDescriptions());
         fields.put(Field.TITLE, patent.getTitles());
         fields.put(Field.CITATIONS, patent.getNonPatentCitations());
 
-        Map<Field, List<List<Annotation>>> annotations = fields.entrySet()
-                .stream()
-                .collect(toMap(
-                        Map.Entry::getKey,
-                        e -> e.getValue()
-                                .stream()
-                                .map(annotator::annotate)
-                                .collect(Collectors.toList())));
+        // Annotate all the texts of the patent in a single call, keeping
+        // track of the field and rank of each one
+        List<String> texts = new ArrayList<>();
+        fields.values().forEach(texts::addAll);
+
+        Field[] textFields = new Field[texts.size()];
+        int[] textRanks = new int[texts.size()];
+        int text = 0;
+        for (Map.Entry<Field, List<String>> field : fields.entrySet()) {
+            for (int rank = 0; rank < field.getValue().size(); rank++) {
+                textFields[text] = field.getKey();
+                textRanks[text] = rank;
+                text++;
+            }
+        }
+
+        PatentAnnotations.Builder annotations = PatentAnnotations.builder(patent.getPatentNumber(),
+                dictionary);
+        annotator.annotateInto(texts, new AnnotationSink() {
+
+            @Override
+            public void add(int text, String type, String name, String term, int start, int end) {
+                annotations.add(textFields[text], textRanks[text], type, name, term, start, end);
+            }
+
+            @Override
+            public void addSpan(int text, String type, String name, int start, int end) {
+                annotations.addSpan(textFields[text], textRanks[text], type, name, texts.get(text), start, end);
+            }
+        });
 
-        return new PatentAnnotations(patent.getPatentNumber(), annotations);
+        return annotations.build();
+    }
+
+
+    /**
+     * Annotates the given text, throwing an exception if the annotator doesn't
+     * work
+     */
+    public void check(String text) {
+        annotator.annotate(text);
     }
 
 
@@ -0,0 +1,59 @@
+package uk.ac.ebi.chembl.annotator.ahocorasick;
+
+import uk.ac.ebi.chembl.annotator.AnnotationLists;
+import uk.ac.ebi.chembl.annotator.AnnotationSink;
+import uk.ac.ebi.chembl.annotator.Annotator;
+import uk.ac.ebi.chembl.model.Annotation;
+
+import java.util.Collections;
+import java.util.List;
+
+
+/**
+ * A pure-Java dictionary annotator, based on an Aho-Corasick automaton
+ *
+ * It finds the names in the Tagger dictionaries as whole words, ignoring
+ * case, and keeps the leftmost-longest match where names overlap. It doesn't
+ * do any of Tagger's disambiguation (e.g., organism detection), so its
+ * annotations are not exactly the same, but it runs on any JVM.
+ *
+ * The dictionary is immutable and shared by the annotators of all threads.
+ */
+public class AhoCorasickAnnotator implements Annotator {
+
+    private final AhoCorasickDictionary dictionary;
+
+
+    public AhoCorasickAnnotator(AhoCorasickDictionary dictionary) {
+        this.dictionary = dictionary;
+    }
+
+
+    @Override
+    public List<Annotation> annotate(String text) {
+        List<String> texts = Collections.singletonList(text);
+        AnnotationLists annotations = new AnnotationLists(texts);
+        annotateInto(texts, annotations);
+        return annotations.getAnnotations().get(0);
+    }
+
+
+    @Override
+    public void annotateInto(List<String> texts, AnnotationSink sink) {
+        for (int text = 0; text < texts.size(); text++) {
+            for (AhoCorasickAutomaton.Match match : dictionary.getAutomaton().match(texts.get(text))) {
+                // A name may belong to several entities
+                int pattern = match.getPattern();
+                for (int i = dictionary.firstEntity(pattern); i < dictionary.lastEntity(pattern); i++) {
+                    int entity = dictionary.entity(i);
+                    sink.addSpan(text, dictionary.getType(entity), dictionary.getIdentifier(entity),
+                            match.getStart(), match.getEnd());
+                }
+            }
+        }
+    }
+
+
+    @Override
+    public void shutdown() { /* Nothing to do: the dictionary is shared */ }
+}
@@ -0,0 +1,57 @@
+package uk.ac.ebi.chembl.annotator.ahocorasick;
+
+import com.google.common.base.Supplier;
+import com.google.common.base.Suppliers;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Component;
+import uk.ac.ebi.chembl.annotator.Annotator;
+import uk.ac.ebi.chembl.annotator.AnnotatorFactory;
+import uk.ac.ebi.chembl.annotator.DictionaryReader;
+import uk.ac.ebi.chembl.annotator.tagger.TaggerDictionaryReader;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+/**
+ * Initializes the pure-Java Aho-Corasick annotator, which uses the Tagger
+ * dictionaries (see tagger.dictionaries.home)
+ *
+ * The dictionary is compiled (or read from its snapshot) the first time an
+ * annotator is needed, and then shared by all of them.
+ */
+@Component
+public class AhoCorasickAnnotatorFactory implements AnnotatorFactory {
+
+    @Autowired
+    private Environment env;
+
+    private final Supplier<AhoCorasickDictionary> dictionary = Suppliers.memoize(() -> {
+        try {
+            return AhoCorasickDictionary.load(env.getProperty("tagger.dictionaries.home"),
+                    env.getProperty("dictionary.snapshot.home", "snapshots"));
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    });
+
+
+    @Override
+    public String annotatorName() {
+        return "aho-corasick";
+    }
+
+
+    @Override
+    public Annotator initAnnotator() {
+        return new AhoCorasickAnnotator(dictionary.get());
+    }
+
+
+    @Override
+    public DictionaryReader initDictionaryReader() {
+        // Same dictionary as Tagger
+        String dictionariesHome = env.getProperty("tagger.dictionaries.home");
+        return new TaggerDictionaryReader(dictionariesHome, env.getProperty("dictionary.snapshot.home", "snapshots"));
+    }
+}
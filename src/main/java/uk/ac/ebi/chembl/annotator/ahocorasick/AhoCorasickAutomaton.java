@@ -0,0 +1,385 @@
+package uk.ac.ebi.chembl.annotator.ahocorasick;
+
+
+import uk.ac.ebi.chembl.annotator.DictionarySnapshot;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+
+/**
+ * An immutable Aho-Corasick automaton that finds whole-word, case-insensitive
+ * occurrences of a set of patterns in a text
+ *
+ * The automaton is stored in a few flat arrays instead of one object per
+ * node. Nodes are numbered in breadth-first order, so the children of each
+ * node are contiguous and sorted by their label:
+ *
+ *   labels[firstChild[n] .. firstChild[n + 1])   labels of the children of node n
+ *   fail[n]                                      longest proper suffix of n that is also a node
+ *   output[n]                                    pattern ending at n, or -1
+ *   nextOutput[n]                                closest node on the fail chain with an output, or 0
+ *   depth[n]                                     length of the prefix spelled by n
+ *
+ * Since nothing changes after it's built, the automaton can be shared by any
+ * number of threads.
+ */
+public class AhoCorasickAutomaton {
+
+    private static final int ROOT = 0;
+
+    private static final int NO_OUTPUT = -1;
+
+    private final char[] labels;
+
+    private final int[] firstChild;
+
+    private final int[] fail;
+
+    private final int[] output;
+
+    private final int[] nextOutput;
+
+    private final int[] depth;
+
+    private final int patterns;
+
+
+    private AhoCorasickAutomaton(char[] labels, int[] firstChild, int[] fail, int[] output, int[] nextOutput,
+                                 int[] depth, int patterns) {
+        this.labels = labels;
+        this.firstChild = firstChild;
+        this.fail = fail;
+        this.output = output;
+        this.nextOutput = nextOutput;
+        this.depth = depth;
+        this.patterns = patterns;
+    }
+
+
+    /**
+     * Builds the automaton for the given patterns, which must already be
+     * normalized, sorted and free of duplicates. The pattern at position i
+     * is reported as pattern i.
+     */
+    public static AhoCorasickAutomaton build(List<String> patterns) {
+        Builder builder = new Builder(patterns);
+        builder.buildTrie();
+        builder.buildFailureLinks();
+        return builder.toAutomaton();
+    }
+
+
+    /**
+     * Reads an automaton written by writeTo()
+     */
+    public static AhoCorasickAutomaton readFrom(ByteBuffer buffer) {
+        int patterns = buffer.getInt();
+        char[] labels = DictionarySnapshot.readChars(buffer);
+        int[] firstChild = DictionarySnapshot.readInts(buffer);
+        int[] fail = DictionarySnapshot.readInts(buffer);
+        int[] output = DictionarySnapshot.readInts(buffer);
+        int[] nextOutput = DictionarySnapshot.readInts(buffer);
+        int[] depth = DictionarySnapshot.readInts(buffer);
+
+        int nodes = depth.length;
+        if (labels.length != nodes || firstChild.length != nodes + 1 || fail.length != nodes
+                || output.length != nodes || nextOutput.length != nodes) {
+            throw new IllegalArgumentException("Inconsistent automaton of " + nodes + " nodes");
+        }
+
+        return new AhoCorasickAutomaton(labels, firstChild, fail, output, nextOutput, depth, patterns);
+    }
+
+
+    /**
+     * Writes the arrays of the automaton, so that it can be read back
+     * without building it again
+     */
+    public void writeTo(DataOutputStream out) throws IOException {
+        out.writeInt(patterns);
+        DictionarySnapshot.writeChars(out, labels);
+        DictionarySnapshot.writeInts(out, firstChild);
+        DictionarySnapshot.writeInts(out, fail);
+        DictionarySnapshot.writeInts(out, output);
+        DictionarySnapshot.writeInts(out, nextOutput);
+        DictionarySnapshot.writeInts(out, depth);
+    }
+
+
+    /**
+     * Normalizes a character of a pattern or a text. It must not change the
+     * length of the text, so that offsets stay valid.
+     */
+    public static char normalize(char ch) {
+        return Character.toLowerCase(ch);
+    }
+
+
+    /**
+     * Number of patterns
+     */
+    public int size() {
+        return patterns;
+    }
+
+
+    /**
+     * Number of nodes
+     */
+    public int nodes() {
+        return depth.length;
+    }
+
+
+    /**
+     * Finds the occurrences of the patterns in the text that are whole words.
+     * Overlapping occurrences are resolved by keeping the leftmost one, and
+     * then the longest one.
+     */
+    public List<Match> match(String text) {
+        List<Match> candidates = new ArrayList<>();
+
+        int state = ROOT;
+        for (int i = 0; i < text.length(); i++) {
+            char ch = normalize(text.charAt(i));
+
+            int next;
+            while ((next = child(state, ch)) < 0 && state != ROOT) {
+                state = fail[state];
+            }
+            state = next < 0 ? ROOT : next;
+
+            // Every node on the output chain is a pattern ending here
+            int node = output[state] != NO_OUTPUT ? state : nextOutput[state];
+            while (node != ROOT) {
+                int end = i + 1;
+                int start = end - depth[node];
+                if (isWordBoundary(text, start) && isWordBoundary(text, end)) {
+                    candidates.add(new Match(output[node], start, end));
+                }
+                node = nextOutput[node];
+            }
+        }
+
+        return removeOverlaps(candidates);
+    }
+
+
+    /**
+     * Returns the child of a node with the given label, or -1
+     */
+    private int child(int node, char label) {
+        int from = firstChild[node];
+        int to = firstChild[node + 1];
+        if (from == to) {
+            return -1;
+        }
+
+        int index = Arrays.binarySearch(labels, from, to, label);
+        return index < 0 ? -1 : index;
+    }
+
+
+    private static boolean isWordBoundary(String text, int index) {
+        return index == 0 || index == text.length() ||
+                !Character.isLetterOrDigit(text.charAt(index - 1)) ||
+                !Character.isLetterOrDigit(text.charAt(index));
+    }
+
+
+    private static List<Match> removeOverlaps(List<Match> candidates) {
+        if (candidates.size() < 2) {
+            return candidates;
+        }
+
+        candidates.sort(Comparator.comparingInt(Match::getStart)
+                .thenComparing(Comparator.comparingInt(Match::getEnd).reversed()));
+
+        List<Match> matches = new ArrayList<>();
+        int lastEnd = 0;
+        for (Match candidate : candidates) {
+            if (candidate.getStart() >= lastEnd) {
+                matches.add(candidate);
+                lastEnd = candidate.getEnd();
+            }
+        }
+
+        return matches;
+    }
+
+
+    /**
+     * An occurrence of a pattern in a text
+     */
+    public static class Match {
+
+        private final int pattern;
+
+        private final int start;
+
+        private final int end;
+
+
+        Match(int pattern, int start, int end) {
+            this.pattern = pattern;
+            this.start = start;
+            this.end = end;
+        }
+
+
+        public int getPattern() {
+            return pattern;
+        }
+
+
+        public int getStart() {
+            return start;
+        }
+
+
+        /** Exclusive */
+        public int getEnd() {
+            return end;
+        }
+    }
+
+
+    /**
+     * Builds the arrays of the automaton
+     *
+     * The trie is built one level at a time. Since the patterns are sorted,
+     * the patterns under each node form a contiguous range, and the children
+     * of each node are found, in order, by scanning its range.
+     */
+    private static class Builder {
+
+        private final List<String> patterns;
+
+        private int nodes = 0;
+
+        private char[] labels = new char[1024];
+
+        private int[] firstChild = new int[1024];
+
+        private int[] parent = new int[1024];
+
+        private int[] depth = new int[1024];
+
+        private int[] output = new int[1024];
+
+        /** Range of patterns under each node, only needed while building */
+        private int[] from = new int[1024];
+
+        private int[] to = new int[1024];
+
+        private int[] fail;
+
+        private int[] nextOutput;
+
+
+        Builder(List<String> patterns) {
+            this.patterns = patterns;
+        }
+
+
+        void buildTrie() {
+            addNode('\0', ROOT, 0, 0, patterns.size());
+
+            // Nodes are visited in the order they're created, i.e.,
+            // breadth-first, so the children of each node end up together
+            for (int node = 0; node < nodes; node++) {
+                firstChild[node] = nodes;
+
+                int d = depth[node];
+                int i = from[node];
+                int end = to[node];
+
+                // Sorting puts the pattern that ends here first
+                if (i < end && patterns.get(i).length() == d) {
+                    output[node] = i++;
+                }
+
+                while (i < end) {
+                    char label = patterns.get(i).charAt(d);
+                    int j = i + 1;
+                    while (j < end && patterns.get(j).charAt(d) == label) {
+                        j++;
+                    }
+
+                    addNode(label, node, d + 1, i, j);
+                    i = j;
+                }
+            }
+
+            firstChild = Arrays.copyOf(firstChild, nodes + 1);
+            firstChild[nodes] = nodes;
+            from = null;
+            to = null;
+        }
+
+
+        void buildFailureLinks() {
+            fail = new int[nodes];
+            nextOutput = new int[nodes];
+
+            // Shallower nodes come first, so their links are always ready
+            for (int node = 1; node < nodes; node++) {
+                int p = parent[node];
+                char label = labels[node];
+
+                int f = ROOT;
+                if (p != ROOT) {
+                    f = fail[p];
+                    int next;
+                    while ((next = child(f, label)) < 0 && f != ROOT) {
+                        f = fail[f];
+                    }
+                    f = next < 0 ? ROOT : next;
+                }
+
+                fail[node] = f;
+                nextOutput[node] = output[f] != NO_OUTPUT ? f : nextOutput[f];
+            }
+        }
+
+
+        AhoCorasickAutomaton toAutomaton() {
+            return new AhoCorasickAutomaton(Arrays.copyOf(labels, nodes), firstChild, fail,
+                    Arrays.copyOf(output, nodes), nextOutput, Arrays.copyOf(depth, nodes), patterns.size());
+        }
+
+
+        private int child(int node, char label) {
+            int index = Arrays.binarySearch(labels, firstChild[node], firstChild[node + 1], label);
+            return index < 0 ? -1 : index;
+        }
+
+
+        private void addNode(char label, int parentNode, int nodeDepth, int patternsFrom, int patternsTo) {
+            if (nodes == labels.length) {
+                int capacity = nodes * 2;
+                labels = Arrays.copyOf(labels, capacity);
+                firstChild = Arrays.copyOf(firstChild, capacity);
+                parent = Arrays.copyOf(parent, capacity);
+                depth = Arrays.copyOf(depth, capacity);
+                output = Arrays.copyOf(output, capacity);
+                from = Arrays.copyOf(from, capacity);
+                to = Arrays.copyOf(to, capacity);
+            }
+
+            labels[nodes] = label;
+            parent[nodes] = parentNode;
+            depth[nodes] = nodeDepth;
+            output[nodes] = NO_OUTPUT;
+            from[nodes] = patternsFrom;
+            to[nodes] = patternsTo;
+            nodes++;
+        }
+    }
+}
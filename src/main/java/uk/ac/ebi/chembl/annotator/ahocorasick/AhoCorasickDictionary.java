@@ -0,0 +1,286 @@
+package uk.ac.ebi.chembl.annotator.ahocorasick;
+
+
+import com.google.common.base.Splitter;
+import org.jensenlab.tagger.EntityType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import uk.ac.ebi.chembl.annotator.DictionarySnapshot;
+import uk.ac.ebi.chembl.annotator.tagger.TaggerAnnotator;
+
+import java.io.BufferedReader;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.text.NumberFormat;
+import java.util.*;
+
+
+/**
+ * The Tagger dictionaries, compiled into an Aho-Corasick automaton
+ *
+ * Reads the same files as Tagger:
+ *
+ *   entities.tsv: serial, type and identifier of each entity
+ *   names.tsv: serial of an entity and one of its names
+ *   global.tsv: names that must never be matched (with an optional second
+ *               column, where anything but 't' means the name is allowed)
+ *
+ * Names are normalized with AhoCorasickAutomaton.normalize(), and all the
+ * entities sharing a normalized name are reported for each match.
+ *
+ * Compiling the automaton takes a while, so the compiled dictionary is kept
+ * in a snapshot (see DictionarySnapshot) until the files change.
+ */
+public class AhoCorasickDictionary {
+
+    private static final Logger logger = LoggerFactory.getLogger(AhoCorasickDictionary.class);
+
+    private static final Splitter TAB = Splitter.on('\t');
+
+    /** Name of the snapshot of the compiled dictionary */
+    private static final String SNAPSHOT = "aho-corasick.snapshot";
+
+    /** Version of the contents of the snapshot. Must be increased whenever
+     * the automaton or the normalization of the names change */
+    private static final int SNAPSHOT_VERSION = 1;
+
+    private final AhoCorasickAutomaton automaton;
+
+    /** Entities of pattern p: entities[firstEntity[p] .. firstEntity[p + 1]) */
+    private final int[] firstEntity;
+
+    private final int[] entities;
+
+    /** Type (e.g., HUMAN_GENE) of each entity */
+    private final String[] types;
+
+    /** Identifier (e.g., ENSP00000327545) of each entity */
+    private final String[] identifiers;
+
+
+    private AhoCorasickDictionary(AhoCorasickAutomaton automaton, int[] firstEntity, int[] entities,
+                                  String[] types, String[] identifiers) {
+        this.automaton = automaton;
+        this.firstEntity = firstEntity;
+        this.entities = entities;
+        this.types = types;
+        this.identifiers = identifiers;
+    }
+
+
+    /**
+     * Reads the compiled dictionary from its snapshot in the given directory,
+     * or compiles the Tagger dictionaries if the snapshot is out of date (or
+     * if there is no snapshot directory)
+     */
+    public static AhoCorasickDictionary load(String dictionariesHome, String snapshotHome) throws IOException {
+        List<Path> sources = Arrays.asList(
+                Paths.get(dictionariesHome, TaggerAnnotator.ENTITIES_TSV),
+                Paths.get(dictionariesHome, TaggerAnnotator.NAMES_TSV),
+                Paths.get(dictionariesHome, TaggerAnnotator.GLOBAL_TSV));
+
+        return DictionarySnapshot.loadOrCompile(snapshotHome, SNAPSHOT, SNAPSHOT_VERSION, sources,
+                () -> compile(dictionariesHome),
+                AhoCorasickDictionary::readFrom,
+                AhoCorasickDictionary::writeTo);
+    }
+
+
+    /**
+     * Reads the Tagger dictionaries in the given directory and compiles them
+     */
+    public static AhoCorasickDictionary compile(String dictionariesHome) throws IOException {
+        long start = System.currentTimeMillis();
+        NumberFormat nf = NumberFormat.getInstance();
+
+        // Entities, indexed by their serial
+        Map<Integer, Integer> entityBySerial = new HashMap<>();
+        List<String> types = new ArrayList<>();
+        List<String> identifiers = new ArrayList<>();
+
+        forEachLine(Paths.get(dictionariesHome, TaggerAnnotator.ENTITIES_TSV), columns -> {
+            entityBySerial.put(Integer.valueOf(columns.get(0)), identifiers.size());
+            types.add(EntityType.fromId(Integer.valueOf(columns.get(1))).name().intern());
+            identifiers.add(columns.get(2));
+        });
+
+        Set<String> blocked = new HashSet<>();
+        forEachLine(Paths.get(dictionariesHome, TaggerAnnotator.GLOBAL_TSV), columns -> {
+            if (columns.size() < 2 || columns.get(1).startsWith("t")) {
+                blocked.add(normalize(columns.get(0)));
+            }
+        });
+
+        List<NameEntry> names = new ArrayList<>();
+        forEachLine(Paths.get(dictionariesHome, TaggerAnnotator.NAMES_TSV), columns -> {
+            Integer entity = entityBySerial.get(Integer.valueOf(columns.get(0)));
+            String name = normalize(columns.get(1));
+            if (entity != null && !name.isEmpty() && !blocked.contains(name)) {
+                names.add(new NameEntry(name, entity));
+            }
+        });
+
+        // Group the entities by name
+        names.sort(Comparator.comparing((NameEntry entry) -> entry.name).thenComparingInt(entry -> entry.entity));
+
+        List<String> patterns = new ArrayList<>();
+        int[] firstEntity = new int[names.size() + 1];
+        int[] entities = new int[names.size()];
+        int n = 0;
+        for (NameEntry entry : names) {
+            boolean newPattern = patterns.isEmpty() || !patterns.get(patterns.size() - 1).equals(entry.name);
+            if (newPattern) {
+                firstEntity[patterns.size()] = n;
+                patterns.add(entry.name);
+            } else if (entities[n - 1] == entry.entity) {
+                // Same name for the same entity
+                continue;
+            }
+            entities[n++] = entry.entity;
+        }
+        firstEntity[patterns.size()] = n;
+        names.clear();
+
+        AhoCorasickAutomaton automaton = AhoCorasickAutomaton.build(patterns);
+
+        logger.info("Compiled {} names of {} entities into {} nodes in {} s", nf.format(patterns.size()),
+                nf.format(identifiers.size()), nf.format(automaton.nodes()),
+                (System.currentTimeMillis() - start) / 1000);
+
+        return new AhoCorasickDictionary(automaton,
+                Arrays.copyOf(firstEntity, patterns.size() + 1), Arrays.copyOf(entities, n),
+                types.toArray(new String[0]), identifiers.toArray(new String[0]));
+    }
+
+
+    /**
+     * Reads a dictionary written by writeTo()
+     */
+    private static AhoCorasickDictionary readFrom(ByteBuffer buffer) {
+        AhoCorasickAutomaton automaton = AhoCorasickAutomaton.readFrom(buffer);
+        int[] firstEntity = DictionarySnapshot.readInts(buffer);
+        int[] entities = DictionarySnapshot.readInts(buffer);
+
+        // Entity types are repeated a lot: share their strings
+        Map<String, String> typeNames = new HashMap<>();
+        String[] types = new String[buffer.getInt()];
+        for (int i = 0; i < types.length; i++) {
+            types[i] = typeNames.computeIfAbsent(DictionarySnapshot.readString(buffer), String::intern);
+        }
+
+        String[] identifiers = new String[buffer.getInt()];
+        for (int i = 0; i < identifiers.length; i++) {
+            identifiers[i] = DictionarySnapshot.readString(buffer);
+        }
+
+        if (firstEntity.length != automaton.size() + 1 || types.length != identifiers.length) {
+            throw new IllegalArgumentException("Inconsistent dictionary of " + automaton.size() + " names");
+        }
+
+        return new AhoCorasickDictionary(automaton, firstEntity, entities, types, identifiers);
+    }
+
+
+    private static void writeTo(AhoCorasickDictionary dictionary, DataOutputStream out) throws IOException {
+        dictionary.automaton.writeTo(out);
+        DictionarySnapshot.writeInts(out, dictionary.firstEntity);
+        DictionarySnapshot.writeInts(out, dictionary.entities);
+
+        out.writeInt(dictionary.types.length);
+        for (String type : dictionary.types) {
+            DictionarySnapshot.writeString(out, type);
+        }
+
+        out.writeInt(dictionary.identifiers.length);
+        for (String identifier : dictionary.identifiers) {
+            DictionarySnapshot.writeString(out, identifier);
+        }
+    }
+
+
+    public AhoCorasickAutomaton getAutomaton() {
+        return automaton;
+    }
+
+
+    /**
+     * Index of the first entity of a pattern in entities()
+     */
+    public int firstEntity(int pattern) {
+        return firstEntity[pattern];
+    }
+
+
+    /**
+     * Index after the last entity of a pattern in entities()
+     */
+    public int lastEntity(int pattern) {
+        return firstEntity[pattern + 1];
+    }
+
+
+    /**
+     * Entity at the given index
+     */
+    public int entity(int index) {
+        return entities[index];
+    }
+
+
+    public String getType(int entity) {
+        return types[entity];
+    }
+
+
+    public String getIdentifier(int entity) {
+        return identifiers[entity];
+    }
+
+
+    private static String normalize(String name) {
+        char[] chars = name.toCharArray();
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = AhoCorasickAutomaton.normalize(chars[i]);
+        }
+        return new String(chars);
+    }
+
+
+    private static void forEachLine(Path path, LineConsumer consumer) throws IOException {
+        logger.debug("Reading {}...", path);
+
+        // The Tagger dictionaries are in Latin-1, like TaggerDictionaryReader reads them
+        try (BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.ISO_8859_1)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.isEmpty()) {
+                    consumer.accept(TAB.splitToList(line));
+                }
+            }
+        }
+    }
+
+
+    private interface LineConsumer {
+        void accept(List<String> columns);
+    }
+
+
+    private static class NameEntry {
+
+        private final String name;
+
+        private final int entity;
+
+
+        NameEntry(String name, int entity) {
+            this.name = name;
+            this.entity = entity;
+        }
+    }
+}
@@ -1,34 +1,57 @@
 package uk.ac.ebi.chembl.annotator.tagger;
 
 import org.jensenlab.tagger.EntityType;
-import org.jensenlab.tagger.Tag;
-import org.jensenlab.tagger.Tagger;
+import org.jensenlab.tagger.swig.Entity;
+import org.jensenlab.tagger.swig.EntityArray;
+import org.jensenlab.tagger.swig.GetMatchesParams;
+import org.jensenlab.tagger.swig.IntVector;
+import org.jensenlab.tagger.swig.Match;
+import org.jensenlab.tagger.swig.MatchVector;
+import org.jensenlab.tagger.swig.Tagger;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import uk.ac.ebi.chembl.annotator.AnnotationLists;
+import uk.ac.ebi.chembl.annotator.AnnotationSink;
 import uk.ac.ebi.chembl.annotator.Annotator;
 import uk.ac.ebi.chembl.model.Annotation;
 
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.Collections;
 import java.util.List;
-import java.util.stream.Collectors;
 
 
 /**
  * The Tagger annotator
+ *
+ * Talks to the native Tagger directly, rather than through the
+ * org.jensenlab.tagger.Tagger wrapper, which builds the matching parameters
+ * from scratch on every call (about 15 JNI calls) and then converts every
+ * match into an intermediate Tag. Here, the parameters are built only once
+ * and the matches are converted straight into annotations.
+ *
+ * The native Tagger, which holds the dictionaries, may be shared by the
+ * annotators of several threads (see TaggerAnnotatorFactory). Each annotator
+ * only owns its matching parameters.
  */
 public class TaggerAnnotator implements Annotator {
 
-    final static String ENTITIES_TSV = "entities.tsv";
+    public final static String ENTITIES_TSV = "entities.tsv";
 
-    final static String NAMES_TSV = "names.tsv";
+    public final static String NAMES_TSV = "names.tsv";
 
-    final static String GLOBAL_TSV = "global.tsv";
+    public final static String GLOBAL_TSV = "global.tsv";
 
-    private final Logger logger = LoggerFactory.getLogger(getClass());
+    private static final Logger logger = LoggerFactory.getLogger(TaggerAnnotator.class);
 
     private Tagger tagger;
 
+    /** Does this annotator own the tagger, or is it shared? */
+    private final boolean ownsTagger;
+
+    /** Matching parameters, the same as the wrapper's. Reused for every text */
+    private GetMatchesParams params;
+
 
     static {
         // Loads the Tagger library
@@ -37,28 +60,109 @@ public class TaggerAnnotator implements Annotator {
     }
 
 
+    /**
+     * Creates an annotator with its own tagger
+     */
     public TaggerAnnotator(String dictionariesHome) {
-        // Initialize tagger
+        this(loadTagger(dictionariesHome), true);
+    }
+
+
+    /**
+     * Creates an annotator that uses the given tagger. If it doesn't own it,
+     * the tagger is not released on shutdown.
+     */
+    public TaggerAnnotator(Tagger tagger, boolean ownsTagger) {
+        this.tagger = tagger;
+        this.ownsTagger = ownsTagger;
+
+        IntVector entityTypes = new IntVector();
+        EntityType.all.forEach(type -> entityTypes.add(type.getId()));
+
+        params = new GetMatchesParams();
+        params.setEntity_types(entityTypes);
+        params.setAuto_detect(true);
+        params.setAllow_overlap(false);
+        params.setProtect_tags(true);
+        params.setMax_tokens(5);
+        params.setTokenize_characters(false);
+    }
+
+
+    /**
+     * Loads the dictionaries into a new native tagger
+     */
+    public static Tagger loadTagger(String dictionariesHome) {
         Path entitiesTsv = Paths.get(dictionariesHome, ENTITIES_TSV);
         Path namesTsv = Paths.get(dictionariesHome, NAMES_TSV);
         Path globalTsv = Paths.get(dictionariesHome, GLOBAL_TSV);
 
-        tagger = new Tagger(entitiesTsv.toString(), namesTsv.toString(), globalTsv.toString());
+        Tagger tagger = new Tagger(false);
+        tagger.load_names(entitiesTsv.toString(), namesTsv.toString());
+        tagger.load_global(globalTsv.toString());
+
         logger.debug("Tagger initialized!");
+        return tagger;
     }
 
 
     @Override
     public List<Annotation> annotate(String text) {
-        // Convert Tagger tags to our annotations
-        List<Tag> tags = tagger.getMatches(text, EntityType.all);
-        return tags.stream()
-                .map(tag -> new Annotation(tag.getType().name(), tag.getId(), tag.getTerm(), tag.getStart(), tag.getEnd()))
-                .collect(Collectors.toList());
+        return annotateAll(Collections.singletonList(text)).get(0);
+    }
+
+
+    @Override
+    public List<List<Annotation>> annotateAll(List<String> texts) {
+        AnnotationLists annotations = new AnnotationLists(texts);
+        annotateInto(texts, annotations);
+        return annotations.getAnnotations();
+    }
+
 
+    /**
+     * Annotates each text as a separate document, so the results are the same
+     * as annotating them one by one. Concatenating them into a single document
+     * would change the organisms Tagger detects in each one.
+     */
+    @Override
+    public void annotateInto(List<String> texts, AnnotationSink sink) {
+        for (int i = 0; i < texts.size(); i++) {
+            String text = texts.get(i);
+            if (text.isEmpty()) {
+                continue;
+            }
+
+            MatchVector matches = tagger.get_matches(text, null, params);
+
+            for (int j = 0; j < matches.size(); j++) {
+                Match match = matches.get(j);
+                int start = match.getStart();
+                int end = match.getStop() + 1;
+                String term = match.getTerm();
+
+                // A match may refer to several entities
+                EntityArray entities = EntityArray.frompointer(match.getEntities());
+                for (int k = 0; k < match.getSize(); k++) {
+                    Entity entity = entities.getitem(k);
+                    String type = EntityType.fromId(entity.getType()).name();
+                    sink.add(i, type, entity.getId().getString(), term, start, end);
+                }
+
+                match.claimAndDelete();
+            }
+
+            matches.delete();
+        }
     }
 
 
     @Override
-    public void shutdown() { /* Nothing to do */ }
+    public void shutdown() {
+        // Release the native memory right away, rather than on finalization
+        params.delete();
+        if (ownsTagger) {
+            tagger.delete();
+        }
+    }
 }
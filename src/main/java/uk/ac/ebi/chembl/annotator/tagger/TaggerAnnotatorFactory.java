@@ -1,5 +1,8 @@
 package uk.ac.ebi.chembl.annotator.tagger;
 
+import org.jensenlab.tagger.swig.Tagger;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.core.env.Environment;
 import org.springframework.stereotype.Component;
@@ -7,15 +10,27 @@ import uk.ac.ebi.chembl.annotator.Annotator;
 import uk.ac.ebi.chembl.annotator.AnnotatorFactory;
 import uk.ac.ebi.chembl.annotator.DictionaryReader;
 
+import javax.annotation.PreDestroy;
+
 /**
  * Initializes the Tagger annotator and its DictionaryReader
+ *
+ * By default, each annotator loads its own copy of the dictionaries. With
+ * tagger.shared-dictionary=true, the dictionaries are loaded into a single
+ * native tagger, which is shared read-only by the annotators of all threads,
+ * so memory and startup time don't grow with the number of threads.
  */
 @Component
 public class TaggerAnnotatorFactory implements AnnotatorFactory {
 
+    private Logger logger = LoggerFactory.getLogger(getClass());
+
     @Autowired
     private Environment env;
 
+    /** The tagger shared by all annotators, if the dictionary is shared */
+    private Tagger sharedTagger;
+
 
     @Override
     public String annotatorName() {
@@ -26,12 +41,42 @@ public class TaggerAnnotatorFactory implements AnnotatorFactory {
     @Override
     public Annotator initAnnotator() {
         String dictionariesHome = env.getProperty("tagger.dictionaries.home");
+
+        if (env.getProperty("tagger.shared-dictionary", Boolean.class, false)) {
+            return new TaggerAnnotator(getSharedTagger(dictionariesHome), false);
+        }
+
         return new TaggerAnnotator(dictionariesHome);
     }
 
     @Override
     public DictionaryReader initDictionaryReader() {
         String dictionariesHome = env.getProperty("tagger.dictionaries.home");
-        return new TaggerDictionaryReader(dictionariesHome);
+        return new TaggerDictionaryReader(dictionariesHome, env.getProperty("dictionary.snapshot.home", "snapshots"));
+    }
+
+
+    /**
+     * Releases the shared tagger, once all annotators are done with it
+     */
+    @PreDestroy
+    private synchronized void close() {
+        if (sharedTagger != null) {
+            sharedTagger.delete();
+            sharedTagger = null;
+        }
+    }
+
+
+    /**
+     * Loads the shared tagger the first time it's needed
+     */
+    private synchronized Tagger getSharedTagger(String dictionariesHome) {
+        if (sharedTagger == null) {
+            logger.info("Loading the Tagger dictionaries, to be shared by all annotators...");
+            sharedTagger = TaggerAnnotator.loadTagger(dictionariesHome);
+        }
+
+        return sharedTagger;
     }
 }
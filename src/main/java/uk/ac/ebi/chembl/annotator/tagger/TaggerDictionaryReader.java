@@ -1,55 +1,250 @@
 package uk.ac.ebi.chembl.annotator.tagger;
 
 
-import com.google.common.base.Splitter;
 import org.jensenlab.tagger.EntityType;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import uk.ac.ebi.chembl.annotator.DictionaryEntry;
 import uk.ac.ebi.chembl.annotator.DictionaryReader;
+import uk.ac.ebi.chembl.annotator.DictionarySnapshot;
 
+import java.io.BufferedReader;
+import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.List;
+import java.util.*;
 import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 
 /**
  * Reader for Tagger dictionaries
+ *
+ * The entities are kept in a snapshot (see DictionarySnapshot), so that
+ * entities.tsv is only parsed again when it changes. Either way, they are
+ * streamed one by one, so a dictionary of any size can be read without
+ * keeping it in memory.
  */
 public class TaggerDictionaryReader implements DictionaryReader {
 
+    /** Name of the snapshot of the entities */
+    private static final String SNAPSHOT = "tagger-entities.snapshot";
+
+    /** Version of the contents of the snapshot */
+    private static final int SNAPSHOT_VERSION = 2;
+
+    /** Marks the end of the entities in the snapshot */
+    private static final int END = -1;
+
     private Logger logger = LoggerFactory.getLogger(getClass());
 
     /** Path to the dictionary files */
     private String dictionariesHome;
 
+    /** Where the snapshot is kept (none if empty) */
+    private String snapshotHome;
+
 
-    public TaggerDictionaryReader(String dictionariesHome) {
+    public TaggerDictionaryReader(String dictionariesHome, String snapshotHome) {
         this.dictionariesHome = dictionariesHome;
+        this.snapshotHome = snapshotHome;
     }
 
 
+    /**
+     * Streams the entities, without keeping them in memory: straight from the
+     * mapped snapshot, which is written first if it's out of date, or from
+     * entities.tsv if there's no snapshot
+     */
     @Override
     public Stream<DictionaryEntry> read() throws IOException {
+        Path path = Paths.get(dictionariesHome, TaggerAnnotator.ENTITIES_TSV);
+
+        if (snapshotHome == null || snapshotHome.trim().isEmpty()) {
+            return lines(path);
+        }
+
+        DictionarySnapshot snapshot = new DictionarySnapshot(Paths.get(snapshotHome, SNAPSHOT), SNAPSHOT_VERSION,
+                Collections.singletonList(path));
+
+        Optional<ByteBuffer> contents = snapshot.open();
+        if (!contents.isPresent()) {
+            try {
+                snapshot.write(out -> writeSnapshot(path, out));
+                contents = snapshot.open();
+            } catch (IOException ex) {
+                // Not fatal: the entities will just be read from entities.tsv
+                logger.warn("Unable to write the dictionary snapshot {}", SNAPSHOT, ex);
+            }
+        }
+
+        return contents.isPresent() ? readSnapshot(contents.get()) : lines(path);
+    }
+
+
+    /**
+     * Reads the names of the entities from names.tsv, which refers to the
+     * entities by their serial
+     */
+    @Override
+    public void forEachName(NameConsumer consumer) throws IOException {
+        Map<Integer, DictionaryEntry> entities = new HashMap<>();
+        parse(Paths.get(dictionariesHome, TaggerAnnotator.ENTITIES_TSV), entities::put);
+
+        Path path = Paths.get(dictionariesHome, TaggerAnnotator.NAMES_TSV);
+        logger.debug("Reading the names of the Tagger entities from {}...", path);
+
+        try (BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.ISO_8859_1)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int nameStart = line.indexOf('\t') + 1;
+                int nameEnd = line.indexOf('\t', nameStart);
+
+                DictionaryEntry entity = entities.get(Integer.valueOf(line.substring(0, nameStart - 1)));
+                if (entity != null) {
+                    String name = nameEnd < 0 ? line.substring(nameStart) : line.substring(nameStart, nameEnd);
+                    consumer.accept(entity, name);
+                }
+            }
+        }
+    }
+
+
+    /**
+     * names.tsv and global.tsv, where the names of the entities, and the
+     * names that are never matched, are
+     */
+    @Override
+    public List<Path> nameFiles() {
+        return Arrays.asList(Paths.get(dictionariesHome, TaggerAnnotator.NAMES_TSV),
+                Paths.get(dictionariesHome, TaggerAnnotator.GLOBAL_TSV));
+    }
+
+
+    /**
+     * Streams the entities in entities.tsv, reading it line by line
+     */
+    private Stream<DictionaryEntry> lines(Path path) throws IOException {
         logger.debug("Reading the Tagger dictionaries from {}...", dictionariesHome);
 
-        Path path = Paths.get(dictionariesHome, TaggerAnnotator.ENTITIES_TSV);
-        return Files.readAllLines(path, StandardCharsets.ISO_8859_1)
-                .stream()
-                .map(line -> {
+        BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.ISO_8859_1);
+        return reader.lines()
+                .map(this::parseLine)
+                .onClose(() -> {
                     try {
-                        List<String> parts = Splitter.on("\t").splitToList(line);
-                        String typeName = EntityType.fromId(Integer.valueOf(parts.get(1))).name();
-                        String entityName = parts.get(2);
-                        return new DictionaryEntry(typeName, entityName);
-                    } catch (Exception ex) {
-                        logger.error("An error occurred while reading the Tagger dictionary on line {}", line, ex);
-                        throw ex;
+                        reader.close();
+                    } catch (IOException ex) {
+                        throw new UncheckedIOException(ex);
                     }
                 });
     }
+
+
+    /**
+     * Parses entities.tsv: serial, type id and name of each entity
+     */
+    private void parse(Path path, EntityConsumer consumer) throws IOException {
+        logger.debug("Reading the Tagger dictionaries from {}...", dictionariesHome);
+
+        try (BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.ISO_8859_1)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                consumer.accept(Integer.parseInt(line.substring(0, line.indexOf('\t'))), parseLine(line));
+            }
+        }
+    }
+
+
+    /**
+     * Parses the type id and name of an entity out of a line of entities.tsv
+     */
+    private DictionaryEntry parseLine(String line) {
+        try {
+            int typeStart = line.indexOf('\t') + 1;
+            int nameStart = line.indexOf('\t', typeStart) + 1;
+            int nameEnd = line.indexOf('\t', nameStart);
+
+            String typeName = EntityType.fromId(Integer.parseInt(line.substring(typeStart, nameStart - 1))).name();
+            String entityName = nameEnd < 0 ? line.substring(nameStart) : line.substring(nameStart, nameEnd);
+            return new DictionaryEntry(typeName, entityName);
+        } catch (Exception ex) {
+            logger.error("An error occurred while reading the Tagger dictionary on line {}", line, ex);
+            throw ex;
+        }
+    }
+
+
+    /**
+     * Streams the entities from the snapshot, as written by writeSnapshot()
+     */
+    private static Stream<DictionaryEntry> readSnapshot(ByteBuffer buffer) {
+        Iterator<DictionaryEntry> entries = new Iterator<DictionaryEntry>() {
+
+            private final List<String> types = new ArrayList<>();
+
+            /** Code of the type of the next entity, or END */
+            private int next = buffer.getInt();
+
+            @Override
+            public boolean hasNext() {
+                return next != END;
+            }
+
+            @Override
+            public DictionaryEntry next() {
+                if (next == END) {
+                    throw new NoSuchElementException();
+                }
+
+                if (next == types.size()) {
+                    types.add(DictionarySnapshot.readString(buffer).intern());
+                }
+
+                DictionaryEntry entry = new DictionaryEntry(types.get(next), DictionarySnapshot.readString(buffer));
+                next = buffer.getInt();
+                return entry;
+            }
+        };
+
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(entries,
+                Spliterator.ORDERED | Spliterator.NONNULL), false);
+    }
+
+
+    /**
+     * Writes the entities to the snapshot as they are parsed: the code of the
+     * type and the name of each entity, followed by END. The name of a type
+     * is written after its code the first time it appears, so that only the
+     * types are kept in memory.
+     */
+    private void writeSnapshot(Path path, DataOutputStream out) throws IOException {
+        Map<String, Integer> types = new HashMap<>();
+
+        try (Stream<DictionaryEntry> entries = lines(path)) {
+            for (DictionaryEntry entry : (Iterable<DictionaryEntry>) entries::iterator) {
+                Integer type = types.get(entry.getType());
+                if (type == null) {
+                    type = types.size();
+                    types.put(entry.getType(), type);
+                    out.writeInt(type);
+                    DictionarySnapshot.writeString(out, entry.getType());
+                } else {
+                    out.writeInt(type);
+                }
+                DictionarySnapshot.writeString(out, entry.getName());
+            }
+        }
+
+        out.writeInt(END);
+    }
+
+
+    private interface EntityConsumer {
+        void accept(int serial, DictionaryEntry entry);
+    }
 }
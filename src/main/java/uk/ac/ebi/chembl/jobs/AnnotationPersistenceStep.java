@@ -1,20 +1,30 @@
 package uk.ac.ebi.chembl.jobs;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 import uk.ac.ebi.chembl.model.AnnotatorMetadata;
-import uk.ac.ebi.chembl.model.Dictionary;
 import uk.ac.ebi.chembl.model.PatentAnnotations;
 import uk.ac.ebi.chembl.model.PatentMetadata;
 import uk.ac.ebi.chembl.pipeline.PipelineStage;
 import uk.ac.ebi.chembl.storage.AnnotationRepository;
-import uk.ac.ebi.chembl.storage.DictionaryRepository;
+import uk.ac.ebi.chembl.storage.PipelineJournal;
 
-import java.util.ArrayList;
-import java.util.Collection;
-import java.util.List;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.SQLException;
+import java.text.NumberFormat;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
 
 import static java.util.stream.Collectors.toList;
 
@@ -22,13 +32,42 @@ import static java.util.stream.Collectors.toList;
 /**
  * This stage stores the annotations in the database.
  *
- * It persists the annotations in batches, for increased performance.
+ * It persists the annotations in batches, for increased performance. The
+ * batches are sized by number of annotations rather than of patents, because
+ * a patent can have from none to tens of thousands of them. The target size
+ * adapts to how long the batches take to commit, aiming at a given commit
+ * latency: long enough to make the cost of each commit negligible, and short
+ * enough not to hold the locks on the tables for long.
+ *
+ * The patents are partitioned by id, one partition per worker, and each
+ * partition is persisted by its own writer thread, in its own transactions
+ * (and connection). Writers never write the same patents concurrently, so
+ * they don't contend for locks on the annotation tables, and the order in
+ * which the partitions are committed doesn't matter.
+ *
+ * The workers only add the patents to the batches of their partitions, so
+ * that the annotators don't have to wait for the database when it stalls
+ * for a while. The full batches wait for their writers in memory, up to
+ * pipeline.persistence.buffer.megabytes, and beyond that in a spill file
+ * per partition, from which they are read back when the writer catches up.
+ * If the run is interrupted, the next one persists whatever was left in the
+ * spill files before resuming (see recover()). Without a spill directory, the
+ * workers wait for the writers instead.
  */
 @Component
 public class AnnotationPersistenceStep extends PipelineStage<PatentMetadataAndAnnotations, Void> {
 
-    /** How many patents in one batch? */
-    private static final int BATCH_SIZE = 92;
+    /** Bounds of the target number of annotations in one batch */
+    private static final int MIN_BATCH_ROWS = 1_000;
+
+    private static final int MAX_BATCH_ROWS = 500_000;
+
+    private static final int INITIAL_BATCH_ROWS = 20_000;
+
+    /** How many patents in one batch at most, whatever their annotations */
+    private static final int MAX_BATCH_PATENTS = 1_000;
+
+    private static final String SPILL_FILE_SUFFIX = ".spill";
 
     private Logger logger = LoggerFactory.getLogger(getClass());
 
@@ -36,36 +75,189 @@ public class AnnotationPersistenceStep extends PipelineStage<PatentMetadataAndAn
     private AnnotationRepository annotationRepository;
 
     @Autowired
-    private DictionaryRepository dictionaryRepository;
+    private PipelineJournal journal;
 
     @Autowired
     private AnnotatorMetadata annotator;
 
-    /** Batch of patents to persist */
-    private List<PatentMetadataAndAnnotations> batch = new ArrayList<>(BATCH_SIZE);
+    /** How long committing a batch should take */
+    @Value("${pipeline.persistence.commit.millis:1000}")
+    private long targetCommitMillis;
+
+    /** Maximum size of the full batches waiting in memory */
+    @Value("${pipeline.persistence.buffer.megabytes:256}")
+    private long bufferMegabytes;
+
+    /** Where the batches that don't fit in memory go (blank to wait for the writers instead) */
+    @Value("${pipeline.persistence.spill.home:spill}")
+    private String spillHome;
+
+    /** One partition per worker, by patent id */
+    private Partition[] partitions;
+
+    private ExecutorService writers;
+
+    /** Estimated size of the full batches waiting in memory, in all partitions */
+    private final AtomicLong bufferedBytes = new AtomicLong();
+
+    /** The first error of the writers, if any */
+    private volatile Exception failure;
+
+    private NumberFormat nf = NumberFormat.getInstance();
+
+
+    /**
+     * Persists the batches left in the spill files by an interrupted run,
+     * except the patents it persisted anyway
+     *
+     * Must be called before the pipeline runs, so that the patents persisted
+     * here are not annotated again.
+     */
+    public void recover() throws IOException, SQLException {
+        List<Path> files = spillFiles();
+        if (files.isEmpty()) {
+            return;
+        }
+
+        // Without the journal, there's no telling which patents the spilled
+        // annotations would duplicate
+        if (!journal.isListed()) {
+            logger.warn("Discarding the annotations spilled by a run that can't be resumed...");
+            for (Path file : files) {
+                Files.delete(file);
+            }
+            return;
+        }
+
+        int recovered = 0;
+        for (Path file : files) {
+            try (AnnotationSpillFile spill = new AnnotationSpillFile(file)) {
+                List<PatentMetadataAndAnnotations> batch;
+                while ((batch = spill.next()) != null) {
+                    List<PatentMetadataAndAnnotations> remaining = batch.stream()
+                            .filter(patent -> !journal.isPersisted(patent.getMetadata().getId()))
+                            .collect(toList());
+
+                    if (!remaining.isEmpty()) {
+                        persistAnnotations(remaining);
+                        recovered += remaining.size();
+                    }
+                }
+            }
+            Files.delete(file);
+        }
+
+        logger.info("Persisted the annotations of {} patents spilled by the previous run", nf.format(recovered));
+    }
 
 
     @Override
-    protected int process(PatentMetadataAndAnnotations patent) throws Exception {
-        batch.add(patent);
+    protected void beforeRun() throws Exception {
+        if (!spillHome.isEmpty()) {
+            Files.createDirectories(Paths.get(spillHome));
+        }
 
-        int added = 0;
-        if (batch.size() == BATCH_SIZE) {
-            added = persistAnnotations(batch);
+        partitions = new Partition[getWorkers()];
+        writers = Executors.newFixedThreadPool(partitions.length,
+                new ThreadFactoryBuilder().setNameFormat("persistence-writer-%d").build());
+
+        for (int i = 0; i < partitions.length; i++) {
+            Partition partition = new Partition(spillHome.isEmpty() ? null :
+                    new AnnotationSpillFile(Paths.get(spillHome, "partition-" + i + SPILL_FILE_SUFFIX)));
+            partitions[i] = partition;
+            writers.submit(partition::write);
         }
+    }
 
-        return added;
+
+    @Override
+    protected int process(PatentMetadataAndAnnotations patent) throws Exception {
+        checkWriters();
+
+        Partition partition = partitions[(int) Math.floorMod(patent.getMetadata().getId(), (long) partitions.length)];
+        partition.add(patent);
+
+        // The patents are counted when they are persisted, by the writers
+        return 0;
     }
 
 
     @Override
     protected int onSuccess() throws Exception {
-        // Don't forget the last batch
-        return persistAnnotations(batch);
+        // Don't forget the last batch of each partition. Every worker does
+        // this, so the patents added by the workers still running are
+        // flushed by them when they finish
+        for (Partition partition : partitions) {
+            partition.flush();
+        }
+
+        return 0;
     }
 
 
-    private int persistAnnotations(Collection<PatentMetadataAndAnnotations> batch) {
+    @Override
+    protected void afterRun() throws Exception {
+        // Wait for the writers to persist everything
+        for (Partition partition : partitions) {
+            partition.close();
+        }
+        writers.shutdown();
+        writers.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+
+        checkWriters();
+
+        for (Partition partition : partitions) {
+            if (partition.spill != null) {
+                partition.spill.delete();
+            }
+        }
+    }
+
+
+    @Override
+    protected long batchTarget() {
+        Partition[] partitions = this.partitions;
+        long target = 0;
+        if (partitions != null) {
+            for (Partition partition : partitions) {
+                if (partition != null) {
+                    target = Math.max(target, partition.targetRows);
+                }
+            }
+        }
+        return target;
+    }
+
+
+    @Override
+    protected void onFailure() throws Exception {
+        // Whatever wasn't persisted is annotated again on the next run (or
+        // recovered from the spill files)
+        if (partitions != null) {
+            for (Partition partition : partitions) {
+                partition.abort();
+            }
+            writers.shutdownNow();
+        }
+    }
+
+
+    /**
+     * Rethrows the error of a writer, if there was one, so that the pipeline
+     * is aborted
+     */
+    private void checkWriters() throws Exception {
+        if (failure != null) {
+            throw new IllegalStateException("Unable to persist the annotations", failure);
+        }
+    }
+
+
+    /**
+     * Persists a batch, returning how long the transaction took, in
+     * nanoseconds
+     */
+    private long persistAnnotations(List<PatentMetadataAndAnnotations> batch) throws IOException, SQLException {
         List<PatentMetadata> patentMetadatas = batch.stream()
                 .map(PatentMetadataAndAnnotations::getMetadata)
                 .collect(toList());
@@ -74,15 +266,252 @@ public class AnnotationPersistenceStep extends PipelineStage<PatentMetadataAndAn
                 .map(PatentMetadataAndAnnotations::getAnnotations)
                 .collect(toList());
 
-        // Load the dictionary
-        Dictionary dictionary = dictionaryRepository.get(annotator);
+        // Save the annotations, keeping track of them in the journal. If the
+        // run is interrupted before the second entry, the database will be
+        // asked whether they were saved
+        journal.persisting(patentMetadatas);
+        long start = System.nanoTime();
+        annotationRepository.saveAnnotations(patentMetadatas, patentAnnotationses, annotator);
+        long elapsed = System.nanoTime() - start;
+        journal.persisted(patentMetadatas);
+
+        return elapsed;
+    }
 
-        // Save the annotations
-        annotationRepository.saveAnnotations(patentMetadatas, patentAnnotationses, dictionary);
 
-        // Clear the batch
-        int added = batch.size();
-        batch.clear();
-        return added;
+    /**
+     * Spill files in the spill directory, if any
+     */
+    private List<Path> spillFiles() throws IOException {
+        Path home = Paths.get(spillHome);
+        if (spillHome.isEmpty() || !Files.isDirectory(home)) {
+            return Collections.emptyList();
+        }
+
+        try (Stream<Path> files = Files.list(home)) {
+            return files.filter(file -> file.getFileName().toString().endsWith(SPILL_FILE_SUFFIX))
+                    .sorted()
+                    .collect(toList());
+        }
+    }
+
+
+    private static int rows(List<PatentMetadataAndAnnotations> batch) {
+        return batch.stream().mapToInt(patent -> patent.getAnnotations().size()).sum();
+    }
+
+
+    private static long bytes(List<PatentMetadataAndAnnotations> batch) {
+        return batch.stream().mapToLong(PatentMetadataAndAnnotations::estimatedSize).sum();
+    }
+
+
+    /**
+     * The patents of a partition waiting to be persisted, and its writer
+     */
+    private class Partition {
+
+        /** Batch being filled, and its number of annotations */
+        private List<PatentMetadataAndAnnotations> batch = new ArrayList<>();
+
+        private int rows = 0;
+
+        /** Number of annotations at which the batch is full. Volatile, for the metrics */
+        private volatile int targetRows = INITIAL_BATCH_ROWS;
+
+        /** Full batches waiting in memory */
+        private final Deque<List<PatentMetadataAndAnnotations>> buffered = new ArrayDeque<>();
+
+        /** Full batches waiting on disk (null if spilling is disabled) */
+        private final AnnotationSpillFile spill;
+
+        private int spilled = 0;
+
+        /** Will there be more batches? */
+        private boolean closed = false;
+
+        /** Should the writer stop right away? */
+        private boolean aborted = false;
+
+
+        Partition(AnnotationSpillFile spill) {
+            this.spill = spill;
+        }
+
+
+        /**
+         * Adds a patent to the batch being filled
+         */
+        synchronized void add(PatentMetadataAndAnnotations patent) throws IOException, InterruptedException {
+            batch.add(patent);
+            rows += patent.getAnnotations().size();
+            if (rows >= targetRows || batch.size() >= MAX_BATCH_PATENTS) {
+                flush();
+            }
+        }
+
+
+        /**
+         * Queues the batch being filled to be persisted, even if it's not
+         * full. It waits in memory if there's room for it, or otherwise on
+         * disk; without a spill file, this waits for the room.
+         */
+        synchronized void flush() throws IOException, InterruptedException {
+            if (batch.isEmpty()) {
+                return;
+            }
+
+            List<PatentMetadataAndAnnotations> full = batch;
+            batch = new ArrayList<>();
+            rows = 0;
+
+            long size = bytes(full);
+            long maxBytes = bufferMegabytes * 1024 * 1024;
+
+            if (spill != null) {
+                if (bufferedBytes.get() + size > maxBytes && !buffered.isEmpty()) {
+                    if (spilled == 0) {
+                        logger.debug("The database is falling behind: spilling batches to {}", spill.getPath());
+                    }
+                    spill.append(full);
+                    spilled++;
+                    notifyAll();
+                    return;
+                }
+            } else {
+                // An empty partition always takes the batch, or it could
+                // wait for the other partitions forever
+                while (bufferedBytes.get() + size > maxBytes && !buffered.isEmpty() && !aborted) {
+                    wait();
+                }
+            }
+
+            buffered.add(full);
+            bufferedBytes.addAndGet(size);
+            notifyAll();
+        }
+
+
+        /**
+         * Persists the batches of the partition until it's closed, or
+         * aborted
+         */
+        void write() {
+            try {
+                List<PatentMetadataAndAnnotations> next;
+                while ((next = take()) != null) {
+                    int batchRows = rows(next);
+                    long elapsed = persistAnnotations(next);
+
+                    recordBatch(batchRows, elapsed);
+                    adapt(batchRows, elapsed, TimeUnit.MILLISECONDS.toNanos(targetCommitMillis));
+                    incProcessed(next.size());
+                }
+            } catch (InterruptedException ex) {
+                // The pipeline is being aborted
+                Thread.currentThread().interrupt();
+            } catch (Exception ex) {
+                if (failure == null) {
+                    failure = ex;
+                }
+                logger.error("Unable to persist the annotations", ex);
+
+                // Don't let the workers wait for room that won't be made
+                for (Partition partition : partitions) {
+                    partition.abort();
+                }
+            }
+        }
+
+
+        /**
+         * Waits for the next full batch, from memory first, or returns null
+         * if there will be no more
+         *
+         * A batch on disk is only claimed while holding the lock, and read
+         * after releasing it, so that the workers can keep adding patents to
+         * the partition meanwhile. Only the writer reads the spill file.
+         */
+        private List<PatentMetadataAndAnnotations> take() throws IOException, InterruptedException {
+            synchronized (this) {
+                while (true) {
+                    if (aborted) {
+                        return null;
+                    }
+
+                    if (!buffered.isEmpty()) {
+                        List<PatentMetadataAndAnnotations> next = buffered.poll();
+                        bufferedBytes.addAndGet(-bytes(next));
+                        notifyAll();
+                        return next;
+                    }
+
+                    if (spilled > 0) {
+                        spilled--;
+                        break;
+                    }
+
+                    if (closed) {
+                        return null;
+                    }
+
+                    wait();
+                }
+            }
+
+            List<PatentMetadataAndAnnotations> next = spill.next();
+            if (next == null) {
+                throw new IOException("Unable to read back a batch from " + spill.getPath());
+            }
+
+            synchronized (this) {
+                if (spilled == 0) {
+                    // Everything on disk has been read back, and nothing can
+                    // be appended while the lock is held
+                    spill.clear();
+                }
+            }
+
+            return next;
+        }
+
+
+        synchronized void close() {
+            closed = true;
+            notifyAll();
+        }
+
+
+        synchronized void abort() {
+            aborted = true;
+            notifyAll();
+        }
+
+
+        /**
+         * Adjusts the target size of the batches to the time it took to
+         * commit one of them, so that the next ones take about targetNanos
+         *
+         * Small batches say little about how long a big one would take (the
+         * cost of the commit itself dominates), so they are ignored. The
+         * target moves halfway towards the estimate each time, and at most
+         * doubles or halves, so that a single slow commit doesn't throw it
+         * off.
+         */
+        synchronized void adapt(int batchRows, long nanos, long targetNanos) {
+            if (batchRows < MIN_BATCH_ROWS || nanos <= 0) {
+                return;
+            }
+
+            long estimate = (long) ((double) batchRows * targetNanos / nanos);
+            long target = Math.max(targetRows / 2, Math.min(2L * targetRows, (targetRows + estimate) / 2));
+            int previous = targetRows;
+            targetRows = (int) Math.max(MIN_BATCH_ROWS, Math.min(MAX_BATCH_ROWS, target));
+
+            if (targetRows != previous) {
+                logger.debug("Committed {} annotations in {} ms: the batches now target {} annotations",
+                        batchRows, TimeUnit.NANOSECONDS.toMillis(nanos), targetRows);
+            }
+        }
     }
 }
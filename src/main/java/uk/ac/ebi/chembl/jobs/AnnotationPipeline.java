@@ -2,9 +2,11 @@ package uk.ac.ebi.chembl.jobs;
 
 
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 import uk.ac.ebi.chembl.pipeline.Pipeline;
 import uk.ac.ebi.chembl.pipeline.PipelineStage;
+import uk.ac.ebi.chembl.storage.PipelineJournal;
 
 import java.util.List;
 
@@ -28,7 +30,35 @@ public class AnnotationPipeline {
     @Autowired
     private AnnotationPersistenceStep persistenceStep;
 
+    @Autowired
+    private PipelineJournal journal;
+
+    /** Number of workers downloading the XML */
+    @Value("${pipeline.download.workers:1}")
+    private int downloadWorkers;
+
+    /** Number of workers saving the annotations */
+    @Value("${pipeline.persistence.workers:1}")
+    private int persistenceWorkers;
+
+    /** Maximum number of chunks of patents waiting to be annotated */
+    @Value("${pipeline.download.queue.size:8192}")
+    private int downloadQueueSize;
+
+    /** Maximum size, in megabytes, of the annotations waiting to be saved */
+    @Value("${pipeline.annotation.queue.megabytes:256}")
+    private long annotationQueueMegabytes;
+
     public void run() throws Exception {
+        // The annotation step sets its own number of workers (annotator.threads)
+        xmlDownloadStep.setWorkers(downloadWorkers);
+        persistenceStep.setWorkers(persistenceWorkers);
+
+        // The annotations of a single patent can take megabytes, so their
+        // queue is bounded by size instead of by number
+        xmlDownloadStep.setOutputQueueSize(downloadQueueSize);
+        annotationStep.setOutputQueueBytes(annotationQueueMegabytes * 1024 * 1024,
+                PatentMetadataAndAnnotations::estimatedSize);
 
         Pipeline pipeline = new Pipeline() {
             @Override
@@ -41,6 +71,17 @@ public class AnnotationPipeline {
             }
         };
 
+        // The ids of the entities the previous run left in the spill files
+        // are only valid with the dictionary it annotated with
+        journal.checkDictionary();
+
+        // Persist what the previous run left in the spill files, before the
+        // journal is asked for the patents left to annotate
+        persistenceStep.recover();
+
         pipeline.run();
+
+        // Everything was annotated: the next run starts afresh
+        journal.finish();
     }
 }
@@ -0,0 +1,266 @@
+package uk.ac.ebi.chembl.jobs;
+
+import uk.ac.ebi.chembl.model.Field;
+import uk.ac.ebi.chembl.model.PatentAnnotations;
+import uk.ac.ebi.chembl.model.PatentMetadata;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+
+/**
+ * An append-only file of batches of annotations waiting to be persisted
+ *
+ * Each batch is a record:
+ *
+ *   int     length of the contents
+ *   byte[]  contents
+ *   int     CRC32 of the contents
+ *
+ * and the contents are, per patent, its metadata, its entity table (type,
+ * name and database id of each entity), its term table and the columns of
+ * its annotations, as in PatentAnnotations. Each record is forced to disk as
+ * it's appended, so the batches survive a crash of the machine, and not only
+ * of the process. A record that was being appended when either died is
+ * detected by its length or CRC, and ignored along with anything after it.
+ *
+ * The batches are read in the order they were appended. One thread can read
+ * the batches already appended while another one appends more, but clear()
+ * must not run concurrently with either.
+ */
+class AnnotationSpillFile implements Closeable {
+
+    private static final Field[] FIELDS = Field.values();
+
+    private final Path path;
+
+    private final FileChannel channel;
+
+    /** Where the next batch is read from, and appended to */
+    private long readPosition = 0;
+
+    private volatile long writePosition;
+
+
+    /**
+     * Opens the file, keeping the batches already in it, if any
+     */
+    AnnotationSpillFile(Path path) throws IOException {
+        this.path = path;
+        this.channel = FileChannel.open(path, CREATE, READ, WRITE);
+        this.writePosition = channel.size();
+    }
+
+
+    Path getPath() {
+        return path;
+    }
+
+
+    /**
+     * Appends a batch to the file, returning once it's on disk
+     */
+    void append(List<PatentMetadataAndAnnotations> batch) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+
+        out.writeInt(0);
+        for (PatentMetadataAndAnnotations patent : batch) {
+            out.writeBoolean(true);
+            write(out, patent.getMetadata());
+            write(out, patent.getAnnotations());
+        }
+        out.writeBoolean(false);
+        out.writeInt(0);
+        out.flush();
+
+        // Fill in the length and the CRC
+        byte[] record = bytes.toByteArray();
+        int length = record.length - 2 * Integer.BYTES;
+        CRC32 crc = new CRC32();
+        crc.update(record, Integer.BYTES, length);
+
+        ByteBuffer buffer = ByteBuffer.wrap(record);
+        buffer.putInt(0, length);
+        buffer.putInt(Integer.BYTES + length, (int) crc.getValue());
+
+        // Readers only see the record once it's complete
+        long position = writePosition;
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+        channel.force(false);
+        writePosition = position;
+    }
+
+
+    /**
+     * Reads the next batch, or returns null if there are no more (or the
+     * rest of the file is incomplete)
+     */
+    List<PatentMetadataAndAnnotations> next() throws IOException {
+        if (writePosition - readPosition < 2 * Integer.BYTES) {
+            return null;
+        }
+
+        ByteBuffer header = ByteBuffer.allocate(Integer.BYTES);
+        readFully(header, readPosition);
+        int length = header.getInt(0);
+        if (length < 0 || writePosition - readPosition - 2 * Integer.BYTES < length) {
+            return null;
+        }
+
+        ByteBuffer contents = ByteBuffer.allocate(length + Integer.BYTES);
+        readFully(contents, readPosition + Integer.BYTES);
+
+        CRC32 crc = new CRC32();
+        crc.update(contents.array(), 0, length);
+        if (contents.getInt(length) != (int) crc.getValue()) {
+            return null;
+        }
+
+        readPosition += 2 * Integer.BYTES + length;
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(contents.array(), 0, length));
+        List<PatentMetadataAndAnnotations> batch = new ArrayList<>();
+        while (in.readBoolean()) {
+            PatentMetadata metadata = readMetadata(in);
+            batch.add(new PatentMetadataAndAnnotations(metadata, readAnnotations(in)));
+        }
+
+        return batch;
+    }
+
+
+    /**
+     * Discards all the batches, read or not
+     */
+    void clear() throws IOException {
+        channel.truncate(0);
+        readPosition = 0;
+        writePosition = 0;
+    }
+
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+
+    /**
+     * Closes and deletes the file
+     */
+    void delete() throws IOException {
+        close();
+        Files.deleteIfExists(path);
+    }
+
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position + buffer.position());
+            if (read < 0) {
+                throw new EOFException("Unexpected end of " + path);
+            }
+        }
+    }
+
+
+    private static void write(DataOutputStream out, PatentMetadata metadata) throws IOException {
+        Date publicationDate = metadata.getPublicationDate();
+
+        out.writeLong(metadata.getId());
+        out.writeUTF(metadata.getPatentNumber());
+        out.writeBoolean(publicationDate != null);
+        if (publicationDate != null) {
+            out.writeLong(publicationDate.getTime());
+        }
+    }
+
+
+    private static PatentMetadata readMetadata(DataInputStream in) throws IOException {
+        long id = in.readLong();
+        String patentNumber = in.readUTF();
+        java.sql.Date publicationDate = in.readBoolean() ? new java.sql.Date(in.readLong()) : null;
+        return new PatentMetadata(id, patentNumber, publicationDate);
+    }
+
+
+    private static void write(DataOutputStream out, PatentAnnotations annotations) throws IOException {
+        out.writeUTF(annotations.getPatentNumber());
+
+        out.writeInt(annotations.entityCount());
+        for (int entity = 0; entity < annotations.entityCount(); entity++) {
+            out.writeUTF(annotations.getEntityType(entity));
+            out.writeUTF(annotations.getEntityName(entity));
+            out.writeInt(annotations.getBioEntityId(entity));
+        }
+
+        out.writeInt(annotations.termCount());
+        for (int term = 0; term < annotations.termCount(); term++) {
+            out.writeUTF(annotations.getTermAt(term));
+        }
+
+        out.writeInt(annotations.size());
+        for (int annotation = 0; annotation < annotations.size(); annotation++) {
+            out.writeByte(annotations.getField(annotation).ordinal());
+            out.writeInt(annotations.getRank(annotation));
+            out.writeInt(annotations.getEntity(annotation));
+            out.writeInt(annotations.getTermIndex(annotation));
+            out.writeInt(annotations.getStart(annotation));
+            out.writeInt(annotations.getEnd(annotation));
+        }
+    }
+
+
+    /**
+     * Reads the annotations of a patent, adding them again in the same
+     * order, so that the term table comes out the same. The entity table,
+     * with the ids of the entities, is the one they were written with.
+     */
+    private static PatentAnnotations readAnnotations(DataInputStream in) throws IOException {
+        String patentNumber = in.readUTF();
+
+        int entityCount = in.readInt();
+        String[] types = new String[entityCount];
+        String[] names = new String[entityCount];
+        int[] ids = new int[entityCount];
+        for (int entity = 0; entity < entityCount; entity++) {
+            types[entity] = in.readUTF();
+            names[entity] = in.readUTF();
+            ids[entity] = in.readInt();
+        }
+
+        int termCount = in.readInt();
+        String[] terms = new String[termCount];
+        for (int term = 0; term < termCount; term++) {
+            terms[term] = in.readUTF();
+        }
+
+        PatentAnnotations.Builder builder = PatentAnnotations.builder(patentNumber, types, names, ids);
+        int size = in.readInt();
+        for (int annotation = 0; annotation < size; annotation++) {
+            Field field = FIELDS[in.readByte()];
+            int rank = in.readInt();
+            int entity = in.readInt();
+            String term = terms[in.readInt()];
+            int start = in.readInt();
+            int end = in.readInt();
+            builder.add(field, rank, types[entity], names[entity], term, start, end);
+        }
+
+        return builder.build();
+    }
+}
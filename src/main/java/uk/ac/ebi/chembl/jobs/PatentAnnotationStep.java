@@ -1,14 +1,12 @@
 package uk.ac.ebi.chembl.jobs;
 
-import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
-import uk.ac.ebi.chembl.annotator.Annotator;
+import uk.ac.ebi.chembl.annotator.AnnotatorPool;
 import uk.ac.ebi.chembl.annotator.PatentAnnotator;
-import uk.ac.ebi.chembl.annotator.ThreadLocalPatentAnnotator;
 import uk.ac.ebi.chembl.model.PatentAnnotations;
 import uk.ac.ebi.chembl.model.PatentContent;
 import uk.ac.ebi.chembl.model.PatentMetadata;
@@ -17,172 +15,108 @@ import uk.ac.ebi.chembl.services.PatentXmlParser;
 import uk.ac.ebi.chembl.storage.PatentXmlRepository;
 
 import javax.annotation.PostConstruct;
+import java.nio.CharBuffer;
 import java.text.NumberFormat;
 import java.util.List;
-import java.util.Optional;
-import java.util.concurrent.*;
-import java.util.concurrent.atomic.AtomicInteger;
-import java.util.function.Supplier;
 
 /**
  * This stage annotates each patent, one by one, and forwards the annotations
  * onto the next stage
  *
- * The annotation is done in parallel.
+ * The annotation is done in parallel: the stage has one worker per annotator
+ * thread. The workers read and parse the patents on their own, and borrow an
+ * annotator from the pool only to annotate them, so there may be more workers
+ * than annotators.
  */
 @Component
 public class PatentAnnotationStep extends PipelineStage<List<PatentMetadata>, PatentMetadataAndAnnotations> {
 
-    /** The actual patent annotator */
-    private static ThreadLocal<PatentAnnotator> annotator;
-
     private Logger logger = LoggerFactory.getLogger(getClass());
 
-    /** Executor to perform the annotation in parallel */
-    private ExecutorService executor;
-
-    /** Used to monitor the status of the annotation tasks */
-    private CompletionService<Void> completionService;
-
     @Autowired
     private PatentXmlRepository repository;
 
     @Autowired
     private PatentXmlParser parser;
 
+    /** The actual patent annotators */
     @Autowired
-    private Supplier<Annotator> annotatorMaker;
+    private AnnotatorPool annotators;
 
     @Value("${annotator.threads}")
     private int nThreads;
 
-    private NumberFormat nf = NumberFormat.getInstance();
-
-    /** Number of patents processed */
-    private AtomicInteger processed = new AtomicInteger();
+    @Value("${annotator.pool.warmup:true}")
+    private boolean warmUp;
 
-    /**
-     * Number of annotator tasks that have been submitted but haven't completed yet
-     * This variable is only accessed within the stage thread, so it doesn't need
-     * to be synchronized.
-     */
-    private int remainingTasks = 0;
+    private NumberFormat nf = NumberFormat.getInstance();
 
 
     @PostConstruct
     private void init() {
-        annotator = new ThreadLocalPatentAnnotator(annotatorMaker);
-
-        ThreadFactory threadFactory = new ThreadFactoryBuilder()
-                .setNameFormat("annotator-thread-%d")
-                .setThreadFactory(new ThreadFactory() {
-                    @Override
-                    public Thread newThread(Runnable r) {
-                        return new Thread(r) {
-                            @Override
-                            public void run() {
-                                super.run();
-
-                                // Clean up the thread local annotator before the thread shuts down
-                                annotator.get().shutdown();
-                            }
-                        };
-                    }
-                })
-                .build();
-
-        // The executor that will run the stages in parallel
-        this.executor = Executors.newFixedThreadPool(nThreads, threadFactory);
-
-        // The stages are submitted through a CompletionService, so we don't
-        // need to wait for them in order
-        this.completionService = new ExecutorCompletionService<>(executor);
+        setWorkers(nThreads);
     }
 
 
     @Override
-    protected int process(List<PatentMetadata> patents) throws Exception {
-        for (PatentMetadata patent : patents) {
-            // Distributes the annotation process between multiple threads
-            completionService.submit(() -> {
-                // First, read the XML
-                String xml = repository.read(patent.getPatentNumber());
-                PatentContent content = parser.parse(xml);
-
-                logger.debug("Annotating {}", content.getPatentNumber());
+    protected void beforeRun() throws Exception {
+        if (warmUp) {
+            annotators.warmUp();
+        }
+    }
 
-                // Annotate the patent!
-                PatentAnnotations annotations = annotator.get().processPatent(content);
 
-                // Increment the number of processed elements here
-                int processed = incProcessed(1);
+    @Override
+    protected int process(List<PatentMetadata> patents) throws Exception {
+        for (PatentMetadata patent : patents) {
+            long start = System.nanoTime();
+
+            // First, read the XML into this thread's buffer and extract
+            // the relevant sections out of it
+            CharBuffer xml = repository.readChars(patent.getPatentNumber());
+            PatentContent content = parser.parse(xml);
+
+            logger.debug("Annotating {}", content.getPatentNumber());
+
+            // Annotate the patent!
+            PatentAnnotations annotations;
+            PatentAnnotator annotator = annotators.borrow();
+            boolean failed = true;
+            try {
+                annotations = annotator.processPatent(content);
+                failed = false;
+            } finally {
+                annotators.release(annotator, failed);
+            }
 
-                out.put(Optional.of(new PatentMetadataAndAnnotations(patent, annotations)));
+            // Increment the number of processed elements here. The items
+            // are chunks of patents, so the latency is recorded per patent
+            int processed = incProcessed(1);
+            recordEntryLatency(System.nanoTime() - start);
 
-                if (processed % 10000 == 0) {
-                    logger.info("Annotated patent #{}", nf.format(processed));
-                }
+            forward(new PatentMetadataAndAnnotations(patent, annotations));
 
-                return null;
-            });
-            remainingTasks++;
+            if (processed % 10000 == 0) {
+                logger.info("Annotated patent #{}", nf.format(processed));
+            }
         }
 
-        // Check for errors on the tasks that have already completed and abort if any failed
-        abortOnError(false);
-
-        // 0 means no entries were processed. We update the number of processed entries
-        // manually in the annotation task above
+        // 0 means no entries were processed. We update the number of processed
+        // entries manually above
         return 0;
     }
 
 
     @Override
-    protected void injectPoisonPill() throws Exception {
-        // Initiate a normal shutdown of the executor
-        executor.shutdown();
-
-        // Check for errors on the remaining tasks, waiting if necessary for
-        // them to complete, and abort if any fails
-        abortOnError(true);
-
-        executor.awaitTermination(1, TimeUnit.DAYS);
-
-        super.injectPoisonPill();
+    protected void afterRun() throws Exception {
+        // Free the annotators as soon as they aren't needed anymore
+        annotators.shutdown();
     }
 
 
     @Override
     protected void onFailure() throws Exception {
         super.onFailure();
-
-        // Terminate the executor now!
-        executor.shutdownNow();
-    }
-
-
-    @Override
-    protected int incProcessed(int delta) {
-        return processed.addAndGet(delta);
-    }
-
-
-    @Override
-    public int processed() {
-        return processed.get();
-    }
-
-
-    private void abortOnError(boolean wait) throws Exception {
-        Future<Void> future;
-        while (remainingTasks > 0) {
-            future = wait ? completionService.take() : completionService.poll();
-            if (future == null) {
-                break;
-            }
-
-            future.get();
-            remainingTasks--;
-        }
+        annotators.shutdown();
     }
 }
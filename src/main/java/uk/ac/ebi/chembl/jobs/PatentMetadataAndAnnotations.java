@@ -31,4 +31,12 @@ public class PatentMetadataAndAnnotations {
     public PatentAnnotations getAnnotations() {
         return annotations;
     }
+
+
+    /**
+     * Estimated size of the metadata and annotations in the heap, in bytes
+     */
+    public long estimatedSize() {
+        return metadata.estimatedSize() + annotations.estimatedSize();
+    }
 }
@@ -1,5 +1,6 @@
 package uk.ac.ebi.chembl.jobs;
 
+import com.google.common.collect.Lists;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -9,10 +10,12 @@ import uk.ac.ebi.chembl.model.PatentMetadata;
 import uk.ac.ebi.chembl.pipeline.PipelineStage;
 import uk.ac.ebi.chembl.services.PatentMetadataLoader;
 import uk.ac.ebi.chembl.storage.PatentMetadataRepository;
+import uk.ac.ebi.chembl.storage.PipelineJournal;
 
+import java.io.IOException;
 import java.text.NumberFormat;
+import java.text.SimpleDateFormat;
 import java.util.List;
-import java.util.Optional;
 
 /**
  * Loads the metadata of all new patents into the database and retrieves the
@@ -20,11 +23,18 @@ import java.util.Optional;
  *
  * This stage executes in one go, i.e, it terminates before the remaining
  * stages start processing. As such, if an error occurs during this stage, it
- * is enough to restart the application to retry.
+ * is enough to restart the application to retry. It always has a single
+ * worker.
+ *
+ * If the previous run was interrupted, the patents it didn't annotate are
+ * read from the journal instead.
  */
 @Component
 public class PatentMetadataLoadStep extends PipelineStage<Void, List<PatentMetadata>> {
 
+    /** How many patents are passed onto the next stage in each message? */
+    private static final int CHUNK_SIZE = 1000;
+
     private Logger logger = LoggerFactory.getLogger(getClass());
 
     @Autowired
@@ -33,28 +43,70 @@ public class PatentMetadataLoadStep extends PipelineStage<Void, List<PatentMetad
     @Autowired
     private PatentMetadataRepository repository;
 
+    @Autowired
+    private PipelineJournal journal;
+
     @Value("${annotator}")
     private String annotator;
 
+    @Value("${pipeline.journal.home:journal}")
+    private String journalHome;
+
     private NumberFormat nf = NumberFormat.getInstance();
 
 
     @Override
     public void run() throws Exception {
-        // Finds the metadata of all new patents and inserts it into the database
-        loader.loadNewPatents();
+        List<PatentMetadata> toAnnotate = journal.isListed() ? resume() : listPatentsToAnnotate();
+
+        logger.warn("Going to annotate {} patents...", nf.format(toAnnotate.size()));
+
+        // Pass all the metadata onto the next stage, in chunks, so that it can
+        // be shared by the workers of the next stage
+        for (List<PatentMetadata> chunk : Lists.partition(toAnnotate, CHUNK_SIZE)) {
+            forward(chunk);
+        }
+
+        // Nothing else to do!
+        injectPoisonPill();
+    }
+
+
+    /**
+     * Loads the metadata of the new patents and lists the ones to annotate,
+     * recording the progress in the journal
+     */
+    private List<PatentMetadata> listPatentsToAnnotate() throws IOException {
+        if (journal.isSynced()) {
+            logger.info("Resuming the previous run: the metadata of the new patents was already loaded " +
+                    "(up to {})", journal.getSyncedUpTo());
+        } else {
+            journal.start();
+
+            // Finds the metadata of all new patents and inserts it into the database
+            loader.loadNewPatents();
+
+            List<PatentMetadata> mostRecent = repository.getMostRecentPatents();
+            journal.synced(mostRecent.isEmpty() ? "-" :
+                    new SimpleDateFormat("yyyy-MM-dd").format(mostRecent.get(0).getPublicationDate()));
+        }
 
         // Retrieve all patents that haven't been annotated yet: this includes
         // not only the new ones, but also patents that might have failed before
         List<PatentMetadata> toAnnotate = repository.getUnannotatedPatents(annotator);
+        journal.listed(toAnnotate);
 
-        logger.warn("Going to annotate {} patents...", nf.format(toAnnotate.size()));
+        return toAnnotate;
+    }
 
-        // Pass all the metadata onto the next stage
-        out.put(Optional.of(toAnnotate));
 
-        // Nothing else to do!
-        injectPoisonPill();
+    /**
+     * Picks up the patents of the previous run that weren't annotated
+     */
+    private List<PatentMetadata> resume() throws IOException {
+        logger.warn("Resuming the previous run, which was interrupted. Delete {} to start afresh.",
+                journalHome);
+        return journal.remainingPatents();
     }
 
 
@@ -1,5 +1,6 @@
 package uk.ac.ebi.chembl.jobs;
 
+import com.google.common.collect.Lists;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -9,12 +10,11 @@ import uk.ac.ebi.chembl.model.PatentMetadata;
 import uk.ac.ebi.chembl.model.PatentXml;
 import uk.ac.ebi.chembl.pipeline.PipelineStage;
 import uk.ac.ebi.chembl.storage.PatentXmlRepository;
+import uk.ac.ebi.chembl.storage.PipelineJournal;
 
 import java.io.IOException;
 import java.text.NumberFormat;
 import java.util.*;
-import java.util.concurrent.ForkJoinPool;
-import java.util.concurrent.ForkJoinWorkerThread;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Function;
 
@@ -24,8 +24,9 @@ import static java.util.stream.Collectors.toMap;
 /**
  * Downloads the XML of all new patents and stores it in the filesystem
  *
- * This stage of the pipeline receives the metadata for all new patents at once,
- * but writes the XML one by one, because downloading the XML takes time.
+ * This stage of the pipeline receives the metadata for the new patents in
+ * chunks, but writes the XML one by one, because downloading the XML takes
+ * time. With multiple workers, several chunks are downloaded at once.
  *
  * If the XML for a patent has already been downloaded before, it is skipped.
  *
@@ -38,14 +39,26 @@ import static java.util.stream.Collectors.toMap;
 @Component
 public class PatentXmlDownloadStep extends PipelineStage<List<PatentMetadata>, List<PatentMetadata>> {
 
+    /** How many existing patents are passed onto the next stage in each message? */
+    private static final int CHUNK_SIZE = 1000;
+
     private Logger logger = LoggerFactory.getLogger(getClass());
 
     @Autowired
     private PatentXmlRepository repository;
 
+    @Autowired
+    private PipelineJournal journal;
+
     @Value("${patents.xml.home}")
     private String patentsXmlHome;
 
+    /** Number of patents downloaded, by all workers */
+    private final AtomicInteger downloaded = new AtomicInteger();
+
+    /** Number of patents without XML, by all workers */
+    private final AtomicInteger withoutXml = new AtomicInteger();
+
     private NumberFormat nf = NumberFormat.getInstance();
 
 
@@ -59,7 +72,9 @@ public class PatentXmlDownloadStep extends PipelineStage<List<PatentMetadata>, L
         List<PatentMetadata> existingPatents = partition.get(true);
 
         // Forward the existing patents onto the next stage
-        out.put(Optional.of(existingPatents));
+        for (List<PatentMetadata> chunk : Lists.partition(existingPatents, CHUNK_SIZE)) {
+            forward(chunk);
+        }
 
         // Download the patents we don't have in the file system yet
         downloadAndForwardPatents(newPatents);
@@ -68,29 +83,30 @@ public class PatentXmlDownloadStep extends PipelineStage<List<PatentMetadata>, L
     }
 
 
+    @Override
+    protected void afterRun() throws Exception {
+        if (!journal.isDownloaded()) {
+            journal.downloaded();
+        }
+
+        logger.info("Downloaded {} patents", nf.format(downloaded.get()));
+        logger.info("{} patents have no XML. I will try to download these again next time.",
+                nf.format(withoutXml.get()));
+    }
+
+
     /**
      * Partitions the patents into two groups: the ones that will be downloaded
      * and the ones that will be read from the filesystem
+     *
+     * The repository keeps the list of stored patents in memory, so this is
+     * just a membership test for each patent.
      */
-    private Map<Boolean, List<PatentMetadata>> splitIntoExistingAndNewFiles(List<PatentMetadata> patents) throws Exception {
-        AtomicInteger counter = new AtomicInteger();
-
-        // Running this in parallel increases performance when using modern storage
-        // TODO Check SARK
-        ForkJoinPool pool = new CustomForkJoinPool();
-        return pool.submit(() ->
-                patents.stream()
-                        .parallel()
-                        .collect(partitioningBy(patent -> {
-                            // Log progress, because this can take a longe time
-                            int cnt = counter.incrementAndGet();
-                            if (cnt % 100000 == 0) {
-                                logger.debug("Collecting existing patents in {}... ({}%)", patentsXmlHome,
-                                        Math.round((double) cnt / patents.size() * 100));
-                            }
-
-                            return repository.exists(patent.getPatentNumber());
-                        }))).get();
+    private Map<Boolean, List<PatentMetadata>> splitIntoExistingAndNewFiles(List<PatentMetadata> patents) {
+        logger.debug("Collecting existing patents in {}...", patentsXmlHome);
+
+        return patents.stream()
+                .collect(partitioningBy(patent -> repository.exists(patent.getPatentNumber())));
     }
 
 
@@ -105,23 +121,29 @@ public class PatentXmlDownloadStep extends PipelineStage<List<PatentMetadata>, L
             return;
         }
 
+        // The previous run already tried to download all patents, so these
+        // have no XML. They will be tried again on the next run
+        if (journal.isDownloaded()) {
+            logger.debug("Skipping {} patents with no XML", nf.format(newPatents.size()));
+            withoutXml.addAndGet(newPatents.size());
+            return;
+        }
+
         Map<String, PatentMetadata> metadataMap = newPatents.stream()
                 .collect(toMap(PatentMetadata::getPatentNumber, Function.identity()));
 
         List<String> patentNumbers = new ArrayList<>(metadataMap.keySet());
 
         // Download the XML (in chunks)
-        logger.info("Downloading {} patents to {}...", nf.format(metadataMap.size()), patentsXmlHome);
+        logger.debug("Downloading {} patents to {}...", nf.format(metadataMap.size()), patentsXmlHome);
         Iterator<PatentXml> it = repository.downloadPatentsXml(patentNumbers);
 
-        int counter = 0;
-        int noXmlCounter = 0;
         while (it.hasNext()) {
             PatentXml patentXml = it.next();
 
             if (patentXml.getXml() == null) {
                 logger.debug("XML for patent {} doesn't seem to exist. Skipping...", patentXml.getPatentNumber());
-                noXmlCounter++;
+                withoutXml.incrementAndGet();
                 continue;
             }
 
@@ -136,38 +158,14 @@ public class PatentXmlDownloadStep extends PipelineStage<List<PatentMetadata>, L
             }
 
             // Place this patent in the outgoing queue, to be annotated
-            out.put(Optional.of(Collections.singletonList(metadataMap.get(patentXml.getPatentNumber()))));
+            forward(Collections.singletonList(metadataMap.get(patentXml.getPatentNumber())));
 
             // Log progress
-            if (++counter % 100 == 0) {
-                logger.info("Downloaded patent #{} ({}%)", nf.format(counter), Math.round(((double) counter / patentNumbers.size()) * 100));
+            int counter = downloaded.incrementAndGet();
+            if (counter % 100 == 0) {
+                logger.info("Downloaded patent #{}", nf.format(counter));
             }
         }
-
-        logger.info("Downloaded {} patents", nf.format(counter));
-        logger.info("{} patents have no XML. I will try to download these again next time.", nf.format(noXmlCounter));
     }
 }
 
-
-/**
- * Custom ForkJoinPool with our own thread names for prettier logging ;)
- */
-class CustomForkJoinPool extends ForkJoinPool {
-
-    CustomForkJoinPool() {
-        super(Runtime.getRuntime().availableProcessors() - 1,
-                new ForkJoinPool.ForkJoinWorkerThreadFactory() {
-                    private AtomicInteger threadCounter = new AtomicInteger();
-
-                    @Override
-                    public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
-                        return new ForkJoinWorkerThread(pool) {
-                            {
-                                this.setName("fork-join-thread-" + threadCounter.incrementAndGet());
-                            }
-                        };
-                    }
-                }, null, false);
-    }
-}
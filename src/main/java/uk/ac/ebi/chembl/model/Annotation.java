@@ -58,6 +58,16 @@ public class Annotation {
     }
 
 
+    /**
+     * Estimated size of this annotation in the heap, in bytes. The type is
+     * shared by many annotations, so it's not counted.
+     */
+    public long estimatedSize() {
+        return MemorySizes.align(MemorySizes.HEADER + 3 * MemorySizes.REFERENCE + 2 * Integer.BYTES) +
+                MemorySizes.of(name) + MemorySizes.of(term);
+    }
+
+
     public String toString() {
         return "Annotation{type=" + this.type + ", name=\'" + this.name + '\'' + ", term=\'" + this.term + '\'' + ", start=" + this.start + ", end=" + this.end + '}';
     }
@@ -1,19 +1,38 @@
 package uk.ac.ebi.chembl.model;
 
 
-import java.util.Collections;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Map;
 
 
 /**
  * Represents a Dictionary specific for an Annotator
+ *
+ * Dictionaries have millions of names, so they are stored compactly rather
+ * than as a map of maps of Strings and Longs:
+ *
+ *   names           all the names, one after the other, in a single byte array
+ *   offsets[e]      where the name of entry e starts (and e + 1 where it ends)
+ *   entryTypes[e]   the type of entry e, as an index in types
+ *   entryHashes[e]  the hash of the name of entry e
+ *   ids[e]          the database id of entry e
+ *
+ * plus an open-addressing table of ints to find the entries by type and name.
+ * A lookup compares the hash and the type of an entry before its name, and
+ * doesn't allocate anything. Like in a map, when an entity is added more than
+ * once, the last id wins.
+ *
+ * Immutable, and therefore safe to share between threads (e.g., the
+ * annotators use it to resolve the ids of the entities they find).
  */
 public class Dictionary {
 
+    /** Returned for the entities that aren't in the dictionary */
+    public static final int UNKNOWN = -1;
+
     /** The null dictionary */
-    private static final Dictionary EMPTY_DICTIONARY = new Dictionary(null, Collections.emptyList());
+    private static final Dictionary EMPTY_DICTIONARY = builder(null).build();
 
     public static Dictionary emptyDictionary() {
         return EMPTY_DICTIONARY;
@@ -22,20 +41,53 @@ public class Dictionary {
     /** Which annotator uses this dictionary? */
     private final AnnotatorMetadata annotator;
 
-    /** The dictionary entity ids, first mapped by Type and then by Name */
-    private final Map<String, Map<String, Long>> entities = new HashMap<>();
+    /** Distinct types, the index of a type being its code */
+    private final String[] types;
+
+    /** Entries */
+    private final int size;
+
+    private final byte[] names;
+
+    private final int[] offsets;
+
+    private final byte[] entryTypes;
+
+    private final int[] entryHashes;
 
+    private final int[] ids;
 
-    public Dictionary(AnnotatorMetadata annotator, List<BioEntity> entities) {
-        this.annotator = annotator;
+    /** Hash table of the entries: index + 1, or 0 if the slot is free */
+    private final int[] slots;
 
-        // Transform the list of BioEntities into a two-level map, where the
-        // first level groups by type and the second by name
-        entities.forEach(entity -> {
-            Map<String, Long> typeEntities = this.entities.getOrDefault(entity.getType(), new HashMap<>());
-            typeEntities.put(entity.getName(), entity.getId());
-            this.entities.put(entity.getType(), typeEntities);
-        });
+
+    private Dictionary(Builder builder) {
+        builder.removeDuplicates();
+
+        this.annotator = builder.annotator;
+        this.types = builder.types.toArray(new String[0]);
+        this.size = builder.size;
+        this.names = Arrays.copyOf(builder.names, builder.offsets[size]);
+        this.offsets = Arrays.copyOf(builder.offsets, size + 1);
+        this.entryTypes = Arrays.copyOf(builder.entryTypes, size);
+        this.entryHashes = Arrays.copyOf(builder.entryHashes, size);
+        this.ids = Arrays.copyOf(builder.ids, size);
+
+        this.slots = new int[tableSize(size)];
+        int mask = slots.length - 1;
+
+        for (int entry = 0; entry < size; entry++) {
+            int slot = mix(entryHashes[entry], entryTypes[entry]) & mask;
+            while (slots[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            slots[slot] = entry + 1;
+        }
+    }
+
+
+    public static Builder builder(AnnotatorMetadata annotator) {
+        return new Builder(annotator);
     }
 
 
@@ -43,7 +95,7 @@ public class Dictionary {
      * Is this dictionary empty?
      */
     public boolean isEmpty() {
-        return entities.values().stream().allMatch(Map::isEmpty);
+        return size == 0;
     }
 
 
@@ -51,7 +103,7 @@ public class Dictionary {
      * Returns the number of entities in this dictionary
      */
     public int size() {
-        return entities.values().stream().mapToInt(Map::size).sum();
+        return size;
     }
 
 
@@ -61,17 +113,307 @@ public class Dictionary {
 
 
     /**
-     * Retrieves the id of a specific entity, identified by its type and name
+     * Retrieves the id of a specific entity, identified by its type and name,
+     * or UNKNOWN if it's not in the dictionary
+     */
+    public int getBioEntityId(String typeName, String entityName) {
+        int type = typeCode(typeName);
+        if (type < 0) {
+            return UNKNOWN;
+        }
+
+        int hash = entityName.hashCode();
+        int mask = slots.length - 1;
+
+        int entry;
+        for (int slot = mix(hash, type) & mask; (entry = slots[slot] - 1) >= 0; slot = (slot + 1) & mask) {
+            if (entryHashes[entry] == hash && entryTypes[entry] == type && nameEquals(entry, entityName)) {
+                return ids[entry];
+            }
+        }
+
+        return UNKNOWN;
+    }
+
+
+    /**
+     * Returns the names of the entities of the given type
+     */
+    public List<String> getNames(String typeName) {
+        List<String> result = new ArrayList<>();
+
+        int type = typeCode(typeName);
+        for (int entry = 0; entry < size; entry++) {
+            if (entryTypes[entry] == type) {
+                result.add(decode(names, offsets[entry], offsets[entry + 1]));
+            }
+        }
+
+        return result;
+    }
+
+
+    /**
+     * Calls the consumer with the id, type and name of each entity
+     */
+    public void forEach(EntityConsumer consumer) {
+        for (int entry = 0; entry < size; entry++) {
+            consumer.accept(ids[entry], types[entryTypes[entry]], decode(names, offsets[entry], offsets[entry + 1]));
+        }
+    }
+
+
+    /**
+     * There are only a handful of types, and annotators tend to reuse the
+     * same strings for them, so a linear search is as fast as it gets
+     */
+    private int typeCode(String typeName) {
+        for (int i = 0; i < types.length; i++) {
+            if (types[i] == typeName) {
+                return i;
+            }
+        }
+
+        for (int i = 0; i < types.length; i++) {
+            if (types[i].equals(typeName)) {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+
+
+    /**
+     * Compares the name of an entry with the given one, encoding the latter
+     * on the fly
+     */
+    private boolean nameEquals(int entry, String name) {
+        int position = offsets[entry];
+        int end = offsets[entry + 1];
+
+        for (int i = 0; i < name.length(); i++) {
+            char ch = name.charAt(i);
+            if (ch < 0x80) {
+                if (position >= end || names[position++] != (byte) ch) {
+                    return false;
+                }
+            } else if (ch < 0x800) {
+                if (position + 2 > end
+                        || names[position++] != (byte) (0xC0 | ch >> 6)
+                        || names[position++] != (byte) (0x80 | ch & 0x3F)) {
+                    return false;
+                }
+            } else {
+                if (position + 3 > end
+                        || names[position++] != (byte) (0xE0 | ch >> 12)
+                        || names[position++] != (byte) (0x80 | ch >> 6 & 0x3F)
+                        || names[position++] != (byte) (0x80 | ch & 0x3F)) {
+                    return false;
+                }
+            }
+        }
+
+        return position == end;
+    }
+
+
+    /**
+     * Decodes a name encoded by Builder.add()
+     */
+    private static String decode(byte[] bytes, int from, int to) {
+        StringBuilder name = new StringBuilder(to - from);
+
+        int position = from;
+        while (position < to) {
+            int b = bytes[position++] & 0xFF;
+            if (b < 0x80) {
+                name.append((char) b);
+            } else if (b < 0xE0) {
+                name.append((char) ((b & 0x1F) << 6 | bytes[position++] & 0x3F));
+            } else {
+                name.append((char) ((b & 0x0F) << 12 | (bytes[position++] & 0x3F) << 6 | bytes[position++] & 0x3F));
+            }
+        }
+
+        return name.toString();
+    }
+
+
+    /**
+     * Size of a hash table of the given number of entries, which is never
+     * more than half full
      */
-    public Long getBioEntityId(String typeName, String entityName) {
-        return entities.get(typeName).get(entityName);
+    private static int tableSize(int entries) {
+        return Integer.highestOneBit(Math.max(2 * entries, 16) - 1) << 1;
+    }
+
+
+    private static int mix(int hash, int type) {
+        int mixed = (31 * hash + type) * 0x9E3779B9;
+        return mixed ^ (mixed >>> 16);
     }
 
 
     /**
-     * Retrieves all entities, first mapped by Type and then by Name
+     * Receives the entities of a dictionary
      */
-    public Map<String, Map<String, Long>> getEntities() {
-        return entities;
+    public interface EntityConsumer {
+        void accept(int id, String typeName, String entityName);
+    }
+
+
+    /**
+     * Builds a dictionary one entity at a time, without keeping an object per
+     * entity
+     */
+    public static class Builder {
+
+        private static final int INITIAL_CAPACITY = 1024;
+
+        private final AnnotatorMetadata annotator;
+
+        private final List<String> types = new ArrayList<>();
+
+        private int size = 0;
+
+        private byte[] names = new byte[16 * INITIAL_CAPACITY];
+
+        private int[] offsets = new int[INITIAL_CAPACITY + 1];
+
+        private byte[] entryTypes = new byte[INITIAL_CAPACITY];
+
+        private int[] entryHashes = new int[INITIAL_CAPACITY];
+
+        private int[] ids = new int[INITIAL_CAPACITY];
+
+
+        private Builder(AnnotatorMetadata annotator) {
+            this.annotator = annotator;
+        }
+
+
+        /**
+         * Adds an entity
+         *
+         * Names are encoded in UTF-8, one char at a time (so characters
+         * outside the BMP take two 3-byte sequences).
+         */
+        public Builder add(int id, String typeName, String entityName) {
+            int type = types.indexOf(typeName);
+            if (type < 0) {
+                if (types.size() == Byte.MAX_VALUE) {
+                    throw new IllegalStateException("Too many entity types in the dictionary");
+                }
+                type = types.size();
+                types.add(typeName.intern());
+            }
+
+            if (size + 1 == offsets.length) {
+                int capacity = 2 * size;
+                offsets = Arrays.copyOf(offsets, capacity + 1);
+                entryTypes = Arrays.copyOf(entryTypes, capacity);
+                entryHashes = Arrays.copyOf(entryHashes, capacity);
+                ids = Arrays.copyOf(ids, capacity);
+            }
+
+            int position = offsets[size];
+            if (position + 3 * entityName.length() > names.length) {
+                names = Arrays.copyOf(names, Math.max(2 * names.length, position + 3 * entityName.length()));
+            }
+
+            for (int i = 0; i < entityName.length(); i++) {
+                char ch = entityName.charAt(i);
+                if (ch < 0x80) {
+                    names[position++] = (byte) ch;
+                } else if (ch < 0x800) {
+                    names[position++] = (byte) (0xC0 | ch >> 6);
+                    names[position++] = (byte) (0x80 | ch & 0x3F);
+                } else {
+                    names[position++] = (byte) (0xE0 | ch >> 12);
+                    names[position++] = (byte) (0x80 | ch >> 6 & 0x3F);
+                    names[position++] = (byte) (0x80 | ch & 0x3F);
+                }
+            }
+
+            entryTypes[size] = (byte) type;
+            entryHashes[size] = entityName.hashCode();
+            ids[size] = id;
+            offsets[++size] = position;
+            return this;
+        }
+
+
+        public Dictionary build() {
+            return new Dictionary(this);
+        }
+
+
+        /**
+         * Removes the entries whose type and name are added again later on,
+         * so that the last one wins
+         */
+        private void removeDuplicates() {
+            int[] slots = new int[tableSize(size)];
+            int mask = slots.length - 1;
+            boolean[] replaced = null;
+
+            for (int entry = 0; entry < size; entry++) {
+                int slot = mix(entryHashes[entry], entryTypes[entry]) & mask;
+                int other;
+                while ((other = slots[slot] - 1) >= 0 && !sameEntity(other, entry)) {
+                    slot = (slot + 1) & mask;
+                }
+
+                if (other >= 0) {
+                    if (replaced == null) {
+                        replaced = new boolean[size];
+                    }
+                    replaced[other] = true;
+                }
+                slots[slot] = entry + 1;
+            }
+
+            if (replaced == null) {
+                return;
+            }
+
+            // Move the remaining entries down, in the same order
+            int kept = 0;
+            for (int entry = 0; entry < size; entry++) {
+                if (replaced[entry]) {
+                    continue;
+                }
+
+                int from = offsets[entry];
+                int length = offsets[entry + 1] - from;
+                System.arraycopy(names, from, names, offsets[kept], length);
+                entryTypes[kept] = entryTypes[entry];
+                entryHashes[kept] = entryHashes[entry];
+                ids[kept] = ids[entry];
+                offsets[kept + 1] = offsets[kept] + length;
+                kept++;
+            }
+            size = kept;
+        }
+
+
+        private boolean sameEntity(int a, int b) {
+            if (entryHashes[a] != entryHashes[b] || entryTypes[a] != entryTypes[b]) {
+                return false;
+            }
+
+            int length = offsets[a + 1] - offsets[a];
+            if (offsets[b + 1] - offsets[b] != length) {
+                return false;
+            }
+
+            for (int i = 0; i < length; i++) {
+                if (names[offsets[a] + i] != names[offsets[b] + i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
     }
 }
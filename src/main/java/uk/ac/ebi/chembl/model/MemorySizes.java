@@ -0,0 +1,44 @@
+package uk.ac.ebi.chembl.model;
+
+
+/**
+ * Rough sizes of objects in the heap, in bytes, on a 64-bit JVM with
+ * compressed references
+ *
+ * They are used to bound the memory held by the queues of the pipeline, so
+ * they only need to be in the right ballpark.
+ */
+final class MemorySizes {
+
+    /** Object header */
+    static final int HEADER = 12;
+
+    static final int REFERENCE = 4;
+
+    /** An ArrayList and the header of its array */
+    static final int LIST = 40;
+
+    /** A small map, with its table and entries */
+    static final int MAP = 128;
+
+    static final int DATE = 24;
+
+
+    private MemorySizes() { }
+
+
+    /**
+     * A String, with its char array
+     */
+    static long of(String string) {
+        return string == null ? 0 : 24 + align(16 + 2L * string.length());
+    }
+
+
+    /**
+     * Rounds a size up to the 8-byte alignment of objects
+     */
+    static long align(long size) {
+        return (size + 7) & ~7L;
+    }
+}
@@ -1,23 +1,105 @@
 package uk.ac.ebi.chembl.model;
 
-import java.util.List;
-import java.util.Map;
+import java.util.Arrays;
+import java.util.function.IntUnaryOperator;
 
 /**
  * The annotations found in a patent
+ *
+ * The annotations are stored column by column, in primitive arrays, rather
+ * than as one object per annotation. The i-th annotation is made of the i-th
+ * element of each column:
+ *
+ *   field, rank     where it was found (the rank is the index of the text within the field)
+ *   entity          the annotated entity, as an index in the entity table
+ *   start, end      offsets of the term within the text
+ *   term            the term found, as an index in the term table
+ *
+ * Each distinct entity and term is stored only once per patent, in the entity
+ * and term tables. The entity table also has the database id of each entity,
+ * which is resolved by the annotator threads while the annotations are built.
  */
 public class PatentAnnotations {
 
+    private static final Field[] FIELDS = Field.values();
+
     /** Patent number */
     private final String patentNumber;
 
-    /** Annotations, mapped by field and then sorted by rank */
-    private final Map<Field, List<List<Annotation>>> annotations;
+    /** Number of annotations */
+    private final int size;
+
+    /** Columns */
+    private final byte[] fields;
+
+    private final int[] ranks;
+
+    private final int[] entities;
+
+    private final int[] starts;
+
+    private final int[] ends;
+
+    private final int[] terms;
+
+    /** Entity table: type, name and database id of each distinct entity */
+    private final String[] entityTypes;
+
+    private final String[] entityNames;
+
+    private final int[] bioEntityIds;
+
+    /** Term table: each distinct term */
+    private final String[] termTable;
+
+
+    private PatentAnnotations(Builder builder) {
+        this.patentNumber = builder.patentNumber;
+        this.size = builder.size;
+        this.fields = Arrays.copyOf(builder.fields, size);
+        this.ranks = Arrays.copyOf(builder.ranks, size);
+        this.entities = Arrays.copyOf(builder.entities, size);
+        this.starts = Arrays.copyOf(builder.starts, size);
+        this.ends = Arrays.copyOf(builder.ends, size);
+        this.terms = Arrays.copyOf(builder.terms, size);
+        this.entityTypes = Arrays.copyOf(builder.entityTypes, builder.entityCount);
+        this.entityNames = Arrays.copyOf(builder.entityNames, builder.entityCount);
+        this.bioEntityIds = Arrays.copyOf(builder.bioEntityIds, builder.entityCount);
+        this.termTable = Arrays.copyOf(builder.termTable, builder.termCount);
+    }
+
+
+    /**
+     * Returns a builder that resolves the database ids of the entities in
+     * the given table
+     */
+    public static Builder builder(String patentNumber, Dictionary dictionary) {
+        return new Builder(patentNumber, dictionary);
+    }
+
 
+    /**
+     * Returns a builder whose entity table starts with the given entities,
+     * with the database ids they were already resolved to. Any other entity
+     * is unknown.
+     */
+    public static Builder builder(String patentNumber, String[] entityTypes, String[] entityNames,
+                                  int[] bioEntityIds) {
+        if (entityNames.length != entityTypes.length || bioEntityIds.length != entityTypes.length) {
+            throw new IllegalArgumentException("The entity types, names and ids don't have the same length");
+        }
 
-    public PatentAnnotations(String patentNumber, Map<Field, List<List<Annotation>>> annotations) {
-        this.patentNumber = patentNumber;
-        this.annotations = annotations;
+        Builder builder = new Builder(patentNumber, Dictionary.emptyDictionary());
+        for (int entity = 0; entity < entityTypes.length; entity++) {
+            int slot = builder.entitySlot(entityTypes[entity], entityNames[entity]);
+            if (builder.entitySlots[slot] != 0) {
+                throw new IllegalArgumentException("Duplicate entity " + entityNames[entity] + " of type " +
+                        entityTypes[entity]);
+            }
+            builder.newEntity(slot, entityTypes[entity], entityNames[entity], bioEntityIds[entity]);
+        }
+
+        return builder;
     }
 
 
@@ -26,7 +108,343 @@ public class PatentAnnotations {
     }
 
 
-    public Map<Field, List<List<Annotation>>> getAnnotations() {
-        return annotations;
+    /**
+     * Number of annotations
+     */
+    public int size() {
+        return size;
+    }
+
+
+    public Field getField(int annotation) {
+        return FIELDS[fields[annotation]];
+    }
+
+
+    public int getRank(int annotation) {
+        return ranks[annotation];
+    }
+
+
+    /**
+     * The entity of an annotation, as an index in the entity table
+     */
+    public int getEntity(int annotation) {
+        return entities[annotation];
+    }
+
+
+    public int getStart(int annotation) {
+        return starts[annotation];
+    }
+
+
+    public int getEnd(int annotation) {
+        return ends[annotation];
+    }
+
+
+    /**
+     * The term of an annotation, as an index in the term table
+     */
+    public int getTermIndex(int annotation) {
+        return terms[annotation];
+    }
+
+
+    public String getTerm(int annotation) {
+        return termTable[terms[annotation]];
+    }
+
+
+    /**
+     * Number of distinct entities
+     */
+    public int entityCount() {
+        return entityTypes.length;
+    }
+
+
+    public String getEntityType(int entity) {
+        return entityTypes[entity];
+    }
+
+
+    public String getEntityName(int entity) {
+        return entityNames[entity];
+    }
+
+
+    /**
+     * The database id of an entity, or Dictionary.UNKNOWN if it's not in
+     * the dictionary
+     */
+    public int getBioEntityId(int entity) {
+        return bioEntityIds[entity];
+    }
+
+
+    /**
+     * Number of distinct terms
+     */
+    public int termCount() {
+        return termTable.length;
+    }
+
+
+    public String getTermAt(int index) {
+        return termTable[index];
+    }
+
+
+    /**
+     * Estimated size of these annotations in the heap, in bytes. The entity
+     * types are shared by many annotations, so they are not counted.
+     */
+    public long estimatedSize() {
+        long size = MemorySizes.align(MemorySizes.HEADER + 12 * MemorySizes.REFERENCE + Integer.BYTES) +
+                MemorySizes.of(patentNumber) +
+                MemorySizes.align(16 + this.size) + 5 * MemorySizes.align(16 + 4L * this.size) +
+                4 * 16 + (3L * entityTypes.length + termTable.length) * MemorySizes.REFERENCE;
+
+        for (String name : entityNames) {
+            size += MemorySizes.of(name);
+        }
+
+        for (String term : termTable) {
+            size += MemorySizes.of(term);
+        }
+
+        return size;
+    }
+
+
+    /**
+     * Builds the annotations of a patent, one annotation at a time
+     *
+     * Entities and terms are looked up in open-addressing tables, so adding
+     * an annotation doesn't allocate anything unless its entity or term is
+     * new to the patent.
+     */
+    public static class Builder {
+
+        private static final int INITIAL_CAPACITY = 64;
+
+        private final String patentNumber;
+
+        private final Dictionary dictionary;
+
+        private int size = 0;
+
+        private byte[] fields = new byte[INITIAL_CAPACITY];
+
+        private int[] ranks = new int[INITIAL_CAPACITY];
+
+        private int[] entities = new int[INITIAL_CAPACITY];
+
+        private int[] starts = new int[INITIAL_CAPACITY];
+
+        private int[] ends = new int[INITIAL_CAPACITY];
+
+        private int[] terms = new int[INITIAL_CAPACITY];
+
+        private int entityCount = 0;
+
+        private String[] entityTypes = new String[INITIAL_CAPACITY];
+
+        private String[] entityNames = new String[INITIAL_CAPACITY];
+
+        private int[] bioEntityIds = new int[INITIAL_CAPACITY];
+
+        /** Hash table of the entities: index + 1, or 0 if the slot is free */
+        private int[] entitySlots = new int[2 * INITIAL_CAPACITY];
+
+        private int termCount = 0;
+
+        private String[] termTable = new String[INITIAL_CAPACITY];
+
+        /** Hash table of the terms: index + 1, or 0 if the slot is free */
+        private int[] termSlots = new int[2 * INITIAL_CAPACITY];
+
+
+        private Builder(String patentNumber, Dictionary dictionary) {
+            this.patentNumber = patentNumber;
+            this.dictionary = dictionary;
+        }
+
+
+        /**
+         * Adds an annotation
+         */
+        public Builder add(Field field, int rank, String type, String name, String term, int start, int end) {
+            append(field, rank, internEntity(type, name), internTerm(term, 0, term.length()), start, end);
+            return this;
+        }
+
+
+        /**
+         * Adds an annotation whose term is the text between start and end.
+         * The term is only copied out of the text the first time it's seen.
+         */
+        public Builder addSpan(Field field, int rank, String type, String name, CharSequence text, int start,
+                               int end) {
+            append(field, rank, internEntity(type, name), internTerm(text, start, end), start, end);
+            return this;
+        }
+
+
+        public PatentAnnotations build() {
+            return new PatentAnnotations(this);
+        }
+
+
+        private void append(Field field, int rank, int entity, int term, int start, int end) {
+            if (size == fields.length) {
+                int capacity = size * 2;
+                fields = Arrays.copyOf(fields, capacity);
+                ranks = Arrays.copyOf(ranks, capacity);
+                entities = Arrays.copyOf(entities, capacity);
+                starts = Arrays.copyOf(starts, capacity);
+                ends = Arrays.copyOf(ends, capacity);
+                terms = Arrays.copyOf(terms, capacity);
+            }
+
+            fields[size] = (byte) field.ordinal();
+            ranks[size] = rank;
+            entities[size] = entity;
+            starts[size] = start;
+            ends[size] = end;
+            terms[size] = term;
+            size++;
+        }
+
+
+        private int internEntity(String type, String name) {
+            int slot = entitySlot(type, name);
+            int index = entitySlots[slot] - 1;
+
+            // The id is only looked up the first time the entity is found
+            return index >= 0 ? index : newEntity(slot, type, name, dictionary.getBioEntityId(type, name));
+        }
+
+
+        /**
+         * Returns the slot of the entity in the hash table, or the free slot
+         * where it would go
+         */
+        private int entitySlot(String type, String name) {
+            int mask = entitySlots.length - 1;
+            int slot = mix(31 * type.hashCode() + name.hashCode()) & mask;
+
+            int index;
+            while ((index = entitySlots[slot] - 1) >= 0) {
+                if (entityNames[index].equals(name) && entityTypes[index].equals(type)) {
+                    return slot;
+                }
+                slot = (slot + 1) & mask;
+            }
+
+            return slot;
+        }
+
+
+        private int newEntity(int slot, String type, String name, int bioEntityId) {
+            if (entityCount == entityTypes.length) {
+                entityTypes = Arrays.copyOf(entityTypes, entityCount * 2);
+                entityNames = Arrays.copyOf(entityNames, entityCount * 2);
+                bioEntityIds = Arrays.copyOf(bioEntityIds, entityCount * 2);
+            }
+
+            int index = entityCount++;
+            entityTypes[index] = type;
+            entityNames[index] = name;
+            bioEntityIds[index] = bioEntityId;
+            entitySlots[slot] = index + 1;
+
+            if (4 * entityCount > 3 * entitySlots.length) {
+                entitySlots = rehash(entitySlots, entityCount, i -> 31 * entityTypes[i].hashCode() +
+                        entityNames[i].hashCode());
+            }
+
+            return index;
+        }
+
+
+        private int internTerm(CharSequence text, int start, int end) {
+            int hash = 0;
+            for (int i = start; i < end; i++) {
+                hash = 31 * hash + text.charAt(i);
+            }
+
+            int mask = termSlots.length - 1;
+            int slot = mix(hash) & mask;
+
+            int index;
+            while ((index = termSlots[slot] - 1) >= 0) {
+                if (regionEquals(termTable[index], text, start, end)) {
+                    return index;
+                }
+                slot = (slot + 1) & mask;
+            }
+
+            if (termCount == termTable.length) {
+                termTable = Arrays.copyOf(termTable, termCount * 2);
+            }
+
+            index = termCount++;
+            termTable[index] = text.subSequence(start, end).toString();
+            termSlots[slot] = index + 1;
+
+            if (4 * termCount > 3 * termSlots.length) {
+                // String.hashCode() is the same hash as above
+                termSlots = rehash(termSlots, termCount, i -> termTable[i].hashCode());
+            }
+
+            return index;
+        }
+
+
+        private static boolean regionEquals(String term, CharSequence text, int start, int end) {
+            if (term.length() != end - start) {
+                return false;
+            }
+
+            for (int i = 0; i < term.length(); i++) {
+                if (term.charAt(i) != text.charAt(start + i)) {
+                    return false;
+                }
+            }
+
+            return true;
+        }
+
+
+        /**
+         * Doubles a hash table of indexes
+         */
+        private static int[] rehash(int[] slots, int count, IntUnaryOperator hashOf) {
+            int[] table = new int[slots.length * 2];
+            int mask = table.length - 1;
+
+            for (int index = 0; index < count; index++) {
+                int slot = mix(hashOf.applyAsInt(index)) & mask;
+                while (table[slot] != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                table[slot] = index + 1;
+            }
+
+            return table;
+        }
+
+
+        /**
+         * Spreads the bits of a hash, so that similar strings don't end up
+         * in neighbouring slots
+         */
+        private static int mix(int hash) {
+            hash *= 0x9E3779B9;
+            return hash ^ (hash >>> 16);
+        }
     }
 }
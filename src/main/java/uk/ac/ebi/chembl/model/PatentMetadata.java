@@ -40,6 +40,15 @@ public class PatentMetadata {
     }
 
 
+    /**
+     * Estimated size of this metadata in the heap, in bytes
+     */
+    public long estimatedSize() {
+        return MemorySizes.align(MemorySizes.HEADER + Long.BYTES + 2 * MemorySizes.REFERENCE) +
+                MemorySizes.of(patentNumber) + (publicationDate == null ? 0 : MemorySizes.DATE);
+    }
+
+
     @Override
     public String toString() {
         return "Document{" +
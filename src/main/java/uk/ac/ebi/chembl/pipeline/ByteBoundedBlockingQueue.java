@@ -0,0 +1,280 @@
+package uk.ac.ebi.chembl.pipeline;
+
+
+import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.ToLongFunction;
+
+
+/**
+ * A blocking queue bounded by the estimated size of its items, in bytes,
+ * instead of by their number
+ *
+ * The size of each item is estimated once, when it is added. An item that is
+ * bigger than the whole queue is still accepted when the queue is empty, so
+ * that it can't block the pipeline forever.
+ */
+public class ByteBoundedBlockingQueue<E> extends AbstractQueue<E> implements BlockingQueue<E> {
+
+    /** Maximum size of the items in the queue */
+    private final long maxBytes;
+
+    /** Estimates the size of an item */
+    private final ToLongFunction<? super E> sizeEstimator;
+
+    /** Items in the queue, with their estimated sizes */
+    private final Deque<Entry<E>> entries = new ArrayDeque<>();
+
+    /** Sum of the estimated sizes of the items in the queue */
+    private long bytes;
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final Condition notEmpty = lock.newCondition();
+
+    private final Condition notFull = lock.newCondition();
+
+
+    public ByteBoundedBlockingQueue(long maxBytes, ToLongFunction<? super E> sizeEstimator) {
+        if (maxBytes <= 0) {
+            throw new IllegalArgumentException("The maximum size of a queue must be positive, but got " + maxBytes);
+        }
+
+        this.maxBytes = maxBytes;
+        this.sizeEstimator = sizeEstimator;
+    }
+
+
+    /**
+     * Sum of the estimated sizes of the items in the queue
+     */
+    public long bytes() {
+        lock.lock();
+        try {
+            return bytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+
+    @Override
+    public void put(E item) throws InterruptedException {
+        Entry<E> entry = new Entry<>(item, sizeEstimator.applyAsLong(item));
+
+        lock.lockInterruptibly();
+        try {
+            while (!fits(entry)) {
+                notFull.await();
+            }
+            enqueue(entry);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+
+    @Override
+    public boolean offer(E item) {
+        Entry<E> entry = new Entry<>(item, sizeEstimator.applyAsLong(item));
+
+        lock.lock();
+        try {
+            if (!fits(entry)) {
+                return false;
+            }
+            enqueue(entry);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+
+    @Override
+    public boolean offer(E item, long timeout, TimeUnit unit) throws InterruptedException {
+        Entry<E> entry = new Entry<>(item, sizeEstimator.applyAsLong(item));
+        long nanos = unit.toNanos(timeout);
+
+        lock.lockInterruptibly();
+        try {
+            while (!fits(entry)) {
+                if (nanos <= 0) {
+                    return false;
+                }
+                nanos = notFull.awaitNanos(nanos);
+            }
+            enqueue(entry);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+
+    @Override
+    public E take() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (entries.isEmpty()) {
+                notEmpty.await();
+            }
+            return dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+
+    @Override
+    public E poll() {
+        lock.lock();
+        try {
+            return entries.isEmpty() ? null : dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+
+    @Override
+    public E poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+
+        lock.lockInterruptibly();
+        try {
+            while (entries.isEmpty()) {
+                if (nanos <= 0) {
+                    return null;
+                }
+                nanos = notEmpty.awaitNanos(nanos);
+            }
+            return dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+
+    @Override
+    public E peek() {
+        lock.lock();
+        try {
+            return entries.isEmpty() ? null : entries.peekFirst().item;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+
+    @Override
+    public int size() {
+        lock.lock();
+        try {
+            return entries.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+
+    /**
+     * The queue is not bounded by the number of items
+     */
+    @Override
+    public int remainingCapacity() {
+        return Integer.MAX_VALUE;
+    }
+
+
+    @Override
+    public int drainTo(Collection<? super E> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+
+    @Override
+    public int drainTo(Collection<? super E> c, int maxElements) {
+        if (c == this) {
+            throw new IllegalArgumentException();
+        }
+
+        lock.lock();
+        try {
+            int n = 0;
+            while (n < maxElements && !entries.isEmpty()) {
+                c.add(dequeue());
+                n++;
+            }
+            return n;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+
+    /**
+     * Iterates over a snapshot of the queue. The iterator doesn't support
+     * removals.
+     */
+    @Override
+    public Iterator<E> iterator() {
+        List<E> snapshot;
+
+        lock.lock();
+        try {
+            snapshot = new ArrayList<>(entries.size());
+            for (Entry<E> entry : entries) {
+                snapshot.add(entry.item);
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        return Collections.unmodifiableList(snapshot).iterator();
+    }
+
+
+    private boolean fits(Entry<E> entry) {
+        return entries.isEmpty() || bytes + entry.bytes <= maxBytes;
+    }
+
+
+    private void enqueue(Entry<E> entry) {
+        entries.addLast(entry);
+        bytes += entry.bytes;
+        notEmpty.signal();
+    }
+
+
+    private E dequeue() {
+        Entry<E> entry = entries.removeFirst();
+        bytes -= entry.bytes;
+
+        // Several smaller items may fit in the room left by a big one
+        notFull.signalAll();
+        return entry.item;
+    }
+
+
+    private static class Entry<E> {
+
+        private final E item;
+
+        private final long bytes;
+
+
+        private Entry(E item, long bytes) {
+            this.item = item;
+            this.bytes = bytes;
+        }
+    }
+}
@@ -5,6 +5,11 @@ import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
 import java.util.List;
 import java.util.concurrent.*;
 
@@ -16,11 +21,15 @@ public abstract class Pipeline {
     /**
      * Run the pipeline
      *
-     * Each stage is executed its own thread.
+     * Each worker of each stage is executed in its own thread. If any of them
+     * fails, the whole pipeline is aborted and the error is rethrown.
+     *
+     * While the pipeline runs, the metrics of each stage are published
+     * through JMX, under uk.ac.ebi.chembl.pipeline:type=PipelineStage.
      */
     public void run() throws Exception {
         final List<PipelineStage<?, ?>> stages = setUp();
-        int nThreads = stages.size();
+        int nThreads = stages.stream().mapToInt(PipelineStage::getWorkers).sum();
 
         // The executor that will run the stages in parallel
         ExecutorService executor = Executors.newFixedThreadPool(nThreads,
@@ -31,27 +40,40 @@ public abstract class Pipeline {
         CompletionService<Void> completionService =
                 new ExecutorCompletionService<>(executor);
 
-        // Run the stages concurrently
+        registerMetrics(stages);
+
+        // Run the workers of all stages concurrently
         for (final PipelineStage<?, ?> stage : stages) {
-            completionService.submit(() -> runStage(stage));
+            for (int worker = 0; worker < stage.getWorkers(); worker++) {
+                completionService.submit(() -> runStage(stage));
+            }
         }
 
-        // Wait for all stages to terminate, in any order. If any fails, abort
+        // Wait for all workers to terminate, in any order. If any fails, abort
         // the whole thing!
-        for (int i = 0; i < stages.size(); i++) {
+        Exception failure = null;
+        for (int i = 0; i < nThreads; i++) {
             Future<Void> future = completionService.take();
 
             try {
                 future.get();
-                // This stage terminated normally. Wait for the next one!
-            } catch (Exception ex) {
-                // This stage failed with an error. Terminate the whole pipeline!
+                // This worker terminated normally. Wait for the next one!
+            } catch (ExecutionException ex) {
+                // This worker failed with an error. Terminate the whole pipeline!
+                if (failure == null) {
+                    failure = ex.getCause() instanceof Exception ? (Exception) ex.getCause() : ex;
+                }
                 executor.shutdownNow();
             }
         }
 
-        // Shutdown the executor when all stages completed normally
+        // Shutdown the executor when all stages completed
         executor.shutdown();
+        unregisterMetrics(stages);
+
+        if (failure != null) {
+            throw failure;
+        }
     }
 
 
@@ -66,8 +88,43 @@ public abstract class Pipeline {
     }
 
 
+    private void registerMetrics(List<PipelineStage<?, ?>> stages) {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        for (PipelineStage<?, ?> stage : stages) {
+            try {
+                ObjectName name = metricsName(stage);
+                if (server.isRegistered(name)) {
+                    server.unregisterMBean(name);
+                }
+                server.registerMBean(stage.getMetrics(), name);
+            } catch (JMException ex) {
+                // The metrics are not essential: carry on without them
+                logger.warn("Unable to publish the metrics of stage {}", stage, ex);
+            }
+        }
+    }
+
+
+    private void unregisterMetrics(List<PipelineStage<?, ?>> stages) {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        for (PipelineStage<?, ?> stage : stages) {
+            try {
+                server.unregisterMBean(metricsName(stage));
+            } catch (JMException ex) {
+                logger.debug("Unable to unpublish the metrics of stage {}", stage, ex);
+            }
+        }
+    }
+
+
+    private ObjectName metricsName(PipelineStage<?, ?> stage) throws MalformedObjectNameException {
+        return new ObjectName(Pipeline.class.getPackage().getName() + ":type=PipelineStage,name=" +
+                ObjectName.quote(stage.getClass().getSimpleName()));
+    }
+
+
     /**
-     * Runs the main loop of a stage and does some error handling
+     * Runs the main loop of a stage's worker and does some error handling
      */
     private Void runStage(final PipelineStage<?, ?> stage) throws Exception {
         try {
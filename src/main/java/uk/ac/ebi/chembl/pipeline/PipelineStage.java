@@ -7,6 +7,8 @@ import java.text.NumberFormat;
 import java.util.Optional;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.ToLongFunction;
 
 /**
  * A stage of the pipeline.
@@ -14,15 +16,21 @@ import java.util.concurrent.BlockingQueue;
  * A stage receives items from an input queue, processes them and passes the
  * results to an output queue.
  *
+ * A stage may have multiple workers, each one running in its own thread and
+ * taking items from the same input queue. In that case, process() is called
+ * concurrently and must be thread-safe. The termination signal is only passed
+ * on to the next stage after all workers have finished.
+ *
  *
  * Error semantics:
  * When an unrecoverable error occurs at a certain stage of the pipeline, an
  * exception should be thrown by the process() method. The Pipeline will then
- * take care of shutting down the remaining stages orderly.
+ * take care of shutting down the remaining stages (and the remaining workers
+ * of the same stage) orderly.
  */
 public abstract class PipelineStage<I, O> {
 
-    /** Size of the outgoing queue */
+    /** Default size of the outgoing queue, in number of items */
     private static final int QUEUE_SIZE = 8192;
 
     /** Logging interval, in number of items processed */
@@ -36,8 +44,20 @@ public abstract class PipelineStage<I, O> {
     /** Output queue */
     protected BlockingQueue<Optional<O>> out;
 
+    /** Number of workers consuming the input queue */
+    private int workers = 1;
+
+    /** Has beforeRun() been called already? */
+    private boolean initialized = false;
+
+    /** Number of workers that have reached the end of the input */
+    private final AtomicInteger finishedWorkers = new AtomicInteger();
+
     /* Number of items processed (for statistics purposes) */
-    private int processed = 0;
+    private final AtomicInteger processed = new AtomicInteger();
+
+    /** Live metrics, published through JMX */
+    private final StageMetrics metrics = new StageMetrics(this);
 
     private NumberFormat nf = NumberFormat.getInstance();
 
@@ -47,64 +67,121 @@ public abstract class PipelineStage<I, O> {
     }
 
 
+    /**
+     * The main loop of a worker
+     *
+     * The Pipeline calls this method once per worker, each time in a
+     * different thread.
+     */
     public void run() throws Exception {
-        long start = System.currentTimeMillis();
-
-        beforeRun();
+        initialize();
 
         while (true) {
+            long takeStart = System.nanoTime();
             Optional<I> opt = in.take();
+            metrics.recordTake(System.nanoTime() - takeStart);
 
             // Check for termination
             if (!opt.isPresent()) {
-                // Process any buffered elements
+                // Put the termination signal back, so that the other workers
+                // see it too
+                in.put(opt);
+
+                // Process any elements buffered by this worker
                 incProcessed(onSuccess());
 
-                // Pass on the termination signal to the next stage.
-                injectPoisonPill();
+                // The last worker to finish passes on the termination signal
+                // to the next stage.
+                if (finishedWorkers.incrementAndGet() == workers) {
+                    afterRun();
+                    injectPoisonPill();
+                    metrics.finished();
+                    logger.info("Done! {} entries processed.", nf.format(processed()));
+                    logger.info("Metrics: {}", metrics);
+                }
                 break;
             }
 
             I incoming = opt.get();
-            int beforeProcessed = processed();
-            int processed = incProcessed(process(incoming));
+            int processedByThisItem = processAndMeasure(incoming);
+            int processed = incProcessed(processedByThisItem);
+            int beforeProcessed = processed - processedByThisItem;
 
             // If at least LOG_INTERVAL entries were processed since the last
             // log, log now.
             if (processed > 0 && ((processed / LOG_INTERVAL) != (beforeProcessed / LOG_INTERVAL))) {
-                double elapsed = (System.currentTimeMillis() - start) / 1000.0;
-                int speed = (int) (processed / elapsed);
-                logger.debug("Processed entry #{} at {} entries/s ", nf.format(processed), speed);
+                logger.debug("Processed entry #{} at {} entries/s ", nf.format(processed),
+                        (int) metrics.getThroughput());
             }
         }
+    }
 
-        logger.info("Done! {} entries processed.", nf.format(processed()));
+
+    /**
+     * Processes an item, recording its latency and whether it failed
+     *
+     * The time spent waiting for room in the output queue is not part of the
+     * latency, so that a slow downstream stage doesn't look like a slow one.
+     */
+    private int processAndMeasure(I incoming) throws Exception {
+        long start = System.nanoTime();
+        long blockedBefore = metrics.blockedOnPutByThisWorker();
+
+        try {
+            return process(incoming);
+        } catch (Exception ex) {
+            metrics.recordError();
+            throw ex;
+        } finally {
+            if (!metrics.isLatencyPerEntry()) {
+                long blocked = metrics.blockedOnPutByThisWorker() - blockedBefore;
+                metrics.recordLatency(System.nanoTime() - start - blocked);
+            }
+        }
     }
 
 
     /**
      * Processes an item
+     *
+     * Called concurrently when the stage has more than one worker.
      */
     protected abstract int process(I incoming) throws Exception;
 
 
     /**
      * Do something before this stage processes the first item
+     *
+     * Called only once, regardless of the number of workers.
      */
     protected void beforeRun() throws Exception { }
 
 
     /**
      * Do something when the stage finishes normally
+     *
+     * Called by each worker, in its own thread, when it reaches the end of the
+     * input. Returns the number of items processed (e.g., buffered items).
      */
     protected int onSuccess() throws Exception {
         return 0;
     }
 
 
+    /**
+     * Do something after all workers have finished normally, before the
+     * termination signal is passed on to the next stage
+     *
+     * Called only once, regardless of the number of workers.
+     */
+    protected void afterRun() throws Exception { }
+
+
     /**
      * Do something when there was a failure in the pipeline (possibly in
      * another stage)
+     *
+     * Called by each worker, in its own thread.
      */
     protected void onFailure() throws Exception { }
 
@@ -113,7 +190,7 @@ public abstract class PipelineStage<I, O> {
      * Number of items processed
      */
     public int processed() {
-        return processed;
+        return processed.get();
     }
 
 
@@ -121,8 +198,46 @@ public abstract class PipelineStage<I, O> {
      * Increments and returns the number of items processed
      */
     protected int incProcessed(int amount) {
-        this.processed += amount;
-        return this.processed;
+        return processed.addAndGet(amount);
+    }
+
+
+    /**
+     * Records the latency of an entry of an incoming item, for the stages
+     * whose items hold many entries (e.g., the chunks of patents). Once a
+     * stage does this, the latencies of its items are not recorded anymore.
+     */
+    protected void recordEntryLatency(long nanos) {
+        metrics.recordEntryLatency(nanos);
+    }
+
+
+    /**
+     * Records the size and duration of a batch written by this stage, for
+     * the stages that write in batches
+     */
+    protected void recordBatch(long size, long nanos) {
+        metrics.recordBatch(size, nanos);
+    }
+
+
+    /**
+     * Size the next batches of this stage aim at, for the stages that adapt
+     * it as they go, or 0
+     */
+    protected long batchTarget() {
+        return 0;
+    }
+
+
+    /**
+     * Passes an item onto the next stage, waiting for room in the output
+     * queue if necessary
+     */
+    protected void forward(O item) throws InterruptedException {
+        long start = System.nanoTime();
+        out.put(Optional.of(item));
+        metrics.recordPut(System.nanoTime() - start);
     }
 
 
@@ -134,6 +249,55 @@ public abstract class PipelineStage<I, O> {
     }
 
 
+    /**
+     * Bounds the output queue by the number of items. Must be called before
+     * the pipeline is set up.
+     */
+    public void setOutputQueueSize(int items) {
+        out = new ArrayBlockingQueue<>(items);
+    }
+
+
+    /**
+     * Bounds the output queue by the estimated size of its items, in bytes,
+     * so that the memory held by the queue doesn't depend on how big the
+     * items are. Must be called before the pipeline is set up.
+     */
+    public void setOutputQueueBytes(long maxBytes, ToLongFunction<? super O> sizeEstimator) {
+        // The termination signal takes no room
+        out = new ByteBoundedBlockingQueue<>(maxBytes,
+                opt -> opt.isPresent() ? sizeEstimator.applyAsLong(opt.get()) : 0);
+    }
+
+
+    /**
+     * Number of workers consuming the input queue
+     */
+    public int getWorkers() {
+        return workers;
+    }
+
+
+    /**
+     * Sets the number of workers. Must be called before the pipeline runs.
+     */
+    public void setWorkers(int workers) {
+        if (workers < 1) {
+            throw new IllegalArgumentException("A stage needs at least one worker, but got " + workers);
+        }
+
+        this.workers = workers;
+    }
+
+
+    /**
+     * Live metrics of this stage
+     */
+    public StageMetrics getMetrics() {
+        return metrics;
+    }
+
+
     public BlockingQueue<Optional<I>> getIn() {
         return in;
     }
@@ -147,4 +311,17 @@ public abstract class PipelineStage<I, O> {
     public BlockingQueue<Optional<O>> getOut() {
         return out;
     }
-}
\ No newline at end of file
+
+
+    /**
+     * Calls beforeRun() on the first worker. The remaining workers wait for it
+     * to finish.
+     */
+    private synchronized void initialize() throws Exception {
+        if (!initialized) {
+            metrics.started();
+            beforeRun();
+            initialized = true;
+        }
+    }
+}
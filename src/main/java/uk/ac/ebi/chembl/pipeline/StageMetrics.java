@@ -0,0 +1,283 @@
+package uk.ac.ebi.chembl.pipeline;
+
+
+import java.util.Optional;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Metrics of a pipeline stage
+ *
+ * The workers of the stage record their timings here, and the Pipeline
+ * publishes them through JMX while it runs.
+ */
+public class StageMetrics implements StageMetricsMXBean {
+
+    private final PipelineStage<?, ?> stage;
+
+    private final LatencyHistogram latencies = new LatencyHistogram();
+
+    /** Whether the latencies are of the entries of the items, rather than of the items */
+    private volatile boolean latencyPerEntry = false;
+
+    private final AtomicLong blockedOnTake = new AtomicLong();
+
+    private final AtomicLong blockedOnPut = new AtomicLong();
+
+    /** Time each worker has spent blocked on put(), so it can be discounted from its latencies */
+    private final ThreadLocal<long[]> blockedOnPutByWorker = ThreadLocal.withInitial(() -> new long[1]);
+
+    private final AtomicLong errors = new AtomicLong();
+
+    /** Batches written by the stage, if it writes in batches */
+    private final LatencyHistogram batchLatencies = new LatencyHistogram();
+
+    private final AtomicLong batches = new AtomicLong();
+
+    private final AtomicLong batchedItems = new AtomicLong();
+
+    private volatile long lastBatchSize;
+
+    /** When the stage started and finished, in nanoseconds */
+    private volatile long start;
+
+    private volatile long end;
+
+
+    StageMetrics(PipelineStage<?, ?> stage) {
+        this.stage = stage;
+    }
+
+
+    void started() {
+        start = System.nanoTime();
+    }
+
+
+    void finished() {
+        end = System.nanoTime();
+    }
+
+
+    void recordTake(long nanos) {
+        blockedOnTake.addAndGet(nanos);
+    }
+
+
+    void recordPut(long nanos) {
+        blockedOnPut.addAndGet(nanos);
+        blockedOnPutByWorker.get()[0] += nanos;
+    }
+
+
+    /**
+     * Time the current worker has spent blocked on put(), in nanoseconds
+     */
+    long blockedOnPutByThisWorker() {
+        return blockedOnPutByWorker.get()[0];
+    }
+
+
+    void recordLatency(long nanos) {
+        latencies.record(nanos);
+    }
+
+
+    void recordEntryLatency(long nanos) {
+        latencyPerEntry = true;
+        latencies.record(nanos);
+    }
+
+
+    void recordError() {
+        errors.incrementAndGet();
+    }
+
+
+    void recordBatch(long size, long nanos) {
+        batches.incrementAndGet();
+        batchedItems.addAndGet(size);
+        lastBatchSize = size;
+        batchLatencies.record(nanos);
+    }
+
+
+    @Override
+    public int getWorkers() {
+        return stage.getWorkers();
+    }
+
+
+    @Override
+    public int getInputQueueSize() {
+        return size(stage.getIn());
+    }
+
+
+    @Override
+    public int getOutputQueueSize() {
+        return size(stage.getOut());
+    }
+
+
+    @Override
+    public int getOutputQueueCapacity() {
+        BlockingQueue<?> out = stage.getOut();
+        return out == null ? 0 : (int) Math.min(Integer.MAX_VALUE, (long) out.size() + out.remainingCapacity());
+    }
+
+
+    @Override
+    public long getOutputQueueBytes() {
+        BlockingQueue<?> out = stage.getOut();
+        return out instanceof ByteBoundedBlockingQueue ? ((ByteBoundedBlockingQueue<?>) out).bytes() : 0;
+    }
+
+
+    @Override
+    public long getOutputQueueMaxBytes() {
+        BlockingQueue<?> out = stage.getOut();
+        return out instanceof ByteBoundedBlockingQueue ? ((ByteBoundedBlockingQueue<?>) out).getMaxBytes() : 0;
+    }
+
+
+    @Override
+    public long getProcessed() {
+        return stage.processed();
+    }
+
+
+    @Override
+    public double getThroughput() {
+        if (start == 0) {
+            return 0;
+        }
+
+        long elapsed = (end == 0 ? System.nanoTime() : end) - start;
+        return elapsed == 0 ? 0 : stage.processed() / (elapsed / 1e9);
+    }
+
+
+    @Override
+    public boolean isLatencyPerEntry() {
+        return latencyPerEntry;
+    }
+
+
+    @Override
+    public long getLatencyP50Micros() {
+        return micros(latencies.percentile(50));
+    }
+
+
+    @Override
+    public long getLatencyP95Micros() {
+        return micros(latencies.percentile(95));
+    }
+
+
+    @Override
+    public long getLatencyP99Micros() {
+        return micros(latencies.percentile(99));
+    }
+
+
+    @Override
+    public long getLatencyMaxMicros() {
+        return micros(latencies.max());
+    }
+
+
+    @Override
+    public long getBlockedOnTakeMillis() {
+        return millis(blockedOnTake.get());
+    }
+
+
+    @Override
+    public long getBlockedOnPutMillis() {
+        return millis(blockedOnPut.get());
+    }
+
+
+    @Override
+    public long getErrors() {
+        return errors.get();
+    }
+
+
+    @Override
+    public long getBatches() {
+        return batches.get();
+    }
+
+
+    @Override
+    public long getAverageBatchSize() {
+        long n = batches.get();
+        return n == 0 ? 0 : batchedItems.get() / n;
+    }
+
+
+    @Override
+    public long getLastBatchSize() {
+        return lastBatchSize;
+    }
+
+
+    @Override
+    public long getBatchTarget() {
+        return stage.batchTarget();
+    }
+
+
+    @Override
+    public long getBatchLatencyP50Micros() {
+        return micros(batchLatencies.percentile(50));
+    }
+
+
+    @Override
+    public long getBatchLatencyP99Micros() {
+        return micros(batchLatencies.percentile(99));
+    }
+
+
+    @Override
+    public String toString() {
+        String metrics = String.format("%.1f entries/s, latency per %s p50=%.1fms p99=%.1fms max=%.1fms, " +
+                        "blocked on take=%ds put=%ds, %d errors",
+                getThroughput(), isLatencyPerEntry() ? "entry" : "item", getLatencyP50Micros() / 1000.0, getLatencyP99Micros() / 1000.0,
+                getLatencyMaxMicros() / 1000.0, TimeUnit.MILLISECONDS.toSeconds(getBlockedOnTakeMillis()),
+                TimeUnit.MILLISECONDS.toSeconds(getBlockedOnPutMillis()), getErrors());
+
+        if (getBatches() > 0) {
+            metrics += String.format(", %d batches of %d on average, batch latency p50=%.1fms p99=%.1fms",
+                    getBatches(), getAverageBatchSize(), getBatchLatencyP50Micros() / 1000.0,
+                    getBatchLatencyP99Micros() / 1000.0);
+        }
+
+        if (getBatchTarget() > 0) {
+            metrics += String.format(", batches target %d", getBatchTarget());
+        }
+
+        return metrics;
+    }
+
+
+    private static int size(BlockingQueue<? extends Optional<?>> queue) {
+        return queue == null ? 0 : queue.size();
+    }
+
+
+    private static long micros(long nanos) {
+        return TimeUnit.NANOSECONDS.toMicros(nanos);
+    }
+
+
+    private static long millis(long nanos) {
+        return TimeUnit.NANOSECONDS.toMillis(nanos);
+    }
+}
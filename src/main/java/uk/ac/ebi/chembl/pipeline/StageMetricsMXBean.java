@@ -0,0 +1,73 @@
+package uk.ac.ebi.chembl.pipeline;
+
+
+/**
+ * Live metrics of a pipeline stage, as published through JMX
+ *
+ * Latencies are measured per incoming item, or per entry for the stages whose
+ * items hold many entries and that measure them one by one (e.g., per patent
+ * in the annotation stage, whose items are chunks of patents). They don't
+ * count the time spent waiting for room in the output queue.
+ */
+public interface StageMetricsMXBean {
+
+    /** Number of workers of the stage */
+    int getWorkers();
+
+    /** Number of items waiting in the input queue */
+    int getInputQueueSize();
+
+    /** Number of items waiting in the output queue */
+    int getOutputQueueSize();
+
+    /** Maximum number of items in the output queue (Integer.MAX_VALUE if it's bounded by bytes) */
+    int getOutputQueueCapacity();
+
+    /** Estimated size of the items in the output queue, if it's bounded by bytes */
+    long getOutputQueueBytes();
+
+    /** Maximum size of the items in the output queue, if it's bounded by bytes */
+    long getOutputQueueMaxBytes();
+
+    /** Number of items processed so far */
+    long getProcessed();
+
+    /** Average number of items processed per second since the stage started */
+    double getThroughput();
+
+    /** Whether the latencies are per entry rather than per incoming item */
+    boolean isLatencyPerEntry();
+
+    long getLatencyP50Micros();
+
+    long getLatencyP95Micros();
+
+    long getLatencyP99Micros();
+
+    long getLatencyMaxMicros();
+
+    /** Total time the workers have spent waiting for items in the input queue */
+    long getBlockedOnTakeMillis();
+
+    /** Total time the workers have spent waiting for room in the output queue */
+    long getBlockedOnPutMillis();
+
+    /** Number of items whose processing failed */
+    long getErrors();
+
+    /** Number of batches written, if the stage writes in batches */
+    long getBatches();
+
+    /** Average size of the batches, in whatever unit the stage batches by */
+    long getAverageBatchSize();
+
+    /** Size of the last batch */
+    long getLastBatchSize();
+
+    /** Size the next batches aim at, if the stage adapts it (the largest across its writers) */
+    long getBatchTarget();
+
+    long getBatchLatencyP50Micros();
+
+    long getBatchLatencyP99Micros();
+}
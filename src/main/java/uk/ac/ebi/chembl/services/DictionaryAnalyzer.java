@@ -3,17 +3,18 @@ package uk.ac.ebi.chembl.services;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 import uk.ac.ebi.chembl.annotator.DictionaryEntry;
+import uk.ac.ebi.chembl.annotator.DictionaryFingerprint;
 import uk.ac.ebi.chembl.annotator.DictionaryReader;
 import uk.ac.ebi.chembl.model.AnnotatorMetadata;
 import uk.ac.ebi.chembl.model.Dictionary;
 import uk.ac.ebi.chembl.storage.DictionaryRepository;
 
 import java.io.IOException;
-import java.util.List;
-
-import static java.util.stream.Collectors.toList;
+import java.sql.SQLException;
+import java.util.stream.Stream;
 
 
 /**
@@ -24,8 +25,10 @@ import static java.util.stream.Collectors.toList;
  * Otherwise, the annotator may detect entities which do not exist in the
  * database, which would lead to errors.
  *
- * If you want to use a newer version of the dictionaries, you will have
- * to annotate everything from scratch again!
+ * If you want to use a newer version of the dictionaries, either enable
+ * dictionary.upgrade, so that the dictionary in the database is upgraded and
+ * only the affected patents are annotated again (see DictionaryUpgrader), or
+ * annotate everything from scratch again!
  */
 @Service
 public class DictionaryAnalyzer {
@@ -40,23 +43,65 @@ public class DictionaryAnalyzer {
     @Autowired
     private DictionaryRepository dictionaryRepository;
 
+    @Autowired
+    private DictionaryUpgrader upgrader;
+
+    /** Upgrade the dictionary in the database when the files change, instead of aborting? */
+    @Value("${dictionary.upgrade:false}")
+    private boolean upgrade;
+
+
+    /**
+     * Checks that the dictionary in the database is the annotator's, and
+     * persists it if there's none yet
+     *
+     * The fingerprint of the annotator's dictionary is compared with the one stored
+     * with the annotator first: only if they differ are the dictionaries read
+     * in full and compared entry by entry.
+     */
+    public boolean analyze(AnnotatorMetadata annotator) throws IOException, SQLException {
+        String fingerprint = DictionaryFingerprint.of(reader);
+
+        if (fingerprint.equals(dictionaryRepository.getFingerprint(annotator))) {
+            logger.info("The dictionary is the same as the one in the database (fingerprint {})", fingerprint);
+
+            // The names are kept for the next upgrade, which needs them to
+            // know which ones are new
+            upgrader.keepNamesIfMissing(annotator, fingerprint);
+            return true;
+        }
 
-    public boolean analyze(AnnotatorMetadata annotator) throws IOException {
         // Load the dictionary from the database
         Dictionary dbDictionary = dictionaryRepository.get(annotator);
 
-        List<DictionaryEntry> fsDictionary = reader.read().collect(toList());
         if (dbDictionary.isEmpty()) {
             // If this is the first time we are using this annotator, load the
             // dictionary entities into the database.
             logger.warn("It looks like it's the first time you run the {} annotator. Persisting its dictionary to the database...", annotator);
-            saveDictionary(fsDictionary, annotator);
+            saveDictionary(fingerprint, annotator);
         } else {
             // If the dictionary has already been added to the database before,
             // check for differences between what is in the database and what
             // is going to be used by the annotator. They must be the same.
-            logger.info("Checking the dictionary...");
-            return !differ(dbDictionary, fsDictionary);
+            logger.info("The dictionary fingerprint doesn't match the database's. Checking the dictionary...");
+            if (upgrade) {
+                // Unless the dictionary may be upgraded to the new files
+                upgrader.upgrade(annotator, dbDictionary, fingerprint);
+                return true;
+            }
+
+            try (Stream<DictionaryEntry> entries = reader.read()) {
+                if (differ(dbDictionary, entries)) {
+                    return false;
+                }
+            }
+
+            // The entries may just be in a different order, their names may
+            // have changed, or the database may predate the fingerprints.
+            // Either way, the next check will be quick.
+            logger.info("The entities are the same as in the database. Only their order or their names changed");
+            dictionaryRepository.saveFingerprint(annotator, fingerprint);
+            upgrader.keepNames(annotator, fingerprint);
         }
 
         return true;
@@ -64,10 +109,15 @@ public class DictionaryAnalyzer {
 
 
     /**
-     * Persists the annotator dictionary to the database
+     * Persists the annotator dictionary to the database, streaming it from
+     * the dictionary files
      */
-    private void saveDictionary(List<DictionaryEntry> dictionary, AnnotatorMetadata annotator) {
-        dictionaryRepository.save(dictionary, annotator);
+    private void saveDictionary(String fingerprint, AnnotatorMetadata annotator) throws IOException, SQLException {
+        try (Stream<DictionaryEntry> entries = reader.read()) {
+            dictionaryRepository.save(entries, fingerprint, annotator);
+        }
+
+        upgrader.keepNames(annotator, fingerprint);
     }
 
 
@@ -76,22 +126,24 @@ public class DictionaryAnalyzer {
      * persisted to the database and the dictionary that is going to be
      * used be the annotator
      */
-    private boolean differ(Dictionary db, List<DictionaryEntry> fs) {
-        // First check if the dictionaries have the same size
-        if (fs.size() != db.size()) {
-            logger.error("The dictionary loaded from the database contains {} entities, while the " +
-                    "dictionary files contain {}", db.size(), fs.size());
-            return true;
-        }
-
-        // Then check if each entry in the dictionary also exists in the database
-        for (DictionaryEntry entry : fs) {
-            if (db.getBioEntityId(entry.getType(), entry.getName()) == null) {
+    private boolean differ(Dictionary db, Stream<DictionaryEntry> fs) {
+        // Check if each entry in the dictionary also exists in the database
+        int size = 0;
+        for (DictionaryEntry entry : (Iterable<DictionaryEntry>) fs::iterator) {
+            if (db.getBioEntityId(entry.getType(), entry.getName()) == Dictionary.UNKNOWN) {
                 logger.error("The dictionary file contains entity {} of type {} which doesn't exist in the database!",
                         entry.getName(), entry.getType());
                 return true;
             }
-        };
+            size++;
+        }
+
+        // Then check if the dictionaries have the same size
+        if (size != db.size()) {
+            logger.error("The dictionary loaded from the database contains {} entities, while the " +
+                    "dictionary files contain {}", db.size(), size);
+            return true;
+        }
 
         return false;
     }
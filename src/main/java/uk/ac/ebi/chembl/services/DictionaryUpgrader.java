@@ -0,0 +1,297 @@
+package uk.ac.ebi.chembl.services;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import uk.ac.ebi.chembl.annotator.DictionaryEntry;
+import uk.ac.ebi.chembl.annotator.DictionaryNames;
+import uk.ac.ebi.chembl.annotator.DictionaryReader;
+import uk.ac.ebi.chembl.annotator.ahocorasick.AhoCorasickAutomaton;
+import uk.ac.ebi.chembl.model.AnnotatorMetadata;
+import uk.ac.ebi.chembl.model.Dictionary;
+import uk.ac.ebi.chembl.model.PatentContent;
+import uk.ac.ebi.chembl.model.PatentMetadata;
+import uk.ac.ebi.chembl.storage.DictionaryRepository;
+import uk.ac.ebi.chembl.storage.PatentMetadataRepository;
+import uk.ac.ebi.chembl.storage.PatentXmlRepository;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.sql.SQLException;
+import java.text.NumberFormat;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+
+/**
+ * Upgrades the dictionary in the database to a newer version of the
+ * dictionary files, without annotating every patent again
+ *
+ * The entities that were added are saved, and the ones that were removed are
+ * deleted along with their annotations. Only the patents where the names
+ * added to the dictionary appear are annotated again: they are found by
+ * scanning the patents already annotated for those names, as whole words and
+ * ignoring case (like the aho-corasick annotator does), which is much faster
+ * than annotating them.
+ *
+ * The added names are those of the new entities, and the names that existing
+ * entities didn't have before (e.g., new synonyms). The latter are found by
+ * comparing the names with the ones kept (see DictionaryNames) when the
+ * dictionary was last persisted. If they weren't kept, only the names of the
+ * new entities are looked for.
+ *
+ * The scan can only find the names the DictionaryReader reports, so matches
+ * that depend on the annotator's own normalization of the text (e.g.,
+ * Tagger's handling of hyphens and plurals) may be missed. Names removed from
+ * entities that are still in the dictionary aren't looked for either: their
+ * annotations stay until the patents are annotated again.
+ */
+@Service
+public class DictionaryUpgrader {
+
+    /** How often to report the progress of the scan */
+    private static final int PROGRESS_INTERVAL = 100_000;
+
+    private Logger logger = LoggerFactory.getLogger(getClass());
+
+    @Autowired
+    private DictionaryReader reader;
+
+    @Autowired
+    private DictionaryRepository dictionaryRepository;
+
+    @Autowired
+    private PatentMetadataRepository patentMetadataRepository;
+
+    @Autowired
+    private PatentXmlRepository xmlRepository;
+
+    @Autowired
+    private PatentXmlParser parser;
+
+    @Value("${annotator.threads}")
+    private int nThreads;
+
+    /** Where the names of the dictionary are kept between upgrades */
+    @Value("${dictionary.snapshot.home:snapshots}")
+    private String snapshotHome;
+
+    private NumberFormat nf = NumberFormat.getInstance();
+
+
+    /**
+     * Upgrades the dictionary of the annotator in the database (db) to the
+     * one in the dictionary files
+     */
+    public void upgrade(AnnotatorMetadata annotator, Dictionary db, String fingerprint)
+            throws IOException, SQLException {
+        logger.info("Upgrading the dictionary for {}...", annotator.getName());
+
+        // The entities in the files, and those of them that aren't in the
+        // database
+        Dictionary.Builder files = Dictionary.builder(annotator);
+        List<DictionaryEntry> added = new ArrayList<>();
+        try (Stream<DictionaryEntry> entries = reader.read()) {
+            entries.forEach(entry -> {
+                files.add(0, entry.getType(), entry.getName());
+                if (db.getBioEntityId(entry.getType(), entry.getName()) == Dictionary.UNKNOWN) {
+                    added.add(entry);
+                }
+            });
+        }
+
+        // The entities in the database but not in the files
+        Dictionary fs = files.build();
+        List<Integer> removed = new ArrayList<>();
+        db.forEach((id, type, name) -> {
+            if (fs.getBioEntityId(type, name) == Dictionary.UNKNOWN) {
+                removed.add(id);
+            }
+        });
+
+        logger.info("{} entities were added to the dictionary and {} were removed", nf.format(added.size()),
+                nf.format(removed.size()));
+
+        Set<String> names = addedNames(annotator, added);
+        List<Long> patentIds = names.isEmpty() ? Collections.emptyList() : findPatentsWith(annotator, names);
+
+        dictionaryRepository.upgrade(added, removed, patentIds, fingerprint, annotator);
+        keepNames(annotator, fingerprint);
+    }
+
+
+    /**
+     * Keeps the names of the dictionary in the files, which has the given
+     * fingerprint, so that the names added to it can be found on the next
+     * upgrade
+     */
+    public void keepNames(AnnotatorMetadata annotator, String fingerprint) throws IOException {
+        DictionaryNames.write(snapshotHome, annotator, fingerprint, reader);
+    }
+
+
+    /**
+     * Keeps the names of the dictionary unless they were already kept for
+     * the same fingerprint
+     */
+    public void keepNamesIfMissing(AnnotatorMetadata annotator, String fingerprint) throws IOException {
+        Optional<DictionaryNames> kept = DictionaryNames.read(snapshotHome, annotator);
+        if (!kept.isPresent() || !kept.get().getFingerprint().equals(fingerprint)) {
+            keepNames(annotator, fingerprint);
+        }
+    }
+
+
+    /**
+     * Returns the names in the files that the dictionary in the database
+     * didn't have: all the names added since the names were kept, if they
+     * were kept for the dictionary in the database, or else the names of the
+     * new entities
+     */
+    private Set<String> addedNames(AnnotatorMetadata annotator, List<DictionaryEntry> added) throws IOException {
+        Optional<DictionaryNames> kept = DictionaryNames.read(snapshotHome, annotator);
+        if (kept.isPresent() && kept.get().getFingerprint().equals(dictionaryRepository.getFingerprint(annotator))) {
+            Set<String> names = kept.get().addedNames(reader);
+            logger.info("{} names were added to the dictionary", nf.format(names.size()));
+            return names;
+        }
+
+        logger.warn("The names of the dictionary in the database weren't kept. Only the patents with the names " +
+                "of the new entities will be annotated again");
+        if (added.isEmpty()) {
+            return Collections.emptySet();
+        }
+
+        Dictionary wanted = toDictionary(annotator, added.stream());
+        Set<String> names = new HashSet<>();
+        reader.forEachName((entry, name) -> {
+            if (wanted.getBioEntityId(entry.getType(), entry.getName()) != Dictionary.UNKNOWN) {
+                names.add(name);
+            }
+        });
+        return names;
+    }
+
+
+    /**
+     * Finds the patents annotated by the annotator where any of the given
+     * names appear
+     */
+    private List<Long> findPatentsWith(AnnotatorMetadata annotator, Set<String> names) throws IOException {
+        Set<String> normalized = new HashSet<>();
+        for (String name : names) {
+            if (!name.isEmpty()) {
+                normalized.add(normalize(name));
+            }
+        }
+
+        if (normalized.isEmpty()) {
+            return Collections.emptyList();
+        }
+
+        List<String> patterns = new ArrayList<>(normalized);
+        Collections.sort(patterns);
+        AhoCorasickAutomaton automaton = AhoCorasickAutomaton.build(patterns);
+
+        List<PatentMetadata> patents = patentMetadataRepository.getAnnotatedPatents(annotator.getId());
+        logger.info("Scanning {} patents for the {} names added to the dictionary...", nf.format(patents.size()),
+                nf.format(patterns.size()));
+
+        return scan(patents, automaton);
+    }
+
+
+    /**
+     * Returns the ids of the patents where any of the patterns of the
+     * automaton appear. Patents that can't be read are returned too, so that
+     * they are annotated again rather than left out of date.
+     */
+    private List<Long> scan(List<PatentMetadata> patents, AhoCorasickAutomaton automaton) throws IOException {
+        long start = System.currentTimeMillis();
+
+        Queue<Long> found = new ConcurrentLinkedQueue<>();
+        AtomicInteger next = new AtomicInteger();
+
+        ExecutorService executor = Executors.newFixedThreadPool(nThreads);
+        try {
+            List<Future<?>> workers = new ArrayList<>();
+            for (int i = 0; i < nThreads; i++) {
+                workers.add(executor.submit(() -> {
+                    int index;
+                    while ((index = next.getAndIncrement()) < patents.size()) {
+                        PatentMetadata patent = patents.get(index);
+                        if (contains(patent, automaton)) {
+                            found.add(patent.getId());
+                        }
+
+                        if ((index + 1) % PROGRESS_INTERVAL == 0) {
+                            logger.info("Scanned {} patents ({}%)", index + 1, 100L * (index + 1) / patents.size());
+                        }
+                    }
+                    return null;
+                }));
+            }
+
+            for (Future<?> worker : workers) {
+                try {
+                    worker.get();
+                } catch (ExecutionException ex) {
+                    throw new IllegalStateException("Unable to scan the patents", ex.getCause());
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while scanning the patents");
+        } finally {
+            executor.shutdownNow();
+        }
+
+        logger.info("Found the added names in {} patents in {} s", nf.format(found.size()),
+                (System.currentTimeMillis() - start) / 1000);
+
+        return new ArrayList<>(found);
+    }
+
+
+    /**
+     * Does any of the patterns of the automaton appear in the fields of the
+     * patent that are annotated?
+     */
+    private boolean contains(PatentMetadata patent, AhoCorasickAutomaton automaton) {
+        PatentContent content;
+        try {
+            content = parser.parse(xmlRepository.readChars(patent.getPatentNumber()));
+        } catch (IOException ex) {
+            logger.warn("Unable to read {}. It will be annotated again", patent.getPatentNumber(), ex);
+            return true;
+        }
+
+        return Stream.of(content.getClaims(), content.getAbstracts(), content.getDescriptions(),
+                content.getTitles(), content.getNonPatentCitations())
+                .flatMap(List::stream)
+                .anyMatch(text -> !automaton.match(text).isEmpty());
+    }
+
+
+    /**
+     * Puts the entries in a Dictionary, to look them up by type and name
+     */
+    private static Dictionary toDictionary(AnnotatorMetadata annotator, Stream<DictionaryEntry> entries) {
+        Dictionary.Builder builder = Dictionary.builder(annotator);
+        entries.forEach(entry -> builder.add(0, entry.getType(), entry.getName()));
+        return builder.build();
+    }
+
+
+    private static String normalize(String name) {
+        char[] chars = name.toCharArray();
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = AhoCorasickAutomaton.normalize(chars[i]);
+        }
+        return new String(chars);
+    }
+}
@@ -0,0 +1,75 @@
+package uk.ac.ebi.chembl.services;
+
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import uk.ac.ebi.chembl.storage.PatentXmlRepository;
+import uk.ac.ebi.chembl.storage.xml.DirectoryPatentXmlStore;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.text.NumberFormat;
+import java.util.Iterator;
+import java.util.stream.Stream;
+
+
+/**
+ * One-off migration of the patents' XML from the old directory layout
+ * (authority/xx/yy/patent-number.xml.gz) into segments
+ *
+ * The gzipped bytes are copied as they are. Patents that are already in the
+ * segments are skipped, so the migration can be interrupted and resumed. The
+ * original files are left untouched and can be deleted once the migration
+ * finishes.
+ */
+@Component
+public class PatentXmlMigrator {
+
+    private Logger logger = LoggerFactory.getLogger(getClass());
+
+    @Autowired
+    private PatentXmlRepository repository;
+
+    @Value("${patents.xml.home}")
+    private String patentsXmlHome;
+
+    private NumberFormat nf = NumberFormat.getInstance();
+
+
+    public void migrate() throws IOException {
+        if (!repository.isSegmented()) {
+            throw new IllegalStateException("Please set patents.xml.storage = segments before migrating the patents' XML");
+        }
+
+        logger.info("Migrating the patents' XML in {} into segments...", patentsXmlHome);
+
+        DirectoryPatentXmlStore source = new DirectoryPatentXmlStore(patentsXmlHome);
+
+        int copied = 0;
+        int skipped = 0;
+        try (Stream<String> patentNumbers = source.patentNumbers()) {
+            Iterator<String> it = patentNumbers.iterator();
+            while (it.hasNext()) {
+                String patentNumber = it.next();
+                if (repository.exists(patentNumber)) {
+                    skipped++;
+                    continue;
+                }
+
+                try (InputStream in = source.open(patentNumber)) {
+                    repository.writeGzipped(patentNumber, IOUtils.toByteArray(in));
+                }
+
+                if (++copied % 100000 == 0) {
+                    logger.info("Migrated patent #{}", nf.format(copied));
+                }
+            }
+        }
+
+        logger.info("Migrated {} patents ({} were already in the segments). The old files can now be deleted.",
+                nf.format(copied), nf.format(skipped));
+    }
+}
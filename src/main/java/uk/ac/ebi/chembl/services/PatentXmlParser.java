@@ -6,121 +6,202 @@ import org.slf4j.LoggerFactory;
 import org.springframework.stereotype.Component;
 import uk.ac.ebi.chembl.model.PatentContent;
 
+import java.nio.CharBuffer;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Map;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 /**
  * Parses the XML of a patent
  *
- * Uses simple regular expressions to detect the beginning and the end of
- * certain XML tags and it doesn't strip out inner tags or attributes, so it's
- * not exactly what's usually considered to be an "XML parser", but it works
- * well enough for our purposes.
+ * Detects the beginning and the end of certain XML tags and it doesn't strip
+ * out inner tags or attributes, so it's not exactly what's usually considered
+ * to be an "XML parser", but it works well enough for our purposes.
+ *
+ * All the relevant sections are extracted in a single pass over the XML. The
+ * boundaries of each section are exactly the same as the ones given by the
+ * regular expression "<tag.*?</tag>" (with DOTALL), applied independently for
+ * each tag.
  */
 @Component
 public class PatentXmlParser {
 
-    private Logger logger = LoggerFactory.getLogger(getClass());
+    /** The tags we extract. The order matters (see parse()) */
+    private static final String[] TAGS = {
+            "abstract", "description", "claims", "invention-title", "non-patent-citations"
+    };
 
-    /** Regular expression patterns used to extract some fields */
-    private Map<String, Pattern> patterns;
+    private static final int ABSTRACT = 0;
+    private static final int DESCRIPTION = 1;
+    private static final int CLAIMS = 2;
+    private static final int TITLE = 3;
+    private static final int CITATIONS = 4;
 
+    private static final String UCID = "ucid=\"";
 
-    public PatentXmlParser() {
-        patterns = new HashMap<>();
-        patterns.put("abstract", Pattern.compile("<abstract.*?</abstract>", Pattern.DOTALL));
-        patterns.put("description", Pattern.compile("<description.*?</description>", Pattern.DOTALL));
-        patterns.put("claims", Pattern.compile("<claims.*?</claims>", Pattern.DOTALL));
-        patterns.put("invention-title", Pattern.compile("<invention-title.*?</invention-title>", Pattern.DOTALL));
-        patterns.put("non-patent-citations", Pattern.compile("<non-patent-citations.*?</non-patent-citations>", Pattern.DOTALL));
-    }
+    private static final String LANG = "lang=\"";
+
+    private Logger logger = LoggerFactory.getLogger(getClass());
 
 
     /**
      * Parses a patent XML and extracts the relevant fields out of it
      */
     public PatentContent parse(String xml) {
-        String patentNumber = extractExternalId(xml);
-        List<String> abstracts = extractInnerXml("abstract", xml);
-        List<String> descriptions = extractInnerXml("description", xml);
-        List<String> claims = extractInnerXml("claims", xml);
-        List<String> titles = extractInnerXml("invention-title", xml);
-        List<String> nonPatentCitations = extractInnerXml("non-patent-citations", xml);
-
-        return new PatentContent(patentNumber, abstracts, descriptions, claims, titles, nonPatentCitations);
+        return parse(xml.toCharArray(), 0, xml.length());
     }
 
 
     /**
-     * Extracts multiple occurrences of the same tag within the XML
+     * Parses a patent XML held in a character buffer (from its position up to
+     * its limit) and extracts the relevant fields out of it
      *
-     * Each occurrence corresponds to a different language. We ignore all
-     * languages other than English.
+     * Only the sections that are kept are copied out of the buffer, so the
+     * buffer may be reused as soon as this method returns.
      */
-    private List<String> extractInnerXml(String tag, String xml) {
-        Pattern pattern = patterns.get(tag);
-        Matcher matcher = pattern.matcher(xml);
-
-        List<String> results = new ArrayList<>();
-        while (matcher.find()) {
-            String match = matcher.group(0);
-            String lang = extractLang(match);
-
-            // <non-patent-citations> doesn't have the lang attribute, so don't
-            // show any warnings if there is no lang attribute
-            if (lang == null) {
-                results.add(match);
-            } else {
-                switch (lang.toUpperCase()) {
-                    case "EN":
-                    case "\">": // Matches <... lang=""> which happens once in a while.
-                                // The text is usually in English, however.
-                        results.add(match);
-                        break;
-                    case "DE":
-                    case "FR":
-                    case "ES":
-                    case "JA":
-                    case "RU":
-                    case "FI":
-                    case "NL":
-                    case "PT":
-                    case "KO":
-                    case "SV":
-                    case "DA":
-                    case "ZH":
-                    case "NO":
-                    case "IT":
-                    case "AR":
-                    case "HU":
-                        // Ignore these languages
-                        break;
-                    default:
-                        logger.warn("Unexpected lang {} in {}", lang, match);
-                        break;
+    public PatentContent parse(CharBuffer xml) {
+        int from = xml.arrayOffset() + xml.position();
+        return parse(xml.array(), from, from + xml.remaining());
+    }
+
+
+    private PatentContent parse(char[] xml, int from, int to) {
+        List<List<String>> results = new ArrayList<>(TAGS.length);
+        for (int t = 0; t < TAGS.length; t++) {
+            results.add(new ArrayList<>());
+        }
+
+        // Where the current occurrence of each tag starts (-1 if we are not
+        // inside that tag) and where its first lang attribute is
+        int[] openAt = new int[TAGS.length];
+        int[] langAt = new int[TAGS.length];
+        Arrays.fill(openAt, -1);
+        Arrays.fill(langAt, -1);
+
+        int ucidAt = -1;
+
+        for (int i = from; i < to; i++) {
+            char ch = xml[i];
+
+            if (ch == '<') {
+                boolean closing = i + 1 < to && xml[i + 1] == '/';
+
+                for (int t = 0; t < TAGS.length; t++) {
+                    String tag = TAGS[t];
+
+                    if (openAt[t] == -1) {
+                        // Look for <tag (which may be followed by anything)
+                        if (!closing && startsWith(xml, to, i + 1, tag)) {
+                            openAt[t] = i;
+                            langAt[t] = -1;
+                        }
+                    } else if (closing && startsWith(xml, to, i + 2, tag) && startsWith(xml, to, i + 2 + tag.length(), ">")) {
+                        // Found the first </tag> after the opening tag
+                        int end = i + tag.length() + 3;
+                        if (isRelevant(xml, openAt[t], end, langAt[t])) {
+                            results.get(t).add(new String(xml, openAt[t], end - openAt[t]));
+                        }
+
+                        openAt[t] = -1;
+                    }
+                }
+            } else if (ch == 'l') {
+                if (startsWith(xml, to, i, LANG)) {
+                    // The first lang attribute within each open tag is the one
+                    // that counts
+                    for (int t = 0; t < TAGS.length; t++) {
+                        if (openAt[t] != -1 && langAt[t] == -1) {
+                            langAt[t] = i;
+                        }
+                    }
+                }
+            } else if (ch == 'u') {
+                if (ucidAt == -1 && startsWith(xml, to, i, UCID)) {
+                    ucidAt = i;
                 }
             }
         }
 
-        return results;
+        String patentNumber = extractExternalId(xml, to, ucidAt);
+
+        return new PatentContent(patentNumber, results.get(ABSTRACT), results.get(DESCRIPTION), results.get(CLAIMS),
+                results.get(TITLE), results.get(CITATIONS));
     }
 
 
-    private String extractExternalId(String xml) {
-        String UCID = "ucid=\"";
-        int index = xml.indexOf(UCID);
-        int endQuoteIndex = xml.indexOf("\"", index + UCID.length());
-        return xml.substring(index + UCID.length(), endQuoteIndex);
+    /**
+     * Decides whether to keep an occurrence of a tag, based on its language
+     *
+     * Each occurrence corresponds to a different language. We ignore all
+     * languages other than English.
+     */
+    private boolean isRelevant(char[] xml, int start, int end, int langAt) {
+        // <non-patent-citations> doesn't have the lang attribute, so don't
+        // show any warnings if there is no lang attribute
+        if (langAt == -1) {
+            return true;
+        }
+
+        String lang = new String(xml, langAt + LANG.length(), 2);
+        switch (lang.toUpperCase()) {
+            case "EN":
+            case "\">": // Matches <... lang=""> which happens once in a while.
+                        // The text is usually in English, however.
+                return true;
+            case "DE":
+            case "FR":
+            case "ES":
+            case "JA":
+            case "RU":
+            case "FI":
+            case "NL":
+            case "PT":
+            case "KO":
+            case "SV":
+            case "DA":
+            case "ZH":
+            case "NO":
+            case "IT":
+            case "AR":
+            case "HU":
+                // Ignore these languages
+                return false;
+            default:
+                logger.warn("Unexpected lang {} in {}", lang, new String(xml, start, end - start));
+                return false;
+        }
+    }
+
+
+    private String extractExternalId(char[] xml, int to, int ucidAt) {
+        int start = ucidAt + UCID.length();
+        int endQuoteIndex = start;
+        while (ucidAt != -1 && endQuoteIndex < to && xml[endQuoteIndex] != '"') {
+            endQuoteIndex++;
+        }
+
+        if (ucidAt == -1 || endQuoteIndex == to) {
+            throw new IllegalArgumentException("The patent XML doesn't have a ucid attribute");
+        }
+
+        return new String(xml, start, endQuoteIndex - start);
     }
 
 
-    private String extractLang(String xml) {
-        String LANG = "lang=\"";
-        int index = xml.indexOf(LANG);
-        return index == -1 ? null : xml.substring(index + LANG.length(), index + LANG.length() + 2);
+    /**
+     * Checks if the given text occurs in the XML at the given index
+     */
+    private static boolean startsWith(char[] xml, int to, int index, String text) {
+        if (index + text.length() > to) {
+            return false;
+        }
+
+        for (int j = 0; j < text.length(); j++) {
+            if (xml[index + j] != text.charAt(j)) {
+                return false;
+            }
+        }
+
+        return true;
     }
 }
@@ -2,30 +2,72 @@ package uk.ac.ebi.chembl.storage;
 
 import org.skife.jdbi.v2.sqlobject.CreateSqlObject;
 import org.skife.jdbi.v2.sqlobject.Transaction;
+import org.skife.jdbi.v2.sqlobject.mixins.GetHandle;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import uk.ac.ebi.chembl.model.*;
 import uk.ac.ebi.chembl.model.Dictionary;
-import uk.ac.ebi.chembl.storage.dao.AnnotationDao;
 import uk.ac.ebi.chembl.storage.dao.PatentMetadataDao;
 
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.SQLWarning;
+import java.sql.Statement;
 import java.util.*;
 
 import static java.util.stream.Collectors.toList;
 
 /**
  * Repository for Patent Annotations
+ *
+ * The annotations are bound straight from the columns of PatentAnnotations
+ * with plain JDBC, rather than through a JDBI batch, which would need a list
+ * of boxed values per column.
  */
-public abstract class AnnotationRepository {
+public abstract class AnnotationRepository implements GetHandle {
 
-    private Logger logger = LoggerFactory.getLogger(getClass().getSuperclass());
+    private static final String INSERT_ANNOTATION =
+            "INSERT INTO annotation (patent_id, field_id, rank, bio_entity_id, start_offset, end_offset, term) " +
+            "       VALUES (?, ?, ?, ?, ?, ?, ?)";
 
-    @CreateSqlObject
-    protected abstract AnnotationDao annotationDao();
+    private static final String INSERT_OCCURRENCES =
+            "INSERT INTO bioentity_patent_annotation_count (bio_entity_id, patent_id, field_id, term, frequency) " +
+            "       VALUES (?, ?, ?, ?, ?)";
+
+    /** How many rows to send to the database at a time */
+    private static final int INSERT_BATCH_SIZE = 10_000;
+
+    /** The file name is ignored: the rows are read from the stream set on the statement */
+    private static final String LOAD_ANNOTATIONS =
+            "LOAD DATA LOCAL INFILE 'annotation.tsv' INTO TABLE annotation CHARACTER SET utf8 " +
+            "     (patent_id, field_id, rank, bio_entity_id, start_offset, end_offset, term)";
+
+    private static final String LOAD_OCCURRENCES =
+            "LOAD DATA LOCAL INFILE 'bioentity_patent_annotation_count.tsv' " +
+            "     INTO TABLE bioentity_patent_annotation_count CHARACTER SET utf8 " +
+            "     (bio_entity_id, patent_id, field_id, term, frequency)";
+
+    private Logger logger = LoggerFactory.getLogger(getClass().getSuperclass());
 
     @CreateSqlObject
     protected abstract PatentMetadataDao patentMetadataDao();
 
+    /** Save the annotations with LOAD DATA LOCAL INFILE, instead of batches of INSERTs? */
+    private boolean loadData = false;
+
+
+    /**
+     * Saves the annotations with LOAD DATA LOCAL INFILE, streaming them to
+     * the server, instead of batches of INSERTs
+     *
+     * Each table is then loaded in a single statement per batch of patents,
+     * in the same transaction as the INSERTs would be. The server must allow
+     * local_infile, and the connection allowLoadLocalInfile.
+     */
+    public void setLoadData(boolean loadData) {
+        this.loadData = loadData;
+    }
+
 
     /**
      * Saves a batch of annotations into the database
@@ -42,17 +84,24 @@ public abstract class AnnotationRepository {
      */
     @Transaction
     public void saveAnnotations(List<PatentMetadata> metadatas, List<PatentAnnotations> annotations,
-                                Dictionary dictionary) {
+                                AnnotatorMetadata annotator) throws SQLException {
         assert (metadatas.size() == annotations.size());
 
-        int annotatorId = dictionary.getAnnotator().getId();
+        int annotatorId = annotator.getId();
 
-        // Save each individual annotation
-        saveRawAnnotations(metadatas, annotations, dictionary);
+        // The ids were resolved by the annotators
+        checkBioEntityIds(annotations);
 
-        // Counts the occurrences of each Biological Entity per Patent and saves that
-        Map<BioEntityPerPatentKey, Integer> occurrences = countBioEntitiesPerPatent(metadatas, annotations, dictionary);
-        saveBioEntityOccurrencesPerPatent(occurrences);
+        // Save each individual annotation, counting the occurrences of each
+        // Biological Entity per Patent as it goes, and then the occurrences
+        BioEntityOccurrences occurrences = new BioEntityOccurrences();
+        if (loadData) {
+            loadRawAnnotations(metadatas, annotations, occurrences);
+            loadBioEntityOccurrencesPerPatent(occurrences);
+        } else {
+            saveRawAnnotations(metadatas, annotations, occurrences);
+            saveBioEntityOccurrencesPerPatent(occurrences);
+        }
 
         // Marks the patents as annotated
         markPatentsAsAnnotated(metadatas, annotatorId);
@@ -60,133 +109,190 @@ public abstract class AnnotationRepository {
 
 
     /**
-     * Saves each individual annotation
+     * Saves each individual annotation, and counts them
      */
     private void saveRawAnnotations(List<PatentMetadata> metadatas, List<PatentAnnotations> annotations,
-                                    Dictionary dictionary) {
-        assert(metadatas.size() == annotations.size());
-
-        // Deconstruct the annotations into lists with its components
-        List<Long> patentIds = new ArrayList<>();
-        List<Integer> fieldIds = new ArrayList<>();
-        List<Integer> ranks = new ArrayList<>();
-        List<Long> bioEntityIds = new ArrayList<>();
-        List<Integer> startings = new ArrayList<>();
-        List<Integer> endings = new ArrayList<>();
-        List<String> terms = new ArrayList<>();
-
-        for (int i = 0; i < metadatas.size(); i++) {
-            PatentMetadata metadata = metadatas.get(i);
-            PatentAnnotations patentAnnotations = annotations.get(i);
-
-            if (!metadata.getPatentNumber().equals(patentAnnotations.getPatentNumber())) {
-                throw new RuntimeException("The metadata and annotations could not be paired!");
+                                    BioEntityOccurrences occurrences) throws SQLException {
+        AnnotationRows annotationRows = new AnnotationRows(metadatas, annotations, occurrences);
+
+        int rows = 0;
+        try (PreparedStatement statement = getHandle().getConnection().prepareStatement(INSERT_ANNOTATION)) {
+            while (annotationRows.next()) {
+                statement.setLong(1, annotationRows.patentId());
+                statement.setInt(2, annotationRows.fieldId());
+                statement.setInt(3, annotationRows.rank());
+                statement.setInt(4, annotationRows.bioEntityId());
+                statement.setInt(5, annotationRows.start());
+                statement.setInt(6, annotationRows.end());
+                statement.setString(7, annotationRows.term());
+                statement.addBatch();
+
+                if (++rows % INSERT_BATCH_SIZE == 0) {
+                    statement.executeBatch();
+                }
             }
 
-            long patentId = metadata.getId();
-            Map<Field, List<List<Annotation>>> fieldAnnotations = patentAnnotations.getAnnotations();
-
-            fieldAnnotations.forEach((field, annotationsPerRank) -> {
-                for (int rank = 0; rank < annotationsPerRank.size(); rank++) {
-                    List<Annotation> annots = annotationsPerRank.get(rank);
-
-                    for (Annotation annotation : annots) {
-                        Long bioEntityId = dictionary.getBioEntityId(annotation.getType(), annotation.getName());
-                        if (bioEntityId == null) {
-                            logger.error("Couldn't find biological entity {} of type {} in the database.",
-                                    annotation.getName(), annotation.getType());
-                        }
-
-                        // Terms larger than 127 characters don't fit in the database
-                        if (annotation.getTerm().length() > Annotation.MAX_TERM_LENGTH) {
-                            logger.warn("Skipping annotation for document {} because the term is too big: '{}'",
-                                    metadata.getPatentNumber(), annotation.getTerm());
-                            continue;
-                        }
-
-                        patentIds.add(patentId);
-                        fieldIds.add(field.id());
-                        ranks.add(rank);
-                        bioEntityIds.add(bioEntityId);
-                        startings.add(annotation.getStart());
-                        endings.add(annotation.getEnd());
-                        terms.add(annotation.getTerm());
-                    }
-                }
-            });
+            if (rows % INSERT_BATCH_SIZE != 0) {
+                // Persists the remaining annotations
+                statement.executeBatch();
+            }
         }
+    }
+
 
-        if (!patentIds.isEmpty()) {
-            // Persists the annotations
-            annotationDao().saveAnnotations(patentIds, fieldIds, ranks, bioEntityIds, startings, endings, terms);
+    /**
+     * Saves each individual annotation with LOAD DATA, in a single statement,
+     * and counts them
+     */
+    private void loadRawAnnotations(List<PatentMetadata> metadatas, List<PatentAnnotations> annotations,
+                                    BioEntityOccurrences occurrences) throws SQLException {
+        if (annotations.stream().allMatch(patentAnnotations -> patentAnnotations.size() == 0)) {
+            return;
         }
+
+        AnnotationRows annotationRows = new AnnotationRows(metadatas, annotations, occurrences);
+        loadData(LOAD_ANNOTATIONS, out -> {
+            if (!annotationRows.next()) {
+                return false;
+            }
+
+            out.field(annotationRows.patentId())
+                    .field(annotationRows.fieldId())
+                    .field(annotationRows.rank())
+                    .field(annotationRows.bioEntityId())
+                    .field(annotationRows.start())
+                    .field(annotationRows.end())
+                    .field(annotationRows.term())
+                    .endRow();
+            return true;
+        });
     }
 
 
     /**
      * Saves the number of occurrences of each Biological Entity per Patent
      */
-    private void saveBioEntityOccurrencesPerPatent(Map<BioEntityPerPatentKey, Integer> occurrences) {
-        // Deconstruct the map into lists with its components
-        List<Long> bioEntityIds = new ArrayList<>();
-        List<Long> patentIds = new ArrayList<>();
-        List<Integer> fieldIds = new ArrayList<>();
-        List<String> terms = new ArrayList<>();
-        List<Integer> frequencies = new ArrayList<>();
-
-        occurrences.forEach((key, frequency) -> {
-            // Ignore long terms, because they don't fit in the database anyway
-            if (key.getTerm().length() <= Annotation.MAX_TERM_LENGTH) {
-                bioEntityIds.add(key.getBioEntityId());
-                patentIds.add(key.getPatentId());
-                fieldIds.add(key.getFieldId());
-                terms.add(key.getTerm());
-                frequencies.add(frequency);
+    private void saveBioEntityOccurrencesPerPatent(BioEntityOccurrences occurrences) throws SQLException {
+        int rows = 0;
+        try (PreparedStatement statement = getHandle().getConnection().prepareStatement(INSERT_OCCURRENCES)) {
+            for (int row = 0; row < occurrences.size(); row++) {
+                String term = occurrences.getTerm(row);
+
+                // Ignore long terms, because they don't fit in the database anyway
+                if (term.length() <= Annotation.MAX_TERM_LENGTH) {
+                    statement.setLong(1, occurrences.getBioEntityId(row));
+                    statement.setLong(2, occurrences.getPatentId(row));
+                    statement.setInt(3, occurrences.getFieldId(row));
+                    statement.setString(4, term);
+                    statement.setInt(5, occurrences.getFrequency(row));
+                    statement.addBatch();
+
+                    if (++rows % INSERT_BATCH_SIZE == 0) {
+                        statement.executeBatch();
+                    }
+                }
             }
-        });
 
-        if (!occurrences.isEmpty()) {
-            annotationDao().saveBioEntityOccurrencesPerPatent(bioEntityIds, patentIds, fieldIds, terms, frequencies);
+            if (rows % INSERT_BATCH_SIZE != 0) {
+                statement.executeBatch();
+            }
         }
     }
 
 
     /**
-     * Counts the number of occurrences of each Biological Entity per Patent
+     * Saves the number of occurrences of each Biological Entity per Patent
+     * with LOAD DATA, in a single statement
      */
-    private Map<BioEntityPerPatentKey, Integer> countBioEntitiesPerPatent(List<PatentMetadata> metadatas,
-                                                                          List<PatentAnnotations> annotations,
-                                                                          Dictionary dictionary) {
+    private void loadBioEntityOccurrencesPerPatent(BioEntityOccurrences occurrences) throws SQLException {
+        if (occurrences.size() == 0) {
+            return;
+        }
 
-        // For each patent...
-        Map<BioEntityPerPatentKey, Integer> result = new HashMap<>();
-        for (int i = 0; i < metadatas.size(); i++) {
-            PatentMetadata metadata = metadatas.get(i);
-            PatentAnnotations patentAnnotations = annotations.get(i);
+        int[] next = {0};
+        loadData(LOAD_OCCURRENCES, out -> {
+            while (next[0] < occurrences.size()) {
+                int row = next[0]++;
+                String term = occurrences.getTerm(row);
+
+                // Ignore long terms, because they don't fit in the database anyway
+                if (term.length() <= Annotation.MAX_TERM_LENGTH) {
+                    out.field(occurrences.getBioEntityId(row))
+                            .field(occurrences.getPatentId(row))
+                            .field(occurrences.getFieldId(row))
+                            .field(term)
+                            .field(occurrences.getFrequency(row))
+                            .endRow();
+                    return true;
+                }
+            }
 
-            long patentId = metadata.getId();
-            Map<Field, List<List<Annotation>>> fieldAnnotations = patentAnnotations.getAnnotations();
+            return false;
+        });
+    }
 
-            // For each field...
-            fieldAnnotations.forEach((field, annotationsPerRank) -> {
-                int fieldId = field.id();
 
-                // For each rank (we ignore the rank)
-                for (List<Annotation> annots : annotationsPerRank) {
+    /**
+     * Runs a LOAD DATA LOCAL INFILE statement, streaming the given rows as
+     * its file
+     *
+     * LOAD DATA LOCAL has IGNORE semantics: rows the server can't insert as
+     * they are (duplicate keys, values that don't fit) are skipped or coerced
+     * with just a warning. Any warning, or any row missing from the update
+     * count, fails the statement, so that the transaction rolls back as it
+     * would with the INSERTs.
+     */
+    private void loadData(String sql, TabSeparatedInputStream.Rows rows) throws SQLException {
+        int[] streamed = {0};
+        TabSeparatedInputStream in = new TabSeparatedInputStream(out -> {
+            boolean written = rows.writeNext(out);
+            if (written) {
+                streamed[0]++;
+            }
+            return written;
+        });
 
-                    // For each annotation...
-                    for (Annotation annotation : annots) {
-                        Long bioEntityId = dictionary.getBioEntityId(annotation.getType(), annotation.getName());
-                        String term = annotation.getTerm();
+        try (Statement statement = getHandle().getConnection().createStatement()) {
+            statement.unwrap(com.mysql.jdbc.Statement.class).setLocalInfileInputStream(in);
+            statement.execute(sql);
+
+            int loaded = statement.getUpdateCount();
+            SQLWarning warnings = statement.getWarnings();
+            if (loaded != streamed[0] || warnings != null) {
+                StringBuilder message = new StringBuilder("LOAD DATA loaded ")
+                        .append(loaded).append(" of ").append(streamed[0]).append(" rows");
+                for (SQLWarning warning = warnings; warning != null; warning = warning.getNextWarning()) {
+                    message.append("; ").append(warning.getMessage());
+                }
+                throw new SQLException(message.toString(), warnings);
+            }
+        }
+    }
 
-                        BioEntityPerPatentKey key = new BioEntityPerPatentKey(bioEntityId, patentId, fieldId, term);
-                        result.put(key, result.getOrDefault(key, 0) + 1);
-                    }
+
+    /**
+     * Fails if the annotators found entities that aren't in the database,
+     * logging each of them
+     *
+     * Their annotations can't be saved, as bio_entity_id can't be NULL, and
+     * LOAD DATA would silently turn the NULLs into zeros. Rejecting them here
+     * fails both paths the same way, before anything is written.
+     */
+    private void checkBioEntityIds(List<PatentAnnotations> annotations) throws SQLException {
+        int unknown = 0;
+        for (PatentAnnotations patentAnnotations : annotations) {
+            for (int entity = 0; entity < patentAnnotations.entityCount(); entity++) {
+                if (patentAnnotations.getBioEntityId(entity) == Dictionary.UNKNOWN) {
+                    logger.error("Couldn't find biological entity {} of type {} in the database.",
+                            patentAnnotations.getEntityName(entity), patentAnnotations.getEntityType(entity));
+                    unknown++;
                 }
-            });
+            }
         }
 
-        return result;
+        if (unknown > 0) {
+            throw new SQLException(unknown + " of the biological entities found aren't in the database");
+        }
     }
 
 
@@ -199,119 +305,121 @@ public abstract class AnnotationRepository {
         List<Long> allPatentIds = metadatas.stream().map(PatentMetadata::getId).collect(toList());
         patentMetadataDao().markAsAnnotated(allPatentIds, annotatorId);
     }
-}
 
 
-/**
- * Key for the map that counts occurrences of each Biological Entity per Patent
- *
- * The value of this map is the count.
- *
- * The casing of the term is ignored, as well as trailing whitespace, because
- * that's how MySQL compares strings using the default collation.
- */
-class BioEntityPerPatentKey {
+    /**
+     * Walks the annotations of a batch of patents, one row of the annotation
+     * table at a time, for both the INSERTs and LOAD DATA
+     *
+     * Every annotation is counted in the occurrences, but the ones whose term
+     * doesn't fit in the database are skipped.
+     */
+    private class AnnotationRows {
 
-    /** Biological entity id */
-    private final long bioEntityId;
+        private final List<PatentMetadata> metadatas;
 
-    /** Patent id */
-    private final long patentId;
+        private final List<PatentAnnotations> annotations;
 
-    /** Field id */
-    private final int fieldId;
+        private final BioEntityOccurrences occurrences;
 
-    /** The term annotated */
-    private final String term;
+        /** Current patent, and the annotation after the current one */
+        private int patent = -1;
 
+        private int next = 0;
 
-    public BioEntityPerPatentKey(long bioEntityId, long patentId, int fieldId, String term) {
-        this.bioEntityId = bioEntityId;
-        this.patentId = patentId;
-        this.fieldId = fieldId;
-        this.term = term;
-    }
+        private PatentMetadata metadata;
 
+        private PatentAnnotations patentAnnotations;
 
-    public long getBioEntityId() {
-        return bioEntityId;
-    }
+        private int annotation;
 
 
-    public long getPatentId() {
-        return patentId;
-    }
+        AnnotationRows(List<PatentMetadata> metadatas, List<PatentAnnotations> annotations,
+                       BioEntityOccurrences occurrences) {
+            assert (metadatas.size() == annotations.size());
 
+            this.metadatas = metadatas;
+            this.annotations = annotations;
+            this.occurrences = occurrences;
+        }
 
-    public int getFieldId() {
-        return fieldId;
-    }
 
+        /**
+         * Moves to the next annotation to save, returning false when there
+         * are no more
+         */
+        boolean next() {
+            while (true) {
+                if (patentAnnotations == null || next == patentAnnotations.size()) {
+                    if (++patent == metadatas.size()) {
+                        return false;
+                    }
+                    startPatent();
+                    continue;
+                }
 
-    public String getTerm() {
-        return term;
-    }
+                annotation = next++;
+                occurrences.count(annotation);
 
+                // Terms larger than 127 characters don't fit in the database
+                String term = term();
+                if (term.length() > Annotation.MAX_TERM_LENGTH) {
+                    logger.warn("Skipping annotation for document {} because the term is too big: '{}'",
+                            metadata.getPatentNumber(), term);
+                    continue;
+                }
 
-    @Override
-    public boolean equals(Object o) {
-        if (this == o) return true;
-        if (o == null || getClass() != o.getClass()) return false;
-        BioEntityPerPatentKey that = (BioEntityPerPatentKey) o;
-        return bioEntityId == that.bioEntityId &&
-                patentId == that.patentId &&
-                fieldId == that.fieldId &&
-                mysqlStringEquals(term, that.term);
-    }
+                return true;
+            }
+        }
 
 
-    @Override
-    public int hashCode() {
-        return Objects.hash(bioEntityId, patentId, fieldId, lowerAndTrimTrailingWhitespace(term));
-    }
+        private void startPatent() {
+            metadata = metadatas.get(patent);
+            patentAnnotations = annotations.get(patent);
+            next = 0;
 
+            if (!metadata.getPatentNumber().equals(patentAnnotations.getPatentNumber())) {
+                throw new RuntimeException("The metadata and annotations could not be paired!");
+            }
 
-    /**
-     * Converts the given text to lower case and removes any trailing whitespace
-     */
-    private String lowerAndTrimTrailingWhitespace(String text) {
-        if (text == null) {
-            return null;
+            occurrences.startPatent(metadata.getId(), patentAnnotations);
         }
 
-        // Copy the text to the StringBuilder, converting to lower case as it goes
-        StringBuilder sb = new StringBuilder();
-        for (int i = 0; i < text.length(); i++) {
-            char ch = text.charAt(i);
-            sb.append(Character.toLowerCase(ch));
+
+        long patentId() {
+            return metadata.getId();
         }
 
-        // Delete any trailing whitespace
-        while (sb.length() > 0 && Character.isWhitespace(sb.charAt(sb.length() - 1))) {
-            sb.deleteCharAt(sb.length() - 1);
+
+        int fieldId() {
+            return patentAnnotations.getField(annotation).id();
         }
 
-        return sb.toString();
-    }
 
+        int rank() {
+            return patentAnnotations.getRank(annotation);
+        }
 
-    /**
-     * Compares two Strings in the same way that MySQL does it using the default
-     * collation, i.e., by ignoring case and any trailing whitespace.
-     *
-     * We could have changed the default collation, but we think this behavior
-     * makes sense for the patent annotation use case.
-     */
-    private boolean mysqlStringEquals(String a, String b) {
-        if (a == null && b == null) {
-            // They are both null
-            return true;
-        } else if (a != null && b != null) {
-            // They are both non null
-            return lowerAndTrimTrailingWhitespace(a).equals(lowerAndTrimTrailingWhitespace(b));
-        } else {
-            // One is null and the other isn't
-            return false;
+
+        int bioEntityId() {
+            return patentAnnotations.getBioEntityId(patentAnnotations.getEntity(annotation));
+        }
+
+
+        int start() {
+            return patentAnnotations.getStart(annotation);
+        }
+
+
+        int end() {
+            return patentAnnotations.getEnd(annotation);
+        }
+
+
+        String term() {
+            return patentAnnotations.getTerm(annotation);
         }
     }
-}
\ No newline at end of file
+}
+
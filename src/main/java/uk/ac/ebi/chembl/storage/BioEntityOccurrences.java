@@ -0,0 +1,246 @@
+package uk.ac.ebi.chembl.storage;
+
+import uk.ac.ebi.chembl.model.PatentAnnotations;
+
+import java.util.Arrays;
+
+
+/**
+ * Counts the occurrences of each Biological Entity per Patent, field and term
+ *
+ * The annotations are counted one patent at a time, as they are saved, and
+ * the counts are kept column by column, like in PatentAnnotations:
+ *
+ *   patentIds[r], bioEntityIds[r], fieldIds[r], terms[r]   the key of row r
+ *   frequencies[r]                                          its count
+ *
+ * The casing of the term is ignored, as well as trailing whitespace, because
+ * that's how MySQL compares strings using the default collation. Each term of
+ * a patent is mapped to the first of its terms that is equal to it that way,
+ * once per patent, so the key of an annotation is made of three ints, and
+ * counting it doesn't allocate anything.
+ */
+class BioEntityOccurrences {
+
+    private static final int INITIAL_CAPACITY = 1024;
+
+    /** Rows */
+    private int size = 0;
+
+    private long[] patentIds = new long[INITIAL_CAPACITY];
+
+    private int[] bioEntityIds = new int[INITIAL_CAPACITY];
+
+    private int[] fieldIds = new int[INITIAL_CAPACITY];
+
+    private String[] terms = new String[INITIAL_CAPACITY];
+
+    private int[] frequencies = new int[INITIAL_CAPACITY];
+
+    /** Patent being counted */
+    private long patentId;
+
+    private PatentAnnotations patent;
+
+    /** Normalized term of each term of the patent, as the index of the first one equal to it */
+    private int[] normalizedTerms = new int[INITIAL_CAPACITY];
+
+    /** Hash table of the normalized terms: index + 1, or 0 if the slot is free */
+    private int[] termSlots = new int[2 * INITIAL_CAPACITY];
+
+    /** Hash table of the keys of the patent's rows, and their rows + 1 (0 if the slot is free) */
+    private long[] keys = new long[2 * INITIAL_CAPACITY];
+
+    private int[] rows = new int[2 * INITIAL_CAPACITY];
+
+    /** Used part of the hash tables, a power of two */
+    private int termMask;
+
+    private int keyMask;
+
+
+    /**
+     * Starts counting the annotations of another patent
+     */
+    void startPatent(long patentId, PatentAnnotations patent) {
+        this.patentId = patentId;
+        this.patent = patent;
+
+        // Neither table is ever more than half full
+        int termCapacity = capacityFor(patent.termCount());
+        if (termSlots.length < termCapacity) {
+            termSlots = new int[termCapacity];
+        } else {
+            Arrays.fill(termSlots, 0, termCapacity, 0);
+        }
+        termMask = termCapacity - 1;
+
+        int keyCapacity = capacityFor(patent.size());
+        if (rows.length < keyCapacity) {
+            keys = new long[keyCapacity];
+            rows = new int[keyCapacity];
+        } else {
+            Arrays.fill(rows, 0, keyCapacity, 0);
+        }
+        keyMask = keyCapacity - 1;
+
+        if (normalizedTerms.length < patent.termCount()) {
+            normalizedTerms = new int[patent.termCount()];
+        }
+        for (int term = 0; term < patent.termCount(); term++) {
+            normalizedTerms[term] = normalize(term);
+        }
+    }
+
+
+    /**
+     * Counts an annotation of the current patent
+     */
+    void count(int annotation) {
+        int bioEntityId = patent.getBioEntityId(patent.getEntity(annotation));
+        int fieldId = patent.getField(annotation).id();
+        int term = normalizedTerms[patent.getTermIndex(annotation)];
+
+        // A patent has far fewer than 2^24 terms and 2^8 fields
+        long key = (long) bioEntityId << 32 | (long) fieldId << 24 | term;
+
+        int slot = mix(key) & keyMask;
+        int row;
+        while ((row = rows[slot] - 1) >= 0) {
+            if (keys[slot] == key) {
+                frequencies[row]++;
+                return;
+            }
+            slot = (slot + 1) & keyMask;
+        }
+
+        // Like MySQL, the row keeps the term as it was first found
+        row = append(bioEntityId, fieldId, patent.getTerm(annotation));
+        keys[slot] = key;
+        rows[slot] = row + 1;
+    }
+
+
+    /**
+     * Number of rows, i.e., of distinct entities per patent, field and term
+     */
+    int size() {
+        return size;
+    }
+
+
+    long getPatentId(int row) {
+        return patentIds[row];
+    }
+
+
+    int getBioEntityId(int row) {
+        return bioEntityIds[row];
+    }
+
+
+    int getFieldId(int row) {
+        return fieldIds[row];
+    }
+
+
+    String getTerm(int row) {
+        return terms[row];
+    }
+
+
+    int getFrequency(int row) {
+        return frequencies[row];
+    }
+
+
+    private int append(int bioEntityId, int fieldId, String term) {
+        if (size == frequencies.length) {
+            int capacity = size * 2;
+            patentIds = Arrays.copyOf(patentIds, capacity);
+            bioEntityIds = Arrays.copyOf(bioEntityIds, capacity);
+            fieldIds = Arrays.copyOf(fieldIds, capacity);
+            terms = Arrays.copyOf(terms, capacity);
+            frequencies = Arrays.copyOf(frequencies, capacity);
+        }
+
+        patentIds[size] = patentId;
+        bioEntityIds[size] = bioEntityId;
+        fieldIds[size] = fieldId;
+        terms[size] = term;
+        frequencies[size] = 1;
+        return size++;
+    }
+
+
+    /**
+     * Returns the index of the first term of the patent that is equal to the
+     * given one, ignoring case and trailing whitespace
+     */
+    private int normalize(int index) {
+        String term = patent.getTermAt(index);
+        int length = trimmedLength(term);
+
+        int hash = 0;
+        for (int i = 0; i < length; i++) {
+            hash = 31 * hash + Character.toLowerCase(term.charAt(i));
+        }
+
+        int slot = mix(hash) & termMask;
+        int other;
+        while ((other = termSlots[slot] - 1) >= 0) {
+            if (mysqlStringEquals(term, length, patent.getTermAt(other))) {
+                return other;
+            }
+            slot = (slot + 1) & termMask;
+        }
+
+        termSlots[slot] = index + 1;
+        return index;
+    }
+
+
+    /**
+     * Compares two Strings in the same way that MySQL does it using the default
+     * collation, i.e., by ignoring case and any trailing whitespace.
+     *
+     * We could have changed the default collation, but we think this behavior
+     * makes sense for the patent annotation use case.
+     */
+    private static boolean mysqlStringEquals(String a, int aLength, String b) {
+        if (trimmedLength(b) != aLength) {
+            return false;
+        }
+
+        for (int i = 0; i < aLength; i++) {
+            if (Character.toLowerCase(a.charAt(i)) != Character.toLowerCase(b.charAt(i))) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+
+    /**
+     * Length of the text without any trailing whitespace
+     */
+    private static int trimmedLength(String text) {
+        int length = text.length();
+        while (length > 0 && Character.isWhitespace(text.charAt(length - 1))) {
+            length--;
+        }
+        return length;
+    }
+
+
+    private static int capacityFor(int entries) {
+        return Integer.highestOneBit(Math.max(2 * entries, 16) - 1) << 1;
+    }
+
+
+    private static int mix(long hash) {
+        long mixed = hash * 0x9E3779B97F4A7C15L;
+        return (int) (mixed ^ (mixed >>> 32));
+    }
+}
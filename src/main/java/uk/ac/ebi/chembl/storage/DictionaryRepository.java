@@ -1,8 +1,10 @@
 package uk.ac.ebi.chembl.storage;
 
 
+import org.skife.jdbi.v2.ResultIterator;
 import org.skife.jdbi.v2.sqlobject.CreateSqlObject;
 import org.skife.jdbi.v2.sqlobject.Transaction;
+import org.skife.jdbi.v2.sqlobject.mixins.GetHandle;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.stereotype.Service;
@@ -10,22 +12,36 @@ import uk.ac.ebi.chembl.annotator.DictionaryEntry;
 import uk.ac.ebi.chembl.model.AnnotatorMetadata;
 import uk.ac.ebi.chembl.model.BioEntity;
 import uk.ac.ebi.chembl.model.Dictionary;
+import uk.ac.ebi.chembl.storage.dao.AnnotationDao;
+import uk.ac.ebi.chembl.storage.dao.AnnotatorDao;
 import uk.ac.ebi.chembl.storage.dao.BioEntityDao;
 import uk.ac.ebi.chembl.storage.dao.BioTypeDao;
+import uk.ac.ebi.chembl.storage.dao.PatentMetadataDao;
 
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
 import java.text.NumberFormat;
-import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.function.Function;
-
-import static java.util.stream.Collectors.toMap;
+import java.util.stream.Stream;
 
 /**
  * Repository for Dictionary Entities
+ *
+ * The entities are written with plain JDBC batches, like AnnotationRepository
+ * does, rather than through a JDBI batch, which would need the whole
+ * dictionary in lists.
  */
 @Service
-public abstract class DictionaryRepository {
+public abstract class DictionaryRepository implements GetHandle {
+
+    private static final String INSERT_BIO_ENTITY = "INSERT INTO bio_entity (bio_type_id, name) VALUES (?, ?)";
+
+    /** How many entities to send to the database at a time */
+    private static final int INSERT_BATCH_SIZE = 10_000;
 
     private Logger logger = LoggerFactory.getLogger(getClass().getSuperclass());
 
@@ -35,6 +51,18 @@ public abstract class DictionaryRepository {
     @CreateSqlObject
     protected abstract BioEntityDao bioEntityDao();
 
+    @CreateSqlObject
+    protected abstract AnnotatorDao annotatorDao();
+
+    @CreateSqlObject
+    protected abstract AnnotationDao annotationDao();
+
+    @CreateSqlObject
+    protected abstract PatentMetadataDao patentMetadataDao();
+
+    /** How many ids to delete per statement */
+    private static final int DELETE_BATCH_SIZE = 1000;
+
     /** The whole dictionary, cached for increased performance */
     private Dictionary dictionary = Dictionary.emptyDictionary();
 
@@ -47,7 +75,7 @@ public abstract class DictionaryRepository {
      * It's not currently possible to load the dictionaries for multiple
      * annotators simultaneously.
      */
-    public Dictionary get(AnnotatorMetadata annotator) {
+    public synchronized Dictionary get(AnnotatorMetadata annotator) {
         // If no dictionary has been loaded, load it now
         if (dictionary.isEmpty()) {
             this.dictionary = load(annotator);
@@ -66,10 +94,34 @@ public abstract class DictionaryRepository {
 
 
     /**
-     * Persists all the biological entities in a new dictionary to the database
+     * Returns the fingerprint of the dictionary persisted for the given
+     * annotator, or null if it has none (e.g., it was persisted before the
+     * fingerprints were stored)
+     */
+    public String getFingerprint(AnnotatorMetadata annotator) {
+        return annotatorDao().retrieveDictionaryHash(annotator.getId());
+    }
+
+
+    /**
+     * Stores the fingerprint of the dictionary persisted for the given
+     * annotator
+     */
+    public void saveFingerprint(AnnotatorMetadata annotator, String fingerprint) {
+        annotatorDao().saveDictionaryHash(annotator.getId(), fingerprint);
+    }
+
+
+    /**
+     * Persists all the biological entities in a new dictionary to the
+     * database, along with its fingerprint
+     *
+     * The entities are sent to the database as they are read, in batches of
+     * INSERT_BATCH_SIZE, so the dictionary is never held in memory.
      */
     @Transaction
-    public void save(List<DictionaryEntry> entries, AnnotatorMetadata annotator) {
+    public void save(Stream<DictionaryEntry> entries, String fingerprint, AnnotatorMetadata annotator)
+            throws SQLException {
         // Updating the dictionary after it has been loaded is not allowed, because if
         // someone is using the old dictionary this will lead to inconsistencies in the
         // annotations. You must update the dictionary only on startup.
@@ -77,51 +129,113 @@ public abstract class DictionaryRepository {
             throw new IllegalStateException("Not allowed to update a non-empty dictionary");
         }
 
-        // Save the entity types first
-        Map<String, Long> bioTypes = saveBioTypes(entries, annotator);
+        // At this point there should be no entities for this annotator, but
+        // being explicit doesn't hurt
+        bioEntityDao().clear(annotator.getName());
+        bioTypeDao().clear(annotator.getName());
+
+        // The types are saved as they are found
+        Map<String, Long> bioTypes = new HashMap<>();
+        int saved = saveBioEntities(entries.iterator(),
+                type -> bioTypes.computeIfAbsent(type, name -> bioTypeDao().save(name, annotator.getId())));
 
-        // Then, save the entities
-        saveBioEntities(entries, bioTypes, annotator);
+        // And the fingerprint, so that the next runs can check it quickly
+        saveFingerprint(annotator, fingerprint);
 
         logger.info("Stored the dictionary for {} with {} entities belonging to {} types",
-                annotator.getName(), nf.format(entries.size()), bioTypes.size());
+                annotator.getName(), nf.format(saved), bioTypes.size());
     }
 
 
-    private Map<String, Long> saveBioTypes(List<DictionaryEntry> entries, AnnotatorMetadata annotator) {
-        bioTypeDao().clear(annotator.getName());
+    /**
+     * Upgrades the dictionary in the database to a newer version:
+     *
+     * - Saves the entities that were added
+     * - Deletes the entities that were removed, and their annotations
+     * - Deletes the annotations of the given patents by this annotator, and
+     *   marks them as not annotated, so that they are annotated again
+     * - Saves the fingerprint of the new dictionary
+     *
+     * Runs in a single transaction. The cached dictionary is discarded, so
+     * that the upgraded one is loaded the next time it's needed.
+     */
+    @Transaction
+    public synchronized void upgrade(List<DictionaryEntry> added, List<Integer> removed, List<Long> patentIds,
+                                     String fingerprint, AnnotatorMetadata annotator) throws SQLException {
+        // The new entities may be of new types
+        Map<String, Long> bioTypes = new HashMap<>();
+        saveBioEntities(added.iterator(), type -> bioTypes.computeIfAbsent(type, name -> {
+            Long id = bioTypeDao().retrieve(name, annotator.getId());
+            return id != null ? id : bioTypeDao().save(name, annotator.getId());
+        }));
+
+        // The foreign keys delete the annotations of the entities too
+        for (int i = 0; i < removed.size(); i += DELETE_BATCH_SIZE) {
+            bioEntityDao().deleteBatch(removed.subList(i, Math.min(i + DELETE_BATCH_SIZE, removed.size())));
+        }
 
-        return entries.stream()
-                .map(DictionaryEntry::getType)
-                .distinct()
-                .collect(toMap(Function.identity(), name -> bioTypeDao().save(name, annotator.getId())));
-    }
+        for (int i = 0; i < patentIds.size(); i += DELETE_BATCH_SIZE) {
+            List<Long> batch = patentIds.subList(i, Math.min(i + DELETE_BATCH_SIZE, patentIds.size()));
+            annotationDao().deleteAnnotations(batch, annotator.getId());
+            annotationDao().deleteBioEntityOccurrences(batch, annotator.getId());
+            patentMetadataDao().unmarkAsAnnotated(batch, annotator.getId());
+        }
 
+        saveFingerprint(annotator, fingerprint);
+        dictionary = Dictionary.emptyDictionary();
 
-    private void saveBioEntities(List<DictionaryEntry> entries, Map<String, Long> bioTypes, AnnotatorMetadata annotator) {
-        // At this point there should be no entities for this annotator, but
-        // being explicit doesn't hurt
-        bioEntityDao().clear(annotator.getName());
+        logger.info("Upgraded the dictionary for {}: {} entities added and {} removed. {} patents will be " +
+                "annotated again", annotator.getName(), nf.format(added.size()), nf.format(removed.size()),
+                nf.format(patentIds.size()));
+    }
 
-        // Deconstruct the list of entries into lists of its components
-        List<Long> typeIds = new ArrayList<>();
-        List<String> names = new ArrayList<>();
-        entries.forEach(entry -> {
-            Long typeId = bioTypes.get(entry.getType());
-            typeIds.add(typeId);
-            names.add(entry.getName());
-        });
 
-        bioEntityDao().saveBatch(typeIds, names);
+    /**
+     * Saves the entities, executing a batch every INSERT_BATCH_SIZE of them,
+     * and returns how many were saved
+     */
+    private int saveBioEntities(Iterator<DictionaryEntry> entries, Function<String, Long> bioTypeIds)
+            throws SQLException {
+        int rows = 0;
+        try (PreparedStatement statement = getHandle().getConnection().prepareStatement(INSERT_BIO_ENTITY)) {
+            while (entries.hasNext()) {
+                DictionaryEntry entry = entries.next();
+                statement.setLong(1, bioTypeIds.apply(entry.getType()));
+                statement.setString(2, entry.getName());
+                statement.addBatch();
+
+                if (++rows % INSERT_BATCH_SIZE == 0) {
+                    statement.executeBatch();
+                    logger.debug("Stored {} entities", nf.format(rows));
+                }
+            }
+
+            if (rows % INSERT_BATCH_SIZE != 0) {
+                statement.executeBatch();
+            }
+        }
+
+        return rows;
     }
 
 
+    /**
+     * Loads the dictionary, streaming the entities from the database straight
+     * into it
+     */
     private Dictionary load(AnnotatorMetadata annotator) {
-        List<BioEntity> entities = bioEntityDao().retrieveAll(annotator.getName());
+        Dictionary.Builder builder = Dictionary.builder(annotator);
+
+        try (ResultIterator<BioEntity> entities = bioEntityDao().retrieveAll(annotator.getName())) {
+            entities.forEachRemaining(entity ->
+                    builder.add(Math.toIntExact(entity.getId()), entity.getType(), entity.getName()));
+        }
+
+        Dictionary dictionary = builder.build();
 
         logger.info("Loaded the dictionary for {} with {} entities",
-                annotator.getName(), nf.format(entities.size()));
+                annotator.getName(), nf.format(dictionary.size()));
 
-        return new Dictionary(annotator, entities);
+        return dictionary;
     }
 }
@@ -45,6 +45,28 @@ public abstract class PatentMetadataRepository {
     }
 
 
+    /**
+     * Retrieves the list of patents in the database that have been annotated
+     * by the given annotator
+     */
+    public List<PatentMetadata> getAnnotatedPatents(int annotatorId) {
+        return dao().retrieveAnnotatedPatents(annotatorId);
+    }
+
+
+    /**
+     * Returns which of the given patents have already been annotated by the
+     * given annotator
+     */
+    public List<Long> getAnnotatedAmong(List<Long> patentIds, int annotatorId) {
+        if (patentIds.isEmpty()) {
+            return new ArrayList<>();
+        }
+
+        return dao().retrieveAnnotatedAmong(patentIds, annotatorId);
+    }
+
+
     /**
      * Saves a bunch of patent metadatas into the annotation database
      */
@@ -9,23 +9,22 @@ import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 import uk.ac.ebi.chembl.model.PatentXml;
 import uk.ac.ebi.chembl.storage.dao.PatentXmlDao;
+import uk.ac.ebi.chembl.storage.xml.DirectoryPatentXmlStore;
+import uk.ac.ebi.chembl.storage.xml.PatentXmlStore;
+import uk.ac.ebi.chembl.storage.xml.SegmentPatentXmlStore;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import java.io.*;
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.nio.file.Paths;
-import java.nio.file.StandardCopyOption;
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
 import java.util.NoSuchElementException;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
 
-import static java.util.stream.Collectors.joining;
-
 /**
  * Repository for Patent's XML
  */
@@ -35,6 +34,12 @@ public class PatentXmlRepository {
     /** How many patents to download per batch? */
     private static final int DOWNLOAD_BATCH_SIZE = 1000; // Must be <= 1664
 
+    /** Initial size of the per-thread buffers where patents are decoded to */
+    private static final int INITIAL_BUFFER_SIZE = 1 << 20;
+
+    /** Size of the buffer used to read the gzipped files */
+    private static final int IO_BUFFER_SIZE = 64 * 1024;
+
     private Logger logger = LoggerFactory.getLogger(getClass());
 
     @Autowired
@@ -44,15 +49,41 @@ public class PatentXmlRepository {
     @Value("${patents.xml.home}")
     private String patentsXmlHome;
 
+    /** How the XML is laid out in the file system: 'directory' or 'segments' */
+    @Value("${patents.xml.storage:directory}")
+    private String storage;
+
     private PatentXmlDao dao;
 
-    /** Regular expression to extract US/67/45 from US-1234567-A1 */
-    private final Pattern pathPattern = Pattern.compile("(\\w\\w)-\\w*(\\w\\w)(\\w\\w)-");
+    /** Where the gzipped XML is kept */
+    private PatentXmlStore store;
+
+    /** Per-thread buffers where patents are decoded to. Each one grows as needed */
+    private final ThreadLocal<CharBuffer> buffers =
+            ThreadLocal.withInitial(() -> CharBuffer.allocate(INITIAL_BUFFER_SIZE));
 
 
     @PostConstruct
-    private void init() {
-        this.dao = alexandriaHandle.open(PatentXmlDao.class);
+    private void init() throws IOException {
+        this.dao = alexandriaHandle.onDemand(PatentXmlDao.class);
+
+        switch (storage) {
+            case "directory":
+                this.store = new DirectoryPatentXmlStore(patentsXmlHome);
+                break;
+            case "segments":
+                this.store = new SegmentPatentXmlStore(patentsXmlHome);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown patents.xml.storage '" + storage + "'. " +
+                        "Valid values are 'directory' and 'segments'");
+        }
+    }
+
+
+    @PreDestroy
+    private void close() throws IOException {
+        store.close();
     }
 
 
@@ -112,12 +143,46 @@ public class PatentXmlRepository {
      * Reads a patent from the file system
      */
     public String read(String patentNumber) throws IOException {
-        Path path = getPath(patentNumber);
-        byte[] bytes = Files.readAllBytes(path);
-        GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(bytes));
+        return readChars(patentNumber).toString();
+    }
+
+
+    /**
+     * Reads a patent from the file system into a buffer that is reused by
+     * the calling thread
+     *
+     * The XML is decoded only once, straight from the gzipped file, and line
+     * terminators are normalized to '\n' (without a trailing one), just like
+     * read() does. The returned buffer is only valid until the next call to
+     * this method on the same thread.
+     */
+    public CharBuffer readChars(String patentNumber) throws IOException {
+        CharBuffer buffer = buffers.get();
+        char[] chars = buffer.array();
+        int length = 0;
+
+        try (Reader reader = new InputStreamReader(new GZIPInputStream(store.open(patentNumber), IO_BUFFER_SIZE),
+                StandardCharsets.UTF_8)) {
+            int n;
+            while ((n = reader.read(chars, length, chars.length - length)) != -1) {
+                length += n;
+
+                // Grow the buffer when it is full. It stays this big for the
+                // next patents read by this thread
+                if (length == chars.length) {
+                    chars = Arrays.copyOf(chars, chars.length * 2);
+                }
+            }
+        }
 
-        BufferedReader reader = new BufferedReader(new InputStreamReader(in));
-        return reader.lines().collect(joining("\n"));
+        if (chars != buffer.array()) {
+            buffer = CharBuffer.wrap(chars);
+            buffers.set(buffer);
+        }
+
+        buffer.clear();
+        buffer.limit(normalizeLineTerminators(chars, length));
+        return buffer;
     }
 
 
@@ -125,7 +190,7 @@ public class PatentXmlRepository {
      * Checks if a patent exists in the file system
      */
     public boolean exists(String patentNumber) {
-        return Files.exists(getPath(patentNumber));
+        return store.exists(patentNumber);
     }
 
 
@@ -133,7 +198,7 @@ public class PatentXmlRepository {
      * Writes a patent to the file system
      */
     public void write(PatentXml patentXml) throws IOException {
-        byte[] bytes = patentXml.getXml().getBytes();
+        byte[] bytes = patentXml.getXml().getBytes(StandardCharsets.UTF_8);
 
         // GZIP the content
         ByteArrayOutputStream out = new ByteArrayOutputStream();
@@ -141,11 +206,15 @@ public class PatentXmlRepository {
         gzipOut.write(bytes);
         gzipOut.close();
 
-        ByteArrayInputStream in = new ByteArrayInputStream(out.toByteArray());
+        writeGzipped(patentXml.getPatentNumber(), out.toByteArray());
+    }
 
-        Path path = getPath(patentXml.getPatentNumber());
-        Files.createDirectories(path.getParent());
-        Files.copy(in, path, StandardCopyOption.REPLACE_EXISTING);
+
+    /**
+     * Writes an already gzipped patent to the file system
+     */
+    public void writeGzipped(String patentNumber, byte[] gzippedXml) throws IOException {
+        store.write(patentNumber, gzippedXml);
     }
 
 
@@ -153,22 +222,42 @@ public class PatentXmlRepository {
      * Deletes a patent from the file system
      */
     public void delete(String patentNumber) throws IOException {
-        Path path = getPath(patentNumber);
-        Files.deleteIfExists(path);
+        store.delete(patentNumber);
     }
 
 
-    private Path getPath(String patentNumber) {
-        Matcher matcher = pathPattern.matcher(patentNumber);
-        if (matcher.find()) {
-            String authority = matcher.group(1);
-            String level1 = matcher.group(3);
-            String level2 = matcher.group(2);
+    /**
+     * Are the patents being packed into segments?
+     */
+    public boolean isSegmented() {
+        return store instanceof SegmentPatentXmlStore;
+    }
 
-            return Paths.get(patentsXmlHome, authority, level1, level2, patentNumber + ".xml.gz");
-        } else {
-            // A few patents don't match the pattern: put them all together inside foo/
-            return Paths.get(patentsXmlHome, "foo", patentNumber + ".xml.gz");
+
+    /**
+     * Converts "\r\n" and "\r" into "\n" and removes the last line terminator,
+     * in place. Returns the new length.
+     *
+     * This is what splitting the XML into lines and joining them back with
+     * "\n" would do, and it keeps the offsets of the annotations unchanged.
+     */
+    private static int normalizeLineTerminators(char[] chars, int length) {
+        int j = 0;
+        for (int i = 0; i < length; i++) {
+            char ch = chars[i];
+            if (ch == '\r') {
+                if (i + 1 < length && chars[i + 1] == '\n') {
+                    i++;
+                }
+                ch = '\n';
+            }
+            chars[j++] = ch;
+        }
+
+        if (j > 0 && chars[j - 1] == '\n') {
+            j--;
         }
+
+        return j;
     }
 }
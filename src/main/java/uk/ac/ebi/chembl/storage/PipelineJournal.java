@@ -0,0 +1,475 @@
+package uk.ac.ebi.chembl.storage;
+
+import com.google.common.collect.Lists;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import uk.ac.ebi.chembl.model.AnnotatorMetadata;
+import uk.ac.ebi.chembl.model.PatentMetadata;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.text.NumberFormat;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Date;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import static java.nio.file.StandardOpenOption.APPEND;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * Durable journal of the progress of the annotation pipeline, so that an
+ * interrupted run can be resumed without starting all over again
+ *
+ * The journal is a directory with two files:
+ *
+ *   journal.log: an append-only log of the run, one event per line
+ *   patents.tsv.gz: the patents the run has to annotate, written once
+ *
+ * The log records, in order:
+ *
+ *   run      annotator  database  dictionary    a new run has started, with this dictionary fingerprint
+ *   synced   date                               the metadata of the new patents was loaded, up to this publication date
+ *   listed   n                                  the n patents to annotate were written to patents.tsv.gz
+ *   downloaded                                  the XML of all patents was downloaded (or was missing)
+ *   ?        id,id,...                          these patents are about to be persisted
+ *   +        id,id,...                          these patents were persisted
+ *
+ * On startup, the log of an unfinished run is replayed. If the patents had
+ * been listed, the new run annotates those that were not persisted yet,
+ * without looking for new patents or querying the database for the
+ * unannotated ones. The patents that were being persisted when the run was
+ * interrupted may or may not have been committed, so the database is asked
+ * about them only. The journal is deleted when a run finishes successfully.
+ *
+ * If the dictionary in the database is not the one the unfinished run
+ * annotated with (e.g., it was upgraded since), the journal is discarded
+ * once the dictionary has been checked (see checkDictionary()): the entity
+ * ids of what the run left unsaved may not exist anymore.
+ */
+@Service
+public class PipelineJournal {
+
+    private static final String LOG = "journal.log";
+
+    private static final String PATENTS = "patents.tsv.gz";
+
+    /** How many patents to check in the database per query */
+    private static final int CHECK_BATCH_SIZE = 1000;
+
+    private Logger logger = LoggerFactory.getLogger(getClass());
+
+    @Autowired
+    private PatentMetadataRepository metadataRepository;
+
+    @Autowired
+    private DictionaryRepository dictionaryRepository;
+
+    @Autowired
+    private AnnotatorMetadata annotator;
+
+    @Value("${pipeline.journal.home:journal}")
+    private String home;
+
+    @Value("${patentannot.url}")
+    private String databaseUrl;
+
+    @Value("${clear-db:#{false}}")
+    private boolean clearDb;
+
+    /** Fingerprint of the dictionary the unfinished run annotated with, if there is one */
+    private String dictionaryFingerprint;
+
+    /** Publication date up to which the metadata was loaded, if it was */
+    private String syncedUpTo;
+
+    /** Have the patents to annotate been listed? */
+    private boolean listed;
+
+    /** Have all patents been downloaded? */
+    private boolean downloaded;
+
+    /** Ids of the patents that have been persisted */
+    private final BitSet persisted = new BitSet();
+
+    /** Ids of the patents that were being persisted when the run was interrupted */
+    private final BitSet pending = new BitSet();
+
+    /** Where the events are appended to */
+    private Writer log;
+
+    private NumberFormat nf = NumberFormat.getInstance();
+
+
+    @PostConstruct
+    private void init() throws IOException {
+        Files.createDirectories(Paths.get(home));
+
+        if (clearDb) {
+            // The progress of the previous run went with the database
+            discard();
+        } else {
+            replay();
+        }
+    }
+
+
+    @PreDestroy
+    private synchronized void close() throws IOException {
+        if (log != null) {
+            log.close();
+            log = null;
+        }
+    }
+
+
+    /**
+     * Has the metadata of the new patents already been loaded by the
+     * unfinished run?
+     */
+    public boolean isSynced() {
+        return syncedUpTo != null;
+    }
+
+
+    /**
+     * Publication date up to which the unfinished run loaded the metadata
+     */
+    public String getSyncedUpTo() {
+        return syncedUpTo;
+    }
+
+
+    /**
+     * Have the patents to annotate already been listed by the unfinished run?
+     */
+    public boolean isListed() {
+        return listed;
+    }
+
+
+    /**
+     * Has the unfinished run already downloaded all the XML it could?
+     */
+    public boolean isDownloaded() {
+        return downloaded;
+    }
+
+
+    /**
+     * Starts a new run, discarding the progress of any previous one
+     */
+    public synchronized void start() throws IOException {
+        discard();
+        dictionaryFingerprint = dictionaryRepository.getFingerprint(annotator);
+        append("run\t" + annotator.getName() + "\t" + databaseUrl + "\t" + dictionaryFingerprint);
+    }
+
+
+    /**
+     * Discards the unfinished run if it annotated with another dictionary
+     * than the one in the database. Must be called once the dictionary has
+     * been checked (and maybe upgraded), before anything is resumed.
+     */
+    public synchronized void checkDictionary() throws IOException {
+        if (dictionaryFingerprint == null) {
+            return;
+        }
+
+        String fingerprint = dictionaryRepository.getFingerprint(annotator);
+        if (!dictionaryFingerprint.equals(fingerprint)) {
+            logger.warn("The unfinished run in {} annotated with another dictionary (fingerprint {}, now {}). " +
+                    "Starting afresh...", home, dictionaryFingerprint, fingerprint);
+            discard();
+        }
+    }
+
+
+    /**
+     * Records that the metadata of the new patents was loaded, up to the
+     * given publication date
+     */
+    public synchronized void synced(String publicationDate) throws IOException {
+        syncedUpTo = publicationDate;
+        append("synced\t" + publicationDate);
+    }
+
+
+    /**
+     * Records the patents to annotate in this run
+     */
+    public synchronized void listed(List<PatentMetadata> patents) throws IOException {
+        Path path = Paths.get(home, PATENTS);
+        Path tmp = path.resolveSibling(PATENTS + ".tmp");
+
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(
+                new GZIPOutputStream(Files.newOutputStream(tmp)), StandardCharsets.UTF_8))) {
+            for (PatentMetadata patent : patents) {
+                Date publicationDate = patent.getPublicationDate();
+                writer.write(Long.toString(patent.getId()));
+                writer.write('\t');
+                writer.write(patent.getPatentNumber());
+                writer.write('\t');
+                writer.write(publicationDate == null ? "-" : Long.toString(publicationDate.getTime()));
+                writer.write('\n');
+            }
+        }
+
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        listed = true;
+        append("listed\t" + patents.size());
+    }
+
+
+    /**
+     * Records that all patents were downloaded
+     */
+    public synchronized void downloaded() throws IOException {
+        downloaded = true;
+        append("downloaded");
+    }
+
+
+    /**
+     * Records that the given patents are about to be persisted
+     */
+    public synchronized void persisting(List<PatentMetadata> patents) throws IOException {
+        append("?\t" + joinIds(patents));
+    }
+
+
+    /**
+     * Records that the given patents were persisted
+     */
+    public synchronized void persisted(List<PatentMetadata> patents) throws IOException {
+        for (PatentMetadata patent : patents) {
+            persisted.set(toIndex(patent.getId()));
+        }
+        append("+\t" + joinIds(patents));
+    }
+
+
+    /**
+     * Has the given patent of the unfinished run been persisted already?
+     */
+    public synchronized boolean isPersisted(long patentId) {
+        resolvePending();
+        return persisted.get(toIndex(patentId));
+    }
+
+
+    /**
+     * Returns the patents of the unfinished run that haven't been persisted
+     * yet
+     */
+    public synchronized List<PatentMetadata> remainingPatents() throws IOException {
+        resolvePending();
+
+        List<PatentMetadata> remaining = new ArrayList<>();
+        int total = 0;
+
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new GZIPInputStream(Files.newInputStream(Paths.get(home, PATENTS))), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] columns = line.split("\t");
+                long id = Long.parseLong(columns[0]);
+                total++;
+
+                if (!persisted.get(toIndex(id))) {
+                    java.sql.Date publicationDate = columns[2].equals("-") ? null :
+                            new java.sql.Date(Long.parseLong(columns[2]));
+                    remaining.add(new PatentMetadata(id, columns[1], publicationDate));
+                }
+            }
+        }
+
+        logger.info("{} of the {} patents of the previous run were already annotated",
+                nf.format(total - remaining.size()), nf.format(total));
+
+        return remaining;
+    }
+
+
+    /**
+     * Deletes the journal once the run has finished successfully
+     */
+    public synchronized void finish() throws IOException {
+        discard();
+        logger.debug("The run finished: deleted the journal in {}", home);
+    }
+
+
+    /**
+     * Asks the database which of the patents that were being persisted when
+     * the run was interrupted actually were
+     */
+    private void resolvePending() {
+        pending.andNot(persisted);
+        if (pending.isEmpty()) {
+            return;
+        }
+
+        List<Long> ids = new ArrayList<>(pending.cardinality());
+        pending.stream().forEach(index -> ids.add((long) index));
+
+        for (List<Long> chunk : Lists.partition(ids, CHECK_BATCH_SIZE)) {
+            for (long id : metadataRepository.getAnnotatedAmong(chunk, annotator.getId())) {
+                persisted.set(toIndex(id));
+            }
+        }
+
+        pending.clear();
+    }
+
+
+    /**
+     * Loads the state of the unfinished run, if there is one
+     */
+    private void replay() throws IOException {
+        Path path = Paths.get(home, LOG);
+        if (!Files.exists(path)) {
+            return;
+        }
+
+        truncateIncompleteLine(path);
+
+        try (BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+            String header = reader.readLine();
+            String run = "run\t" + annotator.getName() + "\t" + databaseUrl + "\t";
+            if (header == null || !header.startsWith(run)) {
+                logger.warn("The journal in {} belongs to another annotator or database. Ignoring it...", home);
+                discard();
+                return;
+            }
+            dictionaryFingerprint = header.substring(run.length());
+
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] columns = line.split("\t");
+                switch (columns[0]) {
+                    case "synced":
+                        syncedUpTo = columns[1];
+                        break;
+                    case "listed":
+                        listed = true;
+                        break;
+                    case "downloaded":
+                        downloaded = true;
+                        break;
+                    case "?":
+                        setIds(pending, columns);
+                        break;
+                    case "+":
+                        setIds(persisted, columns);
+                        break;
+                    default:
+                        throw new IOException("Unknown event in " + path + ": '" + line + "'");
+                }
+            }
+        }
+
+        log = Files.newBufferedWriter(path, StandardCharsets.UTF_8, APPEND);
+        logger.info("Found the journal of an unfinished run in {}: {} patents already persisted", home,
+                nf.format(persisted.cardinality()));
+    }
+
+
+    /**
+     * Deletes the journal files and forgets about the previous run
+     */
+    private void discard() throws IOException {
+        close();
+        Files.deleteIfExists(Paths.get(home, LOG));
+        Files.deleteIfExists(Paths.get(home, PATENTS));
+
+        dictionaryFingerprint = null;
+        syncedUpTo = null;
+        listed = false;
+        downloaded = false;
+        persisted.clear();
+        pending.clear();
+    }
+
+
+    private void append(String event) throws IOException {
+        if (log == null) {
+            log = Files.newBufferedWriter(Paths.get(home, LOG), StandardCharsets.UTF_8, CREATE, APPEND);
+        }
+
+        log.write(event);
+        log.write('\n');
+        log.flush();
+    }
+
+
+    /**
+     * A crash may have left half an event at the end of the log: cut it off
+     */
+    private static void truncateIncompleteLine(Path path) throws IOException {
+        long length;
+        try (RandomAccessFile file = new RandomAccessFile(path.toFile(), "r")) {
+            length = file.length();
+            while (length > 0) {
+                file.seek(length - 1);
+                if (file.read() == '\n') {
+                    break;
+                }
+                length--;
+            }
+
+            if (length == file.length()) {
+                return;
+            }
+        }
+
+        try (FileChannel channel = FileChannel.open(path, WRITE)) {
+            channel.truncate(length);
+        }
+    }
+
+
+    private static String joinIds(List<PatentMetadata> patents) {
+        StringBuilder ids = new StringBuilder();
+        for (PatentMetadata patent : patents) {
+            if (ids.length() > 0) {
+                ids.append(',');
+            }
+            ids.append(patent.getId());
+        }
+        return ids.toString();
+    }
+
+
+    private static void setIds(BitSet bits, String[] columns) {
+        if (columns.length < 2) {
+            return;
+        }
+
+        for (String id : columns[1].split(",")) {
+            bits.set(toIndex(Long.parseLong(id)));
+        }
+    }
+
+
+    /**
+     * Patent ids are dense auto-increment ints, so they can index a BitSet
+     */
+    private static int toIndex(long id) {
+        return Math.toIntExact(id);
+    }
+}
@@ -0,0 +1,172 @@
+package uk.ac.ebi.chembl.storage;
+
+import java.io.InputStream;
+import java.util.Arrays;
+
+
+/**
+ * Rows of tab-separated values, in UTF-8, as an InputStream for MySQL's
+ * LOAD DATA LOCAL INFILE
+ *
+ * The rows are encoded in the default format of LOAD DATA: fields are
+ * separated by tabs, rows end with a line break, and tabs, line breaks and
+ * backslashes in the values are escaped with a backslash.
+ *
+ * The rows are only encoded as the stream is read, a buffer at a time, so
+ * neither a temporary file nor the whole contents in memory are needed.
+ */
+class TabSeparatedInputStream extends InputStream {
+
+    /** How many bytes to encode before handing them out */
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    /** Where the rows come from */
+    private final Rows rows;
+
+    private byte[] buffer = new byte[CHUNK_SIZE + 1024];
+
+    private int position = 0;
+
+    private int limit = 0;
+
+    /** Have all the rows been encoded? */
+    private boolean exhausted = false;
+
+    /** Is the next field the first of its row? */
+    private boolean rowStart = true;
+
+
+    TabSeparatedInputStream(Rows rows) {
+        this.rows = rows;
+    }
+
+
+    @Override
+    public int read() {
+        if (position == limit && !fill()) {
+            return -1;
+        }
+
+        return buffer[position++] & 0xFF;
+    }
+
+
+    @Override
+    public int read(byte[] bytes, int offset, int length) {
+        if (length == 0) {
+            return 0;
+        }
+
+        if (position == limit && !fill()) {
+            return -1;
+        }
+
+        int n = Math.min(length, limit - position);
+        System.arraycopy(buffer, position, bytes, offset, n);
+        position += n;
+        return n;
+    }
+
+
+    public TabSeparatedInputStream field(long value) {
+        separate();
+
+        // Not in a hot enough path to be worth avoiding the String
+        String digits = Long.toString(value);
+        for (int i = 0; i < digits.length(); i++) {
+            append((byte) digits.charAt(i));
+        }
+
+        return this;
+    }
+
+
+    public TabSeparatedInputStream field(String value) {
+        separate();
+
+        for (int i = 0; i < value.length(); i++) {
+            char ch = value.charAt(i);
+            switch (ch) {
+                case '\\': append((byte) '\\'); append((byte) '\\'); break;
+                case '\t': append((byte) '\\'); append((byte) 't'); break;
+                case '\n': append((byte) '\\'); append((byte) 'n'); break;
+                case '\r': append((byte) '\\'); append((byte) 'r'); break;
+                case '\0': append((byte) '\\'); append((byte) '0'); break;
+                default:
+                    if (ch < 0x80) {
+                        append((byte) ch);
+                    } else if (ch < 0x800) {
+                        append((byte) (0xC0 | ch >> 6));
+                        append((byte) (0x80 | ch & 0x3F));
+                    } else if (Character.isHighSurrogate(ch) && i + 1 < value.length()
+                            && Character.isLowSurrogate(value.charAt(i + 1))) {
+                        int codePoint = Character.toCodePoint(ch, value.charAt(++i));
+                        append((byte) (0xF0 | codePoint >> 18));
+                        append((byte) (0x80 | codePoint >> 12 & 0x3F));
+                        append((byte) (0x80 | codePoint >> 6 & 0x3F));
+                        append((byte) (0x80 | codePoint & 0x3F));
+                    } else {
+                        append((byte) (0xE0 | ch >> 12));
+                        append((byte) (0x80 | ch >> 6 & 0x3F));
+                        append((byte) (0x80 | ch & 0x3F));
+                    }
+            }
+        }
+
+        return this;
+    }
+
+
+    public void endRow() {
+        append((byte) '\n');
+        rowStart = true;
+    }
+
+
+    /**
+     * Encodes the next rows into the buffer. Returns false if there are no
+     * more.
+     */
+    private boolean fill() {
+        position = 0;
+        limit = 0;
+
+        while (!exhausted && limit < CHUNK_SIZE) {
+            if (!rows.writeNext(this)) {
+                exhausted = true;
+            }
+        }
+
+        return limit > 0;
+    }
+
+
+    private void separate() {
+        if (!rowStart) {
+            append((byte) '\t');
+        }
+        rowStart = false;
+    }
+
+
+    private void append(byte b) {
+        // A row may not fit in what's left of the buffer
+        if (limit == buffer.length) {
+            buffer = Arrays.copyOf(buffer, buffer.length * 2);
+        }
+        buffer[limit++] = b;
+    }
+
+
+    /**
+     * The source of the rows
+     */
+    interface Rows {
+
+        /**
+         * Writes the next row to the stream, if there is one, and returns
+         * whether there was
+         */
+        boolean writeNext(TabSeparatedInputStream out);
+    }
+}
@@ -1,37 +1,44 @@
 package uk.ac.ebi.chembl.storage.dao;
 
 import org.skife.jdbi.v2.sqlobject.Bind;
-import org.skife.jdbi.v2.sqlobject.SqlBatch;
+import org.skife.jdbi.v2.sqlobject.SqlUpdate;
+import org.skife.jdbi.v2.sqlobject.stringtemplate.UseStringTemplate3StatementLocator;
+import org.skife.jdbi.v2.unstable.BindIn;
 
 import java.util.List;
 
 
 /**
  * Annotation Data Access Object
+ *
+ * The annotations are saved by AnnotationRepository, with plain JDBC.
  */
+@UseStringTemplate3StatementLocator
 public interface AnnotationDao {
 
     /**
-     * Persists a batch of annotations
+     * Deletes the annotations of the given patents by the given annotator
      */
-    @SqlBatch("INSERT INTO annotation (patent_id, field_id, rank, bio_entity_id, start_offset, end_offset, term) " +
-            "       VALUES (:patentId, :fieldId, :rank, :bioEntityId, :start, :end, :term)")
-    void saveAnnotations(@Bind("patentId") List<Long> patentIds, @Bind("fieldId") List<Integer> fieldIds,
-                         @Bind("rank") List<Integer> ranks,
-                         @Bind("bioEntityId") List<Long> bioEntityIds, @Bind("start") List<Integer> startings,
-                         @Bind("end") List<Integer> endings, @Bind("term") List<String> terms);
+    @SqlUpdate("DELETE an " +
+            "     FROM annotation an, bio_entity en, bio_type ty " +
+            "    WHERE an.bio_entity_id = en.bio_entity_id " +
+            "      AND en.bio_type_id = ty.bio_type_id " +
+            "      AND ty.annotator_id = :annotatorId " +
+            "      AND an.patent_id IN (<patentIds>)")
+    void deleteAnnotations(@BindIn("patentIds") List<Long> patentIds, @Bind("annotatorId") int annotatorId);
 
 
     /**
-     * Persists a batch of occurrences of biological entities per patent
+     * Deletes the occurrences of biological entities in the given patents by
+     * the given annotator
      */
-    @SqlBatch("INSERT INTO bioentity_patent_annotation_count (bio_entity_id, patent_id, field_id, term, frequency) " +
-            "       VALUES (:bioEntityId, :patentId, :fieldId, :term, :frequency)")
-    void saveBioEntityOccurrencesPerPatent(@Bind("bioEntityId") List<Long> bioEntityIds,
-                                           @Bind("patentId") List<Long> patentIds,
-                                           @Bind("fieldId") List<Integer> fieldIds,
-                                           @Bind("term") List<String> terms,
-                                           @Bind("frequency") List<Integer> frequencies);
+    @SqlUpdate("DELETE co " +
+            "     FROM bioentity_patent_annotation_count co, bio_entity en, bio_type ty " +
+            "    WHERE co.bio_entity_id = en.bio_entity_id " +
+            "      AND en.bio_type_id = ty.bio_type_id " +
+            "      AND ty.annotator_id = :annotatorId " +
+            "      AND co.patent_id IN (<patentIds>)")
+    void deleteBioEntityOccurrences(@BindIn("patentIds") List<Long> patentIds, @Bind("annotatorId") int annotatorId);
 
 
     /**
@@ -26,6 +26,21 @@ public interface AnnotatorDao {
     int save(@Bind("name") String name);
 
 
+    /**
+     * Retrieves the fingerprint of the dictionary persisted for an annotator,
+     * or null if none was stored
+     */
+    @SqlQuery("SELECT dictionary_hash FROM annotator WHERE annotator_id = :id")
+    String retrieveDictionaryHash(@Bind("id") int id);
+
+
+    /**
+     * Stores the fingerprint of the dictionary persisted for an annotator
+     */
+    @SqlUpdate("UPDATE annotator SET dictionary_hash = :hash WHERE annotator_id = :id")
+    void saveDictionaryHash(@Bind("id") int id, @Bind("hash") String hash);
+
+
     /**
      * Clears the annotator table and all other tables that depend on it
      */
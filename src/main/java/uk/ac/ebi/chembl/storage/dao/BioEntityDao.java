@@ -1,12 +1,14 @@
 package uk.ac.ebi.chembl.storage.dao;
 
 
+import org.skife.jdbi.v2.ResultIterator;
 import org.skife.jdbi.v2.sqlobject.Bind;
-import org.skife.jdbi.v2.sqlobject.SqlBatch;
 import org.skife.jdbi.v2.sqlobject.SqlQuery;
 import org.skife.jdbi.v2.sqlobject.SqlUpdate;
+import org.skife.jdbi.v2.sqlobject.customizers.FetchSize;
 import org.skife.jdbi.v2.sqlobject.customizers.RegisterMapper;
 import org.skife.jdbi.v2.sqlobject.stringtemplate.UseStringTemplate3StatementLocator;
+import org.skife.jdbi.v2.unstable.BindIn;
 import uk.ac.ebi.chembl.model.BioEntity;
 
 import java.util.List;
@@ -19,22 +21,20 @@ import java.util.List;
 @UseStringTemplate3StatementLocator
 public interface BioEntityDao {
 
-    /**
-     * Saves a batch of new Biological Entities into the database
-     */
-    @SqlBatch("INSERT INTO bio_entity (bio_type_id, name) VALUES (:typeId, :name)")
-    void saveBatch(@Bind("typeId") List<Long> typeIds, @Bind("name") List<String> names);
-
-
     /**
      * Retrieves all Biological Entities in the database from a given annotator
+     *
+     * The rows are streamed from MySQL one at a time (that's what a fetch size
+     * of Integer.MIN_VALUE means to its driver), instead of being read into
+     * memory all at once. The iterator must be closed.
      */
     @SqlQuery("SELECT en.bio_entity_id, ty.name as type, en.name " +
             "    FROM bio_entity en, bio_type ty, annotator an " +
             "   WHERE en.bio_type_id = ty.bio_type_id " +
             "     AND ty.annotator_id = an.annotator_id " +
             "     AND an.name = :annotatorName")
-    List<BioEntity> retrieveAll(@Bind("annotatorName") String annotatorName);
+    @FetchSize(Integer.MIN_VALUE)
+    ResultIterator<BioEntity> retrieveAll(@Bind("annotatorName") String annotatorName);
 
 
     /**
@@ -48,6 +48,16 @@ public interface BioEntityDao {
     void clear(@Bind("annotator") String annotator);
 
 
+    /**
+     * Deletes a set of Biological Entities
+     *
+     * Their annotations and occurrences are deleted along with them, by the
+     * foreign keys.
+     */
+    @SqlUpdate("DELETE FROM bio_entity WHERE bio_entity_id IN (<ids>)")
+    void deleteBatch(@BindIn("ids") List<Integer> ids);
+
+
     /**
      * Closes the DAO and releases any allocated database resources
      */
@@ -3,6 +3,7 @@ package uk.ac.ebi.chembl.storage.dao;
 
 import org.skife.jdbi.v2.sqlobject.Bind;
 import org.skife.jdbi.v2.sqlobject.GetGeneratedKeys;
+import org.skife.jdbi.v2.sqlobject.SqlQuery;
 import org.skife.jdbi.v2.sqlobject.SqlUpdate;
 
 
@@ -19,6 +20,14 @@ public interface BioTypeDao {
     long save(@Bind("name") String name, @Bind("annotatorId") int annotatorId);
 
 
+    /**
+     * Retrieves the id of a Biological Type of an annotator, or null if it
+     * doesn't exist
+     */
+    @SqlQuery("SELECT bio_type_id FROM bio_type WHERE name = :name AND annotator_id = :annotatorId")
+    Long retrieve(@Bind("name") String name, @Bind("annotatorId") int annotatorId);
+
+
     /**
      * Clears all Biological Types from the database
      */
@@ -43,6 +43,17 @@ public interface PatentMetadataDao {
     List<PatentMetadata> retrieveUnannotatedPatents(@Bind("annotatorName") String annotatorName);
 
 
+    /**
+     * Retrieves which of the given patents have been annotated by the given
+     * annotator
+     */
+    @SqlQuery("SELECT patent_id " +
+            "    FROM patent_annotated_by " +
+            "   WHERE annotator_id = :annotatorId " +
+            "     AND patent_id IN (<patentIds>)")
+    List<Long> retrieveAnnotatedAmong(@BindIn("patentIds") List<Long> patentIds, @Bind("annotatorId") int annotatorId);
+
+
     /**
      * Saves a batch of patents' metadata into the database
      */
@@ -60,6 +71,26 @@ public interface PatentMetadataDao {
     void markAsAnnotated(@Bind("patentId") List<Long> patentIds, @Bind("annotatorId") int annotatorId);
 
 
+    /**
+     * Retrieves the patents that have been annotated by the given annotator
+     */
+    @SqlQuery("SELECT pa.patent_id, pa.patent_number, pa.publication_date " +
+            "    FROM patent pa, patent_annotated_by pab " +
+            "   WHERE pa.patent_id = pab.patent_id " +
+            "     AND pab.annotator_id = :annotatorId")
+    List<PatentMetadata> retrieveAnnotatedPatents(@Bind("annotatorId") int annotatorId);
+
+
+    /**
+     * Marks the given patents as not annotated, so that they are annotated
+     * again
+     */
+    @SqlUpdate("DELETE FROM patent_annotated_by " +
+            "    WHERE annotator_id = :annotatorId " +
+            "      AND patent_id IN (<patentIds>)")
+    void unmarkAsAnnotated(@BindIn("patentIds") List<Long> patentIds, @Bind("annotatorId") int annotatorId);
+
+
     /**
      * Deletes all patents' metadata from the database
      */
@@ -0,0 +1,258 @@
+package uk.ac.ebi.chembl.storage.xml;
+
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.text.NumberFormat;
+import java.util.Iterator;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+import static java.nio.file.StandardOpenOption.APPEND;
+import static java.nio.file.StandardOpenOption.CREATE;
+
+
+/**
+ * Stores each patent in its own authority/xx/yy/patent-number.xml.gz file
+ *
+ * Checking if millions of files exist one by one takes a long time, so the
+ * store keeps a manifest with the numbers of the patents it contains. The
+ * manifest is an append-only file, with one "+patent-number" or
+ * "-patent-number" line per write or delete, which is loaded into a compact
+ * PatentNumberIndex the first time it's needed. If the manifest file doesn't
+ * exist, it is rebuilt by walking the directories in parallel.
+ *
+ * Files are written before being added to the manifest, and removed from the
+ * manifest before being deleted, so a crash can only cause a patent to be
+ * downloaded again. If the files are changed by hand, just delete the
+ * manifest to have it rebuilt.
+ *
+ * Only the changes to the manifest are serialized: the files themselves are
+ * written concurrently.
+ */
+public class DirectoryPatentXmlStore implements PatentXmlStore {
+
+    private static final String EXTENSION = ".xml.gz";
+
+    /** Name of the manifest file, inside the root directory */
+    private static final String MANIFEST = "manifest.txt";
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    /** Regular expression to extract US/67/45 from US-1234567-A1 */
+    private final Pattern pathPattern = Pattern.compile("(\\w\\w)-\\w*(\\w\\w)(\\w\\w)-");
+
+    /** Root directory */
+    private final String home;
+
+    /** Numbers of the patents in the store (loaded lazily). The values are not used. */
+    private volatile PatentNumberIndex manifest;
+
+    /** Where changes to the manifest are appended to */
+    private Writer manifestWriter;
+
+    private final NumberFormat nf = NumberFormat.getInstance();
+
+
+    public DirectoryPatentXmlStore(String home) {
+        this.home = home;
+    }
+
+
+    @Override
+    public InputStream open(String patentNumber) throws IOException {
+        return Files.newInputStream(getPath(patentNumber));
+    }
+
+
+    @Override
+    public boolean exists(String patentNumber) {
+        try {
+            return manifest().contains(patentNumber);
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+
+    @Override
+    public void write(String patentNumber, byte[] gzippedXml) throws IOException {
+        Path path = getPath(patentNumber);
+        Files.createDirectories(path.getParent());
+        Files.write(path, gzippedXml);
+
+        PatentNumberIndex manifest = manifest();
+        synchronized (this) {
+            if (manifest.put(patentNumber, 0)) {
+                appendToManifest('+', patentNumber);
+            }
+        }
+    }
+
+
+    @Override
+    public synchronized void delete(String patentNumber) throws IOException {
+        if (manifest().remove(patentNumber)) {
+            appendToManifest('-', patentNumber);
+        }
+
+        Files.deleteIfExists(getPath(patentNumber));
+    }
+
+
+    @Override
+    public Stream<String> patentNumbers() throws IOException {
+        Path root = Paths.get(home);
+        if (!Files.isDirectory(root)) {
+            return Stream.empty();
+        }
+
+        // Each authority is walked separately, so the stream can be consumed
+        // in parallel
+        Stream<Path> authorities = Files.list(root).filter(Files::isDirectory);
+        return authorities
+                .flatMap(authority -> {
+                    try {
+                        return Files.walk(authority);
+                    } catch (IOException ex) {
+                        throw new UncheckedIOException(ex);
+                    }
+                })
+                .map(path -> path.getFileName().toString())
+                .filter(name -> name.endsWith(EXTENSION))
+                .map(name -> name.substring(0, name.length() - EXTENSION.length()));
+    }
+
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (manifestWriter != null) {
+            manifestWriter.close();
+        }
+    }
+
+
+    /**
+     * Returns the set of patents in the store, loading the manifest (or
+     * building it) if necessary
+     */
+    private PatentNumberIndex manifest() throws IOException {
+        if (manifest == null) {
+            synchronized (this) {
+                if (manifest == null) {
+                    manifest = loadManifest();
+                }
+            }
+        }
+
+        return manifest;
+    }
+
+
+    private PatentNumberIndex loadManifest() throws IOException {
+        Path path = Paths.get(home, MANIFEST);
+        PatentNumberIndex patents = new PatentNumberIndex();
+
+        if (Files.exists(path)) {
+            int entries = 0;
+            try (BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (line.length() < 2) {
+                        continue;
+                    }
+
+                    entries++;
+                    if (line.charAt(0) == '-') {
+                        patents.remove(line.substring(1));
+                    } else {
+                        patents.put(line.substring(1), 0);
+                    }
+                }
+            }
+
+            // Get rid of the deleted patents if they take too much space
+            if (entries > 2 * patents.size() + 1000) {
+                writeManifest(path, patents);
+            }
+        } else {
+            logger.info("Building the manifest of the patents in {}. This will take a few minutes...", home);
+            Files.createDirectories(path.getParent());
+            try (Stream<String> patentNumbers = patentNumbers()) {
+                patentNumbers.parallel().forEach(patentNumber -> {
+                    synchronized (patents) {
+                        patents.put(patentNumber, 0);
+                    }
+                });
+            }
+            writeManifest(path, patents);
+        }
+
+        logger.info("The manifest of {} contains {} patents", home, nf.format(patents.size()));
+
+        // A crash may have left half a line at the end of the file
+        boolean endsWithNewLine = true;
+        if (Files.size(path) > 0) {
+            try (RandomAccessFile file = new RandomAccessFile(path.toFile(), "r")) {
+                file.seek(file.length() - 1);
+                endsWithNewLine = file.read() == '\n';
+            }
+        }
+
+        manifestWriter = Files.newBufferedWriter(path, StandardCharsets.UTF_8, CREATE, APPEND);
+        if (!endsWithNewLine) {
+            manifestWriter.write('\n');
+        }
+
+        return patents;
+    }
+
+
+    /**
+     * Replaces the manifest file with the given set of patents
+     */
+    private void writeManifest(Path path, PatentNumberIndex patents) throws IOException {
+        Path tmp = path.resolveSibling(MANIFEST + ".tmp");
+        try (BufferedWriter writer = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+            Iterator<String> patentNumbers = patents.patentNumbers().iterator();
+            while (patentNumbers.hasNext()) {
+                writer.write('+');
+                writer.write(patentNumbers.next());
+                writer.write('\n');
+            }
+        }
+
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+
+    private void appendToManifest(char operation, String patentNumber) throws IOException {
+        manifestWriter.write(operation);
+        manifestWriter.write(patentNumber);
+        manifestWriter.write('\n');
+        manifestWriter.flush();
+    }
+
+
+    private Path getPath(String patentNumber) {
+        Matcher matcher = pathPattern.matcher(patentNumber);
+        if (matcher.find()) {
+            String authority = matcher.group(1);
+            String level1 = matcher.group(3);
+            String level2 = matcher.group(2);
+
+            return Paths.get(home, authority, level1, level2, patentNumber + EXTENSION);
+        } else {
+            // A few patents don't match the pattern: put them all together inside foo/
+            return Paths.get(home, "foo", patentNumber + EXTENSION);
+        }
+    }
+}
@@ -0,0 +1,295 @@
+package uk.ac.ebi.chembl.storage.xml;
+
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+
+/**
+ * A compact map from patent numbers to non-negative longs
+ *
+ * A HashMap spends well over a hundred bytes per patent on the String, the
+ * boxed value and the entry itself, which adds up to gigabytes with tens of
+ * millions of patents. Instead, most of the patents are kept in a packed,
+ * sorted table:
+ *
+ *   keys     the UTF-8 bytes of all the patent numbers, one after the other
+ *   ends     where each patent number ends in keys
+ *   values   the value of each patent number
+ *
+ * which takes about the length of the patent number plus 12 bytes per patent,
+ * and is searched by bisection. The latest changes go to a small delta map,
+ * with a tombstone for each removal, which is merged into a new table when it
+ * grows past a fraction of the table's size.
+ *
+ * Lookups don't need any locking, and can run while the map is changed.
+ * Changes must be serialized by the caller.
+ */
+class PatentNumberIndex {
+
+    /** Returned by get() for patent numbers that are not in the map */
+    static final long ABSENT = -1;
+
+    /** Delta entry of a removed patent */
+    private static final long REMOVED = -2;
+
+    /** The delta is merged when it has more than this many entries, or a fraction of the table's size */
+    private static final int MIN_DELTA_SIZE = 4096;
+
+    private static final int DELTA_FRACTION = 8;
+
+    private volatile Table table = new Table(new byte[0], new int[0], new long[0]);
+
+    private final Map<String, Long> delta = new ConcurrentHashMap<>();
+
+    private volatile int size = 0;
+
+
+    long get(String patentNumber) {
+        // The delta must be read before the table: a merge publishes the new
+        // table before removing the merged entries from the delta
+        Long value = delta.get(patentNumber);
+        if (value != null) {
+            return value == REMOVED ? ABSENT : value;
+        }
+
+        Table table = this.table;
+        int index = table.indexOf(patentNumber.getBytes(StandardCharsets.UTF_8));
+        return index < 0 ? ABSENT : table.values[index];
+    }
+
+
+    boolean contains(String patentNumber) {
+        return get(patentNumber) != ABSENT;
+    }
+
+
+    /**
+     * Maps a patent number to a value, returning true if it was not in the
+     * map before
+     */
+    boolean put(String patentNumber, long value) {
+        if (value < 0) {
+            throw new IllegalArgumentException("Negative value for " + patentNumber + ": " + value);
+        }
+
+        boolean added = !contains(patentNumber);
+        delta.put(patentNumber, value);
+        if (added) {
+            size++;
+        }
+
+        mergeIfNeeded();
+        return added;
+    }
+
+
+    /**
+     * Removes a patent number, returning true if it was in the map
+     */
+    boolean remove(String patentNumber) {
+        if (!contains(patentNumber)) {
+            return false;
+        }
+
+        delta.put(patentNumber, REMOVED);
+        size--;
+
+        mergeIfNeeded();
+        return true;
+    }
+
+
+    int size() {
+        return size;
+    }
+
+
+    /**
+     * Lists the patent numbers in the map, as of some point during the call
+     */
+    Stream<String> patentNumbers() {
+        Table table = this.table;
+        Map<String, Long> delta = new HashMap<>(this.delta);
+
+        Stream<String> merged = IntStream.range(0, table.size())
+                .mapToObj(table::keyAt)
+                .filter(key -> !delta.containsKey(key));
+        Stream<String> recent = delta.entrySet().stream()
+                .filter(entry -> entry.getValue() != REMOVED)
+                .map(Map.Entry::getKey);
+
+        return Stream.concat(merged, recent);
+    }
+
+
+    private void mergeIfNeeded() {
+        if (delta.size() > Math.max(MIN_DELTA_SIZE, table.size() / DELTA_FRACTION)) {
+            merge();
+        }
+    }
+
+
+    /**
+     * Merges the delta into a new table
+     */
+    private void merge() {
+        Map<String, Long> merged = new HashMap<>(delta);
+        List<Change> changes = new ArrayList<>(merged.size());
+        for (Map.Entry<String, Long> entry : merged.entrySet()) {
+            changes.add(new Change(entry.getKey().getBytes(StandardCharsets.UTF_8), entry.getValue()));
+        }
+        changes.sort((a, b) -> compare(a.key, 0, a.key.length, b.key));
+
+        Table old = this.table;
+        int capacity = old.keys.length;
+        for (Change change : changes) {
+            capacity += change.key.length;
+        }
+
+        byte[] keys = new byte[capacity];
+        int[] ends = new int[old.size() + changes.size()];
+        long[] values = new long[ends.length];
+        int length = 0;
+        int count = 0;
+
+        // Both are sorted, and the delta wins when a key is in both
+        int i = 0;
+        int j = 0;
+        while (i < old.size() || j < changes.size()) {
+            int cmp;
+            if (i == old.size()) {
+                cmp = 1;
+            } else if (j == changes.size()) {
+                cmp = -1;
+            } else {
+                cmp = compare(old.keys, old.start(i), old.ends[i], changes.get(j).key);
+            }
+
+            byte[] source;
+            int from;
+            int to;
+            long value;
+            if (cmp < 0) {
+                source = old.keys;
+                from = old.start(i);
+                to = old.ends[i];
+                value = old.values[i];
+                i++;
+            } else {
+                source = changes.get(j).key;
+                from = 0;
+                to = source.length;
+                value = changes.get(j).value;
+                j++;
+                if (cmp == 0) {
+                    i++;
+                }
+            }
+
+            if (value != REMOVED) {
+                System.arraycopy(source, from, keys, length, to - from);
+                length += to - from;
+                ends[count] = length;
+                values[count] = value;
+                count++;
+            }
+        }
+
+        this.table = new Table(Arrays.copyOf(keys, length), Arrays.copyOf(ends, count), Arrays.copyOf(values, count));
+
+        // Changes are serialized, but a lookup may still be reading the delta
+        for (Map.Entry<String, Long> entry : merged.entrySet()) {
+            delta.remove(entry.getKey(), entry.getValue());
+        }
+    }
+
+
+    /**
+     * Compares a key in the table with another one, as unsigned bytes
+     */
+    private static int compare(byte[] keys, int from, int to, byte[] other) {
+        int length = Math.min(to - from, other.length);
+        for (int i = 0; i < length; i++) {
+            int cmp = Integer.compare(keys[from + i] & 0xFF, other[i] & 0xFF);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return Integer.compare(to - from, other.length);
+    }
+
+
+    private static class Change {
+
+        private final byte[] key;
+
+        private final long value;
+
+
+        Change(byte[] key, long value) {
+            this.key = key;
+            this.value = value;
+        }
+    }
+
+
+    /**
+     * The packed, sorted table. Never changed once published.
+     */
+    private static class Table {
+
+        private final byte[] keys;
+
+        private final int[] ends;
+
+        private final long[] values;
+
+
+        Table(byte[] keys, int[] ends, long[] values) {
+            this.keys = keys;
+            this.ends = ends;
+            this.values = values;
+        }
+
+
+        int size() {
+            return ends.length;
+        }
+
+
+        int start(int index) {
+            return index == 0 ? 0 : ends[index - 1];
+        }
+
+
+        String keyAt(int index) {
+            return new String(keys, start(index), ends[index] - start(index), StandardCharsets.UTF_8);
+        }
+
+
+        int indexOf(byte[] key) {
+            int low = 0;
+            int high = ends.length - 1;
+            while (low <= high) {
+                int middle = (low + high) >>> 1;
+                int cmp = compare(keys, start(middle), ends[middle], key);
+                if (cmp < 0) {
+                    low = middle + 1;
+                } else if (cmp > 0) {
+                    high = middle - 1;
+                } else {
+                    return middle;
+                }
+            }
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package uk.ac.ebi.chembl.storage.xml;
+
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.stream.Stream;
+
+
+/**
+ * Where the gzipped XML of each patent is kept in the local file system
+ *
+ * Implementations only move compressed bytes around: compressing and decoding
+ * the XML is done by the PatentXmlRepository.
+ */
+public interface PatentXmlStore extends Closeable {
+
+    /**
+     * Opens the gzipped XML of a patent
+     *
+     * Throws NoSuchFileException if the patent is not in the store.
+     */
+    InputStream open(String patentNumber) throws IOException;
+
+
+    /**
+     * Checks if a patent exists in the store
+     */
+    boolean exists(String patentNumber);
+
+
+    /**
+     * Stores the gzipped XML of a patent, replacing any previous version
+     */
+    void write(String patentNumber, byte[] gzippedXml) throws IOException;
+
+
+    /**
+     * Deletes a patent from the store, if it exists
+     */
+    void delete(String patentNumber) throws IOException;
+
+
+    /**
+     * Lists the numbers of all patents in the store
+     */
+    Stream<String> patentNumbers() throws IOException;
+}
@@ -0,0 +1,305 @@
+package uk.ac.ebi.chembl.storage.xml;
+
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.text.NumberFormat;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.stream.Stream;
+
+import static java.nio.file.StandardOpenOption.*;
+
+
+/**
+ * Packs the gzipped XML of many patents into a few large segment files
+ *
+ * Storing tens of millions of patents in their own files puts a lot of
+ * pressure on the file system, so this store appends them to segments of up
+ * to MAX_SEGMENT_SIZE bytes instead. Each segment has a sidecar index with
+ * one entry per write or delete:
+ *
+ *   segments/00000.seg: [int length][gzipped xml] [int length][gzipped xml] ...
+ *   segments/00000.idx: [short n][n bytes of patent number][long offset][int length] ...
+ *
+ * A delete is an index entry with a length of -1. The indexes are replayed in
+ * order on startup, so the last entry for a patent wins, and the resulting
+ * map from patent number to location is kept in memory, in a compact
+ * PatentNumberIndex. Reads are positional, so they don't need any locking.
+ * Writes are serialized.
+ *
+ * Data is always forced to disk before its index entry is written. Forcing
+ * the segment once per patent would be too slow, so the index entries are
+ * buffered and written in groups of COMMIT_GROUP_SIZE, right after forcing
+ * the segment, and when the store is closed. A crash, of the process or of
+ * the machine, can then at most leave some unreachable bytes at the end of a
+ * segment, a truncated index entry, which is discarded on the next startup,
+ * and lose the last group of index entries, whose patents are then just
+ * downloaded again.
+ */
+public class SegmentPatentXmlStore implements PatentXmlStore {
+
+    /** Directory, inside the patents' home, where the segments are kept */
+    public static final String SEGMENTS_DIR = "segments";
+
+    /** When a segment reaches this size, a new one is started */
+    private static final long MAX_SEGMENT_SIZE = 1L << 30;
+
+    private static final String SEGMENT_EXTENSION = ".seg";
+
+    private static final String INDEX_EXTENSION = ".idx";
+
+    /** Locations are packed into a long: the segment in the upper bits and the offset in the lower ones */
+    private static final int OFFSET_BITS = 40;
+
+    private static final long OFFSET_MASK = (1L << OFFSET_BITS) - 1;
+
+    private static final int DELETED = -1;
+
+    /** Index entries written after each forcing of the segment */
+    private static final int COMMIT_GROUP_SIZE = 1000;
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    /** Where the segments are */
+    private final Path directory;
+
+    /** Segment files, by segment number */
+    private final List<FileChannel> segments = new CopyOnWriteArrayList<>();
+
+    /** Index of the last segment, which is the one being appended to */
+    private FileChannel currentIndex;
+
+    /** Index entries waiting for their data to be forced to disk */
+    private final ByteArrayOutputStream pendingEntries = new ByteArrayOutputStream();
+
+    private int pendingCount = 0;
+
+    /** Patent number -> location of the patent in the segments */
+    private final PatentNumberIndex locations = new PatentNumberIndex();
+
+    private final NumberFormat nf = NumberFormat.getInstance();
+
+
+    public SegmentPatentXmlStore(String home) throws IOException {
+        this.directory = Paths.get(home, SEGMENTS_DIR);
+        Files.createDirectories(directory);
+
+        // Open all existing segments and replay their indexes
+        for (int segment = 0; Files.exists(segmentPath(segment)); segment++) {
+            segments.add(FileChannel.open(segmentPath(segment), READ, WRITE));
+            loadIndex(segment);
+        }
+
+        if (segments.isEmpty()) {
+            segments.add(FileChannel.open(segmentPath(0), READ, WRITE, CREATE));
+        }
+
+        currentIndex = FileChannel.open(indexPath(segments.size() - 1), WRITE, CREATE, APPEND);
+
+        logger.info("Opened {} segments in {} with {} patents", segments.size(), directory,
+                nf.format(locations.size()));
+    }
+
+
+    @Override
+    public InputStream open(String patentNumber) throws IOException {
+        long location = locations.get(patentNumber);
+        if (location == PatentNumberIndex.ABSENT) {
+            throw new NoSuchFileException(patentNumber);
+        }
+
+        FileChannel segment = segments.get((int) (location >>> OFFSET_BITS));
+        long offset = location & OFFSET_MASK;
+
+        ByteBuffer header = ByteBuffer.allocate(Integer.BYTES);
+        readFully(segment, header, offset);
+
+        ByteBuffer data = ByteBuffer.allocate(header.getInt(0));
+        readFully(segment, data, offset + Integer.BYTES);
+
+        return new ByteArrayInputStream(data.array());
+    }
+
+
+    @Override
+    public boolean exists(String patentNumber) {
+        return locations.contains(patentNumber);
+    }
+
+
+    @Override
+    public synchronized void write(String patentNumber, byte[] gzippedXml) throws IOException {
+        FileChannel segment = segments.get(segments.size() - 1);
+        if (segment.size() > 0 && segment.size() + Integer.BYTES + gzippedXml.length > MAX_SEGMENT_SIZE) {
+            segment = startNewSegment();
+        }
+
+        int segmentNumber = segments.size() - 1;
+        long offset = segment.size();
+
+        ByteBuffer record = ByteBuffer.allocate(Integer.BYTES + gzippedXml.length);
+        record.putInt(gzippedXml.length).put(gzippedXml).flip();
+        writeFully(segment, record, offset);
+
+        appendToIndex(patentNumber, offset, gzippedXml.length);
+        locations.put(patentNumber, ((long) segmentNumber << OFFSET_BITS) | offset);
+    }
+
+
+    @Override
+    public synchronized void delete(String patentNumber) throws IOException {
+        if (locations.remove(patentNumber)) {
+            appendToIndex(patentNumber, 0, DELETED);
+        }
+    }
+
+
+    @Override
+    public Stream<String> patentNumbers() {
+        return locations.patentNumbers();
+    }
+
+
+    @Override
+    public synchronized void close() throws IOException {
+        commit();
+        currentIndex.close();
+        for (FileChannel segment : segments) {
+            segment.close();
+        }
+    }
+
+
+    /**
+     * Replays the index of a segment into the map of locations
+     *
+     * A truncated entry at the end (from a crash while writing it) is
+     * discarded and the index is truncated right before it.
+     */
+    private void loadIndex(int segment) throws IOException {
+        Path path = indexPath(segment);
+        if (!Files.exists(path)) {
+            return;
+        }
+
+        ByteBuffer index = ByteBuffer.wrap(Files.readAllBytes(path));
+        int valid = 0;
+        try {
+            while (index.hasRemaining()) {
+                byte[] patentNumber = new byte[index.getShort()];
+                index.get(patentNumber);
+                long offset = index.getLong();
+                int length = index.getInt();
+
+                String key = new String(patentNumber, StandardCharsets.UTF_8);
+                if (length == DELETED) {
+                    locations.remove(key);
+                } else {
+                    locations.put(key, ((long) segment << OFFSET_BITS) | offset);
+                }
+
+                valid = index.position();
+            }
+        } catch (BufferUnderflowException ex) {
+            logger.warn("Discarding a truncated entry at the end of {}", path);
+            try (FileChannel channel = FileChannel.open(path, WRITE)) {
+                channel.truncate(valid);
+            }
+        }
+    }
+
+
+    private FileChannel startNewSegment() throws IOException {
+        // The pending entries belong to the index of the current segment
+        commit();
+
+        int segmentNumber = segments.size();
+        FileChannel segment = FileChannel.open(segmentPath(segmentNumber), READ, WRITE, CREATE);
+        segments.add(segment);
+
+        currentIndex.close();
+        currentIndex = FileChannel.open(indexPath(segmentNumber), WRITE, CREATE, APPEND);
+
+        logger.debug("Started segment {}", segmentPath(segmentNumber));
+        return segment;
+    }
+
+
+    /**
+     * Adds an entry to the index of the current segment, writing the pending
+     * ones if there are enough of them
+     */
+    private void appendToIndex(String patentNumber, long offset, int length) throws IOException {
+        byte[] bytes = patentNumber.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer entry = ByteBuffer.allocate(Short.BYTES + bytes.length + Long.BYTES + Integer.BYTES);
+        entry.putShort((short) bytes.length).put(bytes).putLong(offset).putInt(length);
+        pendingEntries.write(entry.array(), 0, entry.position());
+
+        if (++pendingCount >= COMMIT_GROUP_SIZE) {
+            commit();
+        }
+    }
+
+
+    /**
+     * Forces the current segment to disk and then writes the pending index
+     * entries
+     */
+    private void commit() throws IOException {
+        if (pendingCount == 0) {
+            return;
+        }
+
+        segments.get(segments.size() - 1).force(false);
+
+        ByteBuffer entries = ByteBuffer.wrap(pendingEntries.toByteArray());
+        while (entries.hasRemaining()) {
+            currentIndex.write(entries);
+        }
+
+        pendingEntries.reset();
+        pendingCount = 0;
+    }
+
+
+    private Path segmentPath(int segment) {
+        return directory.resolve(String.format("%05d", segment) + SEGMENT_EXTENSION);
+    }
+
+
+    private Path indexPath(int segment) {
+        return directory.resolve(String.format("%05d", segment) + INDEX_EXTENSION);
+    }
+
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, position + buffer.position());
+            if (n < 0) {
+                throw new EOFException("Unexpected end of segment");
+            }
+        }
+    }
+
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, position + buffer.position());
+        }
+    }
+}
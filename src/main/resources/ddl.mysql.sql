@@ -12,8 +12,10 @@ DROP TABLE IF EXISTS annotator;
 
 # An annotator
 CREATE TABLE annotator (
-  annotator_id  INT(11)     NOT NULL AUTO_INCREMENT,
-  name          VARCHAR(50) NOT NULL,
+  annotator_id    INT(11)     NOT NULL AUTO_INCREMENT,
+  name            VARCHAR(50) NOT NULL,
+  # SHA-256 of the dictionary persisted for the annotator (see DictionaryFingerprint)
+  dictionary_hash CHAR(64)    NULL,
   PRIMARY KEY (annotator_id),
   UNIQUE KEY unique_name (name)
 );
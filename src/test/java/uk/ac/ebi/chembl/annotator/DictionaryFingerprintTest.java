@@ -0,0 +1,72 @@
+package uk.ac.ebi.chembl.annotator;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+
+public class DictionaryFingerprintTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static final List<DictionaryEntry> ENTRIES = Arrays.asList(
+            new DictionaryEntry("CHEMICAL", "CHEMBL25"), new DictionaryEntry("HUMAN_GENE", "ENSP00000001"));
+
+
+    @Test
+    public void dependsOnTheEntriesAndTheirOrder() throws IOException {
+        String fingerprint = fingerprint(ENTRIES);
+
+        assertEquals(64, fingerprint.length());
+        assertEquals(fingerprint, fingerprint(ENTRIES));
+        assertNotEquals(fingerprint, fingerprint(Arrays.asList(ENTRIES.get(1), ENTRIES.get(0))));
+        assertNotEquals(fingerprint, fingerprint(Collections.singletonList(ENTRIES.get(0))));
+
+        // The delimiters keep the type and name apart
+        assertNotEquals(fingerprint(Collections.singletonList(new DictionaryEntry("AB", "C"))),
+                fingerprint(Collections.singletonList(new DictionaryEntry("A", "BC"))));
+    }
+
+
+    @Test
+    public void dependsOnTheNameFiles() throws IOException {
+        Path names = folder.newFile("names.tsv").toPath();
+        Path global = folder.newFile("global.tsv").toPath();
+        Files.write(names, Arrays.asList("1\taspirin", "2\tCOX1"), StandardCharsets.ISO_8859_1);
+        Files.write(global, Collections.singletonList("the"), StandardCharsets.ISO_8859_1);
+
+        String fingerprint = DictionaryFingerprint.of(ENTRIES.stream(), Arrays.asList(names, global));
+        assertNotEquals(fingerprint(ENTRIES), fingerprint);
+        assertEquals(fingerprint, DictionaryFingerprint.of(ENTRIES.stream(), Arrays.asList(names, global)));
+
+        // A new synonym changes it, even though the entities are the same
+        Files.write(names, Arrays.asList("1\taspirin", "1\tASA", "2\tCOX1"), StandardCharsets.ISO_8859_1);
+        assertNotEquals(fingerprint, DictionaryFingerprint.of(ENTRIES.stream(), Arrays.asList(names, global)));
+        String withSynonym = DictionaryFingerprint.of(ENTRIES.stream(), Arrays.asList(names, global));
+
+        // Moving a line from one file to the other too
+        Files.write(names, Arrays.asList("1\taspirin", "1\tASA"), StandardCharsets.ISO_8859_1);
+        Files.write(global, Arrays.asList("2\tCOX1", "the"), StandardCharsets.ISO_8859_1);
+        assertNotEquals(withSynonym, DictionaryFingerprint.of(ENTRIES.stream(), Arrays.asList(names, global)));
+    }
+
+
+    private static String fingerprint(List<DictionaryEntry> entries) throws IOException {
+        try (Stream<DictionaryEntry> stream = entries.stream()) {
+            return DictionaryFingerprint.of(stream, Collections.emptyList());
+        }
+    }
+}
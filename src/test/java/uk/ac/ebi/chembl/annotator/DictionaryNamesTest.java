@@ -0,0 +1,97 @@
+package uk.ac.ebi.chembl.annotator;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import uk.ac.ebi.chembl.model.AnnotatorMetadata;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+
+public class DictionaryNamesTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static final AnnotatorMetadata ANNOTATOR = new AnnotatorMetadata(1, "Tagger");
+
+    private static final DictionaryEntry ASPIRIN = new DictionaryEntry("CHEMICAL", "CHEMBL25");
+
+    private static final DictionaryEntry COX1 = new DictionaryEntry("HUMAN_GENE", "ENSP00000001");
+
+
+    @Test
+    public void findsTheNamesAddedToNewAndExistingEntities() throws IOException {
+        String home = folder.getRoot().getPath();
+        DictionaryNames.write(home, ANNOTATOR, "before", reader(
+                ASPIRIN, "aspirin",
+                COX1, "COX1"));
+
+        DictionaryNames kept = DictionaryNames.read(home, ANNOTATOR).get();
+        assertEquals("before", kept.getFingerprint());
+
+        Set<String> added = kept.addedNames(reader(
+                ASPIRIN, "aspirin",
+                ASPIRIN, "acetylsalicylic acid",
+                COX1, "COX1",
+                COX1, "PTGS1",
+                new DictionaryEntry("CHEMICAL", "CHEMBL26"), "aspirin",
+                new DictionaryEntry("HUMAN_GENE", "ENSP00000002"), "COX2"));
+
+        // An existing name, for another entity, is an added name too
+        assertEquals(new HashSet<>(Arrays.asList("acetylsalicylic acid", "PTGS1", "aspirin", "COX2")), added);
+    }
+
+
+    @Test
+    public void findsNothingWhenOnlyTheOrderOrTheRemovedNamesChanged() throws IOException {
+        String home = folder.getRoot().getPath();
+        DictionaryNames.write(home, ANNOTATOR, "before", reader(
+                ASPIRIN, "aspirin",
+                ASPIRIN, "ASA",
+                COX1, "COX1"));
+
+        assertEquals(Collections.emptySet(), DictionaryNames.read(home, ANNOTATOR).get().addedNames(reader(
+                COX1, "COX1",
+                ASPIRIN, "aspirin")));
+    }
+
+
+    @Test
+    public void areOnlyKeptWithASnapshotDirectory() throws IOException {
+        DictionaryNames.write("", ANNOTATOR, "before", reader(ASPIRIN, "aspirin"));
+        assertFalse(DictionaryNames.read("", ANNOTATOR).isPresent());
+
+        String home = folder.getRoot().getPath();
+        assertFalse(DictionaryNames.read(home, ANNOTATOR).isPresent());
+        DictionaryNames.write(home, ANNOTATOR, "before", reader(ASPIRIN, "aspirin"));
+        assertTrue(DictionaryNames.read(home, ANNOTATOR).isPresent());
+        assertFalse(DictionaryNames.read(home, new AnnotatorMetadata(2, "Other")).isPresent());
+    }
+
+
+    /**
+     * A reader of the given entity and name pairs
+     */
+    private static DictionaryReader reader(Object... entriesAndNames) {
+        return new DictionaryReader() {
+            @Override
+            public Stream<DictionaryEntry> read() {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public void forEachName(NameConsumer consumer) {
+                for (int i = 0; i < entriesAndNames.length; i += 2) {
+                    consumer.accept((DictionaryEntry) entriesAndNames[i], (String) entriesAndNames[i + 1]);
+                }
+            }
+        };
+    }
+}
@@ -0,0 +1,295 @@
+package uk.ac.ebi.chembl.annotator.ahocorasick;
+
+import org.junit.Test;
+import uk.ac.ebi.chembl.annotator.DictionarySnapshot;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.*;
+
+
+public class AhoCorasickAutomatonTest {
+
+    @Test
+    public void findsTheSameMatchesAsANaiveScan() {
+        Random random = new Random(42);
+
+        for (int round = 0; round < 300; round++) {
+            // A small alphabet, with separators, so that patterns overlap a lot
+            SortedSet<String> patternSet = new TreeSet<>();
+            int nPatterns = 1 + random.nextInt(30);
+            while (patternSet.size() < nPatterns) {
+                patternSet.add(randomText(random, "ab1é -", 1 + random.nextInt(6)).toLowerCase());
+            }
+            List<String> patterns = new ArrayList<>(patternSet);
+            AhoCorasickAutomaton automaton = AhoCorasickAutomaton.build(patterns);
+
+            for (int text = 0; text < 20; text++) {
+                String input = randomText(random, "aAbB1éÉ -,", random.nextInt(80));
+                assertEquals(input + " " + patterns, naiveMatch(patterns, input), matches(automaton, input));
+            }
+        }
+    }
+
+
+    @Test
+    public void numbersTheNodesBreadthFirst() throws IOException {
+        Layout layout = Layout.of(AhoCorasickAutomaton.build(sorted("he", "she", "his", "hers", "a b", "ab")));
+
+        for (int node = 1; node < layout.nodes(); node++) {
+            assertTrue("Nodes are sorted by depth", layout.depth[node - 1] <= layout.depth[node]);
+        }
+
+        for (int node = 0; node < layout.nodes(); node++) {
+            for (int child = layout.firstChild[node]; child < layout.firstChild[node + 1]; child++) {
+                assertEquals(layout.depth[node] + 1, layout.depth[child]);
+                if (child > layout.firstChild[node]) {
+                    assertTrue("Children are sorted by label", layout.labels[child - 1] < layout.labels[child]);
+                }
+            }
+        }
+
+        // The root and one node per distinct prefix
+        Set<String> prefixes = new HashSet<>();
+        for (String pattern : Layout.PATTERNS) {
+            for (int length = 1; length <= pattern.length(); length++) {
+                prefixes.add(pattern.substring(0, length));
+            }
+        }
+        assertEquals(prefixes.size() + 1, layout.nodes());
+    }
+
+
+    @Test
+    public void linksEachNodeToItsLongestSuffix() throws IOException {
+        Layout layout = Layout.of(AhoCorasickAutomaton.build(sorted(Layout.PATTERNS)));
+
+        String[] prefixes = layout.prefixes();
+        Map<String, Integer> nodes = new HashMap<>();
+        for (int node = 0; node < prefixes.length; node++) {
+            nodes.put(prefixes[node], node);
+        }
+
+        for (int node = 1; node < prefixes.length; node++) {
+            String prefix = prefixes[node];
+
+            int expectedFail = 0;
+            for (int start = 1; start < prefix.length(); start++) {
+                Integer suffix = nodes.get(prefix.substring(start));
+                if (suffix != null) {
+                    expectedFail = suffix;
+                    break;
+                }
+            }
+            assertEquals(prefix, expectedFail, layout.fail[node]);
+
+            int expectedOutput = 0;
+            for (int f = layout.fail[node]; f != 0; f = layout.fail[f]) {
+                if (layout.output[f] >= 0) {
+                    expectedOutput = f;
+                    break;
+                }
+            }
+            assertEquals(prefix, expectedOutput, layout.nextOutput[node]);
+        }
+    }
+
+
+    @Test
+    public void onlyMatchesWholeWords() {
+        AhoCorasickAutomaton automaton = AhoCorasickAutomaton.build(sorted("cat", "cat dog", "il-2"));
+
+        assertEquals(Arrays.asList("cat@14-17", "cat dog@20-27", "il-2@29-33"),
+                matches(automaton, "concatenate; (cat), Cat Dog, IL-2 IL-23 cats"));
+    }
+
+
+    @Test
+    public void keepsTheLeftmostLongestMatch() {
+        AhoCorasickAutomaton automaton = AhoCorasickAutomaton.build(sorted("a", "a b", "b c", "c", "b c d"));
+
+        // "a b" wins over "a" (longest) and over "b c" (leftmost), and then
+        // "c" is free again
+        assertEquals(Arrays.asList("a b@0-3", "c@4-5"), matches(automaton, "a b c"));
+        assertEquals(Arrays.asList("b c d@0-5"), matches(automaton, "b c d"));
+    }
+
+
+    @Test
+    public void readsBackWhatItWrites() throws IOException {
+        AhoCorasickAutomaton automaton = AhoCorasickAutomaton.build(sorted(Layout.PATTERNS));
+
+        byte[] bytes = write(automaton);
+        AhoCorasickAutomaton read = AhoCorasickAutomaton.readFrom(ByteBuffer.wrap(bytes));
+
+        assertEquals(automaton.size(), read.size());
+        assertEquals(automaton.nodes(), read.nodes());
+        assertArrayEquals(bytes, write(read));
+
+        String text = "She said his hers were ushers, he-he. A B, ab";
+        assertEquals(matches(automaton, text), matches(read, text));
+    }
+
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsInconsistentArrays() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(1);
+        DictionarySnapshot.writeChars(out, new char[2]);
+        for (int i = 0; i < 5; i++) {
+            DictionarySnapshot.writeInts(out, new int[3]);
+        }
+        out.flush();
+
+        AhoCorasickAutomaton.readFrom(ByteBuffer.wrap(bytes.toByteArray()));
+    }
+
+
+    /**
+     * Every whole-word occurrence of every pattern, overlaps resolved as
+     * leftmost-longest
+     */
+    private static List<String> naiveMatch(List<String> patterns, String text) {
+        String normalized = normalize(text);
+
+        List<int[]> candidates = new ArrayList<>();
+        for (int start = 0; start < text.length(); start++) {
+            for (int pattern = 0; pattern < patterns.size(); pattern++) {
+                int end = start + patterns.get(pattern).length();
+                if (normalized.startsWith(patterns.get(pattern), start)
+                        && isBoundary(text, start) && isBoundary(text, end)) {
+                    candidates.add(new int[]{pattern, start, end});
+                }
+            }
+        }
+
+        candidates.sort(Comparator.<int[]>comparingInt(c -> c[1]).thenComparing(c -> -c[2]));
+
+        List<String> matches = new ArrayList<>();
+        int lastEnd = 0;
+        for (int[] candidate : candidates) {
+            if (candidate[1] >= lastEnd) {
+                matches.add(format(patterns.get(candidate[0]), candidate[1], candidate[2]));
+                lastEnd = candidate[2];
+            }
+        }
+        return matches;
+    }
+
+
+    private static boolean isBoundary(String text, int index) {
+        return index == 0 || index == text.length()
+                || !Character.isLetterOrDigit(text.charAt(index - 1))
+                || !Character.isLetterOrDigit(text.charAt(index));
+    }
+
+
+    private static List<String> matches(AhoCorasickAutomaton automaton, String text) {
+        String normalized = normalize(text);
+        return automaton.match(text).stream()
+                .map(match -> format(normalized.substring(match.getStart(), match.getEnd()),
+                        match.getStart(), match.getEnd()))
+                .collect(Collectors.toList());
+    }
+
+
+    private static String format(String pattern, int start, int end) {
+        return pattern + "@" + start + "-" + end;
+    }
+
+
+    private static String normalize(String text) {
+        StringBuilder normalized = new StringBuilder(text.length());
+        for (int i = 0; i < text.length(); i++) {
+            normalized.append(AhoCorasickAutomaton.normalize(text.charAt(i)));
+        }
+        return normalized.toString();
+    }
+
+
+    private static String randomText(Random random, String alphabet, int length) {
+        StringBuilder text = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            text.append(alphabet.charAt(random.nextInt(alphabet.length())));
+        }
+        return text.toString();
+    }
+
+
+    private static List<String> sorted(String... patterns) {
+        return new ArrayList<>(new TreeSet<>(Arrays.asList(patterns)));
+    }
+
+
+    private static byte[] write(AhoCorasickAutomaton automaton) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            automaton.writeTo(out);
+        }
+        return bytes.toByteArray();
+    }
+
+
+    /**
+     * The arrays of an automaton, read from what it writes
+     */
+    private static class Layout {
+
+        static final String[] PATTERNS = {"he", "she", "his", "hers", "a b", "ab"};
+
+        int patterns;
+
+        char[] labels;
+
+        int[] firstChild;
+
+        int[] fail;
+
+        int[] output;
+
+        int[] nextOutput;
+
+        int[] depth;
+
+
+        static Layout of(AhoCorasickAutomaton automaton) throws IOException {
+            ByteBuffer buffer = ByteBuffer.wrap(write(automaton));
+
+            Layout layout = new Layout();
+            layout.patterns = buffer.getInt();
+            layout.labels = DictionarySnapshot.readChars(buffer);
+            layout.firstChild = DictionarySnapshot.readInts(buffer);
+            layout.fail = DictionarySnapshot.readInts(buffer);
+            layout.output = DictionarySnapshot.readInts(buffer);
+            layout.nextOutput = DictionarySnapshot.readInts(buffer);
+            layout.depth = DictionarySnapshot.readInts(buffer);
+            return layout;
+        }
+
+
+        int nodes() {
+            return depth.length;
+        }
+
+
+        /**
+         * The prefix spelled by each node
+         */
+        String[] prefixes() {
+            String[] prefixes = new String[nodes()];
+            prefixes[0] = "";
+            for (int node = 0; node < nodes(); node++) {
+                for (int child = firstChild[node]; child < firstChild[node + 1]; child++) {
+                    prefixes[child] = prefixes[node] + labels[child];
+                }
+            }
+            return prefixes;
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package uk.ac.ebi.chembl.annotator.ahocorasick;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import uk.ac.ebi.chembl.annotator.tagger.TaggerAnnotator;
+import uk.ac.ebi.chembl.model.Annotation;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.*;
+
+
+public class AhoCorasickDictionaryTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private String dictionariesHome;
+
+    private String snapshotHome;
+
+
+    @Before
+    public void writeDictionaries() throws IOException {
+        File dictionaries = folder.newFolder("dictionaries");
+        dictionariesHome = dictionaries.getPath();
+        snapshotHome = folder.newFolder("snapshots").getPath();
+
+        // 9606 is HUMAN_GENE and -1 is CHEMICAL
+        write(TaggerAnnotator.ENTITIES_TSV,
+                "1\t-1\tCHEMBL25",
+                "2\t9606\tENSP00000001",
+                "3\t-1\tCHEMBL26",
+                "4\t-1\tCHEMBL27");
+        write(TaggerAnnotator.NAMES_TSV,
+                "1\tAspirin",
+                "1\tacetylsalicylic acid",
+                "3\tASPIRIN",
+                "2\tCOX1",
+                "2\tthe",
+                "2\tcox1",
+                "4\tacid",
+                "5\tunknown entity",
+                "4\tsalt");
+        write(TaggerAnnotator.GLOBAL_TSV,
+                "the",
+                "salt\tf",
+                "acid\tt");
+    }
+
+
+    @Test
+    public void reportsEveryEntityOfAName() throws IOException {
+        AhoCorasickAnnotator annotator = new AhoCorasickAnnotator(AhoCorasickDictionary.compile(dictionariesHome));
+
+        assertEquals(Arrays.asList(
+                "CHEMICAL CHEMBL25 aspirin 0-7",
+                "CHEMICAL CHEMBL26 aspirin 0-7",
+                "HUMAN_GENE ENSP00000001 COX1 21-25"),
+                format(annotator.annotate("aspirin inhibits the COX1 enzyme")));
+    }
+
+
+    @Test
+    public void skipsTheBlockedNames() throws IOException {
+        AhoCorasickAnnotator annotator = new AhoCorasickAnnotator(AhoCorasickDictionary.compile(dictionariesHome));
+
+        // "acid" is blocked, but "salt" is explicitly allowed and the
+        // longer name containing "acid" is still found
+        assertEquals(Arrays.asList(
+                "CHEMICAL CHEMBL25 Acetylsalicylic acid 0-20",
+                "CHEMICAL CHEMBL27 salt 31-35"),
+                format(annotator.annotate("Acetylsalicylic acid, the acid salt")));
+    }
+
+
+    @Test
+    public void mergesTheNamesOfAnEntityThatOnlyDifferInCase() throws IOException {
+        AhoCorasickDictionary dictionary = AhoCorasickDictionary.compile(dictionariesHome);
+
+        // aspirin (2 entities), acetylsalicylic acid, cox1 and salt
+        assertEquals(4, dictionary.getAutomaton().size());
+        int cox1 = dictionary.getAutomaton().match("cox1").get(0).getPattern();
+        assertEquals(1, dictionary.lastEntity(cox1) - dictionary.firstEntity(cox1));
+    }
+
+
+    @Test
+    public void readsTheSnapshotInsteadOfCompilingAgain() throws IOException {
+        String text = "Aspirin, acetylsalicylic acid and COX1 in salt";
+        List<String> compiled = format(new AhoCorasickAnnotator(
+                AhoCorasickDictionary.load(dictionariesHome, snapshotHome)).annotate(text));
+
+        Path snapshot = new File(snapshotHome).toPath().resolve("aho-corasick.snapshot");
+        assertTrue(Files.exists(snapshot));
+        long written = Files.getLastModifiedTime(snapshot).toMillis();
+
+        List<String> read = format(new AhoCorasickAnnotator(
+                AhoCorasickDictionary.load(dictionariesHome, snapshotHome)).annotate(text));
+        assertEquals(compiled, read);
+        assertEquals(written, Files.getLastModifiedTime(snapshot).toMillis());
+
+        // Changing the dictionary compiles it again
+        write(TaggerAnnotator.NAMES_TSV, "2\tCOX1", "2\tin");
+        assertEquals(Arrays.asList("HUMAN_GENE ENSP00000001 COX1 34-38", "HUMAN_GENE ENSP00000001 in 39-41"),
+                format(new AhoCorasickAnnotator(
+                        AhoCorasickDictionary.load(dictionariesHome, snapshotHome)).annotate(text)));
+    }
+
+
+    private void write(String file, String... lines) throws IOException {
+        Files.write(new File(dictionariesHome, file).toPath(), Arrays.asList(lines), StandardCharsets.ISO_8859_1);
+    }
+
+
+    private static List<String> format(List<Annotation> annotations) {
+        return annotations.stream()
+                .map(a -> a.getType() + " " + a.getName() + " " + a.getTerm() + " " + a.getStart() + "-" + a.getEnd())
+                .collect(Collectors.toList());
+    }
+}
@@ -0,0 +1,120 @@
+package uk.ac.ebi.chembl.jobs;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import uk.ac.ebi.chembl.model.Dictionary;
+import uk.ac.ebi.chembl.model.Field;
+import uk.ac.ebi.chembl.model.PatentAnnotations;
+import uk.ac.ebi.chembl.model.PatentMetadata;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Path;
+import java.sql.Date;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+
+public class AnnotationSpillFileTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static final Dictionary DICTIONARY = Dictionary.builder(null)
+            .add(7, "CHEMICAL", "aspirin")
+            .add(8, "HUMAN_GENE", "COX1")
+            .build();
+
+
+    @Test
+    public void readsBackTheBatchesAsTheyWereAppended() throws IOException {
+        List<PatentMetadataAndAnnotations> first = Arrays.asList(
+                patent(1, "EP-1-A1", new Date(1_000_000L)),
+                patent(2, "EP-2-A1", null));
+        List<PatentMetadataAndAnnotations> second = Collections.singletonList(patent(3, "US-3-B2", null));
+
+        Path path = folder.getRoot().toPath().resolve("partition-0.spill");
+        try (AnnotationSpillFile spill = new AnnotationSpillFile(path)) {
+            spill.append(first);
+            spill.append(second);
+
+            assertSame(first, spill.next());
+        }
+
+        // Reopened, the batches are read from the start again
+        try (AnnotationSpillFile spill = new AnnotationSpillFile(path)) {
+            assertSame(first, spill.next());
+            assertSame(second, spill.next());
+            assertNull(spill.next());
+        }
+    }
+
+
+    @Test
+    public void ignoresABatchThatWasNotCompletelyAppended() throws IOException {
+        List<PatentMetadataAndAnnotations> batch = Collections.singletonList(patent(1, "EP-1-A1", null));
+
+        Path path = folder.getRoot().toPath().resolve("partition-1.spill");
+        try (AnnotationSpillFile spill = new AnnotationSpillFile(path)) {
+            spill.append(batch);
+            spill.append(batch);
+        }
+
+        try (RandomAccessFile file = new RandomAccessFile(path.toFile(), "rw")) {
+            file.setLength(file.length() - 1);
+        }
+
+        try (AnnotationSpillFile spill = new AnnotationSpillFile(path)) {
+            assertSame(batch, spill.next());
+            assertNull(spill.next());
+        }
+    }
+
+
+    private static PatentMetadataAndAnnotations patent(long id, String patentNumber, Date publicationDate) {
+        PatentAnnotations annotations = PatentAnnotations.builder(patentNumber, DICTIONARY)
+                .add(Field.TITLE, 0, "CHEMICAL", "aspirin", "Aspirin", 0, 7)
+                .add(Field.ABSTRACT, 0, "UNKNOWN", "nothing", "nothing", 3, 10)
+                .add(Field.ABSTRACT, 0, "HUMAN_GENE", "COX1", "cyclooxygenase 1", 12, 28)
+                .add(Field.CLAIMS, 2, "CHEMICAL", "aspirin", "Aspirin", 40, 47)
+                .build();
+
+        return new PatentMetadataAndAnnotations(new PatentMetadata(id, patentNumber, publicationDate), annotations);
+    }
+
+
+    private static void assertSame(List<PatentMetadataAndAnnotations> expected,
+                                   List<PatentMetadataAndAnnotations> actual) {
+        assertEquals(describe(expected), describe(actual));
+    }
+
+
+    private static List<String> describe(List<PatentMetadataAndAnnotations> batch) {
+        List<String> lines = new ArrayList<>();
+        for (PatentMetadataAndAnnotations patent : batch) {
+            PatentMetadata metadata = patent.getMetadata();
+            lines.add(metadata.getId() + " " + metadata.getPatentNumber() + " " + metadata.getPublicationDate());
+
+            PatentAnnotations annotations = patent.getAnnotations();
+            for (int entity = 0; entity < annotations.entityCount(); entity++) {
+                lines.add("entity " + entity + ": " + annotations.getEntityType(entity) + " " +
+                        annotations.getEntityName(entity) + " " + annotations.getBioEntityId(entity));
+            }
+            for (int term = 0; term < annotations.termCount(); term++) {
+                lines.add("term " + term + ": " + annotations.getTermAt(term));
+            }
+            for (int annotation = 0; annotation < annotations.size(); annotation++) {
+                lines.add(annotations.getField(annotation) + " " + annotations.getRank(annotation) + " " +
+                        annotations.getEntity(annotation) + " " + annotations.getTermIndex(annotation) + " " +
+                        annotations.getStart(annotation) + "-" + annotations.getEnd(annotation));
+            }
+        }
+        return lines;
+    }
+}
@@ -0,0 +1,90 @@
+package uk.ac.ebi.chembl.model;
+
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+
+public class DictionaryTest {
+
+    private static final String[] TYPES = {"CHEMICAL", "HUMAN_GENE", "DISEASE"};
+
+
+    @Test
+    public void findsEveryEntityThroughManyResizes() {
+        Dictionary.Builder builder = Dictionary.builder(null);
+        Map<String, Integer> expected = new HashMap<>();
+
+        // Well past the initial capacity of the builder, with names that
+        // need 1, 2 and 3 bytes per char in UTF-8
+        for (int id = 0; id < 50_000; id++) {
+            String type = TYPES[id % TYPES.length];
+            String name = "entity-" + id + (id % 7 == 0 ? "-β" : "") + (id % 11 == 0 ? "-阿司匹林" : "");
+            builder.add(id, type, name);
+            expected.put(type + "\t" + name, id);
+        }
+        Dictionary dictionary = builder.build();
+
+        assertEquals(expected.size(), dictionary.size());
+        for (Map.Entry<String, Integer> entry : expected.entrySet()) {
+            String[] key = entry.getKey().split("\t");
+            assertEquals(entry.getKey(), (long) entry.getValue(), dictionary.getBioEntityId(key[0], key[1]));
+        }
+
+        Map<String, Integer> visited = new HashMap<>();
+        dictionary.forEach((id, type, name) -> visited.put(type + "\t" + name, id));
+        assertEquals(expected, visited);
+    }
+
+
+    @Test
+    public void returnsUnknownForMissingEntities() {
+        Dictionary dictionary = Dictionary.builder(null)
+                .add(1, "CHEMICAL", "aspirin")
+                .add(2, "HUMAN_GENE", "COX1")
+                .build();
+
+        assertEquals(Dictionary.UNKNOWN, dictionary.getBioEntityId("CHEMICAL", "Aspirin"));
+        assertEquals(Dictionary.UNKNOWN, dictionary.getBioEntityId("CHEMICAL", "aspirin "));
+        assertEquals(Dictionary.UNKNOWN, dictionary.getBioEntityId("CHEMICAL", "aspiri"));
+        assertEquals(Dictionary.UNKNOWN, dictionary.getBioEntityId("HUMAN_GENE", "aspirin"));
+        assertEquals(Dictionary.UNKNOWN, dictionary.getBioEntityId("DISEASE", "aspirin"));
+        assertEquals(Dictionary.UNKNOWN, Dictionary.emptyDictionary().getBioEntityId("CHEMICAL", "aspirin"));
+
+        // Types are compared by value, not only by reference
+        assertEquals(1, dictionary.getBioEntityId(new String("CHEMICAL"), "aspirin"));
+    }
+
+
+    @Test
+    public void keepsTheLastIdOfADuplicateLikeAMap() {
+        Dictionary dictionary = Dictionary.builder(null)
+                .add(1, "CHEMICAL", "aspirin")
+                .add(2, "HUMAN_GENE", "aspirin")
+                .add(3, "CHEMICAL", "ibuprofen")
+                .add(4, "CHEMICAL", "aspirin")
+                .add(5, "CHEMICAL", "aspirin")
+                .build();
+
+        assertEquals(3, dictionary.size());
+        assertEquals(5, dictionary.getBioEntityId("CHEMICAL", "aspirin"));
+        assertEquals(2, dictionary.getBioEntityId("HUMAN_GENE", "aspirin"));
+        assertEquals(3, dictionary.getBioEntityId("CHEMICAL", "ibuprofen"));
+        assertEquals(Arrays.asList("ibuprofen", "aspirin"), dictionary.getNames("CHEMICAL"));
+
+        List<Integer> ids = new ArrayList<>();
+        dictionary.forEach((id, type, name) -> ids.add(id));
+        assertEquals(Arrays.asList(2, 3, 5), ids);
+    }
+
+
+    @Test
+    public void emptyDictionaryIsEmpty() {
+        assertTrue(Dictionary.emptyDictionary().isEmpty());
+        assertEquals(0, Dictionary.emptyDictionary().size());
+        assertEquals(Collections.emptyList(), Dictionary.emptyDictionary().getNames("CHEMICAL"));
+        assertFalse(Dictionary.builder(null).add(1, "CHEMICAL", "").build().isEmpty());
+    }
+}
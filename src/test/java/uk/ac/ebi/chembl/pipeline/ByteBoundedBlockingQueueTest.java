@@ -0,0 +1,123 @@
+package uk.ac.ebi.chembl.pipeline;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.*;
+
+import static org.junit.Assert.*;
+
+
+public class ByteBoundedBlockingQueueTest {
+
+    /** Items are strings whose size is their length */
+    private final ByteBoundedBlockingQueue<String> queue = new ByteBoundedBlockingQueue<>(10, String::length);
+
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+
+
+    @After
+    public void shutDown() {
+        executor.shutdownNow();
+    }
+
+
+    @Test
+    public void isBoundedByBytesRatherThanByItems() {
+        assertTrue(queue.offer("aaaa"));
+        assertTrue(queue.offer("bbbbbb"));
+        assertEquals(10, queue.bytes());
+        assertFalse(queue.offer("c"));
+
+        assertEquals("aaaa", queue.poll());
+        assertEquals(6, queue.bytes());
+        assertTrue(queue.offer("cccc"));
+        assertFalse(queue.offer("d"));
+        assertEquals(2, queue.size());
+    }
+
+
+    @Test
+    public void acceptsAnItemBiggerThanTheQueueWhenEmpty() {
+        assertTrue(queue.offer("a"));
+        assertFalse(queue.offer("aaaaaaaaaaaaaaaaaaaa"));
+
+        queue.poll();
+        assertTrue(queue.offer("aaaaaaaaaaaaaaaaaaaa"));
+        assertEquals(20, queue.bytes());
+        assertFalse(queue.offer("b"));
+    }
+
+
+    @Test(timeout = 10_000)
+    public void putBlocksUntilThereIsRoomForTheItem() throws Exception {
+        queue.put("aaaaaaaa");
+
+        Future<?> put = executor.submit(() -> {
+            queue.put("bbbb");
+            return null;
+        });
+
+        // Taking nothing leaves it blocked
+        try {
+            put.get(200, TimeUnit.MILLISECONDS);
+            fail("put() should have blocked");
+        } catch (TimeoutException expected) {
+            // Still waiting for 2 more bytes
+        }
+        assertEquals(1, queue.size());
+
+        assertEquals("aaaaaaaa", queue.take());
+        put.get(5, TimeUnit.SECONDS);
+        assertEquals("bbbb", queue.take());
+        assertEquals(0, queue.bytes());
+    }
+
+
+    @Test(timeout = 10_000)
+    public void takeBlocksUntilThereIsAnItem() throws Exception {
+        Future<String> take = executor.submit(queue::take);
+
+        try {
+            take.get(200, TimeUnit.MILLISECONDS);
+            fail("take() should have blocked");
+        } catch (TimeoutException expected) {
+            // The queue is empty
+        }
+
+        queue.put("a");
+        assertEquals("a", take.get(5, TimeUnit.SECONDS));
+    }
+
+
+    @Test(timeout = 10_000)
+    public void offerWithTimeoutGivesUpWhenFull() throws Exception {
+        queue.put("aaaaaaaaaa");
+
+        assertFalse(queue.offer("b", 50, TimeUnit.MILLISECONDS));
+        assertNull(new ByteBoundedBlockingQueue<String>(1, String::length).poll(50, TimeUnit.MILLISECONDS));
+    }
+
+
+    @Test
+    public void drainsInOrderAndReleasesTheBytes() {
+        queue.offer("a");
+        queue.offer("bb");
+        queue.offer("ccc");
+
+        List<String> drained = new ArrayList<>();
+        assertEquals(2, queue.drainTo(drained, 2));
+        assertEquals(Arrays.asList("a", "bb"), drained);
+        assertEquals(3, queue.bytes());
+        assertEquals("ccc", queue.peek());
+    }
+
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsANonPositiveBound() {
+        new ByteBoundedBlockingQueue<String>(0, String::length);
+    }
+}
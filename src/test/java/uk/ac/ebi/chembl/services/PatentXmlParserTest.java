@@ -0,0 +1,204 @@
+package uk.ac.ebi.chembl.services;
+
+import org.junit.Test;
+import uk.ac.ebi.chembl.model.PatentContent;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * Checks that the single-pass parser extracts exactly what the original
+ * regular expressions did
+ */
+public class PatentXmlParserTest {
+
+    /** Fixtures in src/test/resources/patents */
+    private static final String[] CORPUS = {
+            "EP-0923645-A1.xml", "US-8129291-B2.xml", "US-20160074186-A1.xml", "WO-2004000001-A1.xml"
+    };
+
+    /** Pieces the generated documents are made of */
+    private static final String[] FRAGMENTS = {
+            "<abstract lang=\"EN\">", "<abstract lang=\"DE\">", "<abstract>", "</abstract>",
+            "<description lang=\"EN\">", "<description lang=\"FR\">", "</description>",
+            "<description-of-drawings>", "</description-of-drawings>",
+            "<claims lang=\"EN\">", "<claims lang=\"ja\">", "</claims>", "<claim-text>", "</claim-text>",
+            "<invention-title lang=\"EN\">", "<invention-title lang=\"\">", "</invention-title>",
+            "<non-patent-citations>", "</non-patent-citations>",
+            " lang=\"EN\"", " lang=\"DE\"", " ucid=\"X-1\"", "<", ">", "</", "text ", "\n", "é", "lang", "<abstract"
+    };
+
+    private final PatentXmlParser parser = new PatentXmlParser();
+
+
+    @Test
+    public void extractsTheSameSectionsAsTheRegexesFromTheFixtures() throws IOException {
+        for (String name : CORPUS) {
+            String xml = read(name);
+            assertSameContent(name, RegexPatentXmlParser.parse(xml), parser.parse(xml));
+        }
+    }
+
+
+    @Test
+    public void extractsTheSameSectionsAsTheRegexesFromGeneratedDocuments() {
+        Random random = new Random(42);
+
+        for (int document = 0; document < 2000; document++) {
+            StringBuilder xml = new StringBuilder("<patent-document ucid=\"EP-" + document + "-A1\">");
+            int fragments = random.nextInt(60);
+            for (int i = 0; i < fragments; i++) {
+                xml.append(FRAGMENTS[random.nextInt(FRAGMENTS.length)]);
+            }
+
+            String text = xml.toString();
+            assertSameContent(text, RegexPatentXmlParser.parse(text), parser.parse(text));
+        }
+    }
+
+
+    @Test
+    public void parsesCharBuffersLikeStrings() throws IOException {
+        for (String name : CORPUS) {
+            String xml = read(name);
+
+            // Somewhere in the middle of a bigger array
+            char[] chars = ("garbage" + xml + "<abstract>more garbage</abstract>").toCharArray();
+            CharBuffer buffer = CharBuffer.wrap(chars, 7, xml.length()).slice();
+
+            assertSameContent(name, parser.parse(xml), parser.parse(buffer));
+        }
+    }
+
+
+    @Test
+    public void descriptionMatchesOnItsPrefix() throws IOException {
+        // Like "<description.*?</description>", <description-of-drawings>
+        // opens a description that ends at the next </description>
+        PatentContent content = parser.parse(read("US-8129291-B2.xml"));
+
+        assertEquals(1, content.getDescriptions().size());
+        assertTrue(content.getDescriptions().get(0).startsWith("<description-of-drawings"));
+        assertTrue(content.getDescriptions().get(0).endsWith("The real description.</p>\n  </description>"));
+    }
+
+
+    @Test
+    public void unclosedTagRunsUntilTheNextClosingTag() throws IOException {
+        PatentContent content = parser.parse(read("WO-2004000001-A1.xml"));
+
+        // The English abstract swallows the Chinese one, and the claims the
+        // description. The title is never closed, so it's not there
+        assertEquals(1, content.getAbstracts().size());
+        assertTrue(content.getAbstracts().get(0).contains("中文摘要"));
+        assertEquals(0, content.getClaims().size());
+        assertEquals(1, content.getDescriptions().size());
+        assertEquals(0, content.getTitles().size());
+    }
+
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsDocumentsWithoutUcid() throws IOException {
+        // The regexes would have returned whatever came after the 5th
+        // character of the document as the patent number
+        parser.parse(read("no-ucid.xml"));
+    }
+
+
+    private static void assertSameContent(String document, PatentContent expected, PatentContent actual) {
+        assertEquals(document, expected.getPatentNumber(), actual.getPatentNumber());
+        assertEquals(document, expected.getAbstracts(), actual.getAbstracts());
+        assertEquals(document, expected.getDescriptions(), actual.getDescriptions());
+        assertEquals(document, expected.getClaims(), actual.getClaims());
+        assertEquals(document, expected.getTitles(), actual.getTitles());
+        assertEquals(document, expected.getNonPatentCitations(), actual.getNonPatentCitations());
+        assertEquals(document, langs(expected), langs(actual));
+    }
+
+
+    /**
+     * The lang of each section, as the regexes extracted it
+     */
+    private static List<String> langs(PatentContent content) {
+        List<String> langs = new ArrayList<>();
+        for (List<String> sections : Arrays.asList(content.getAbstracts(), content.getDescriptions(),
+                content.getClaims(), content.getTitles(), content.getNonPatentCitations())) {
+            for (String section : sections) {
+                langs.add(RegexPatentXmlParser.extractLang(section));
+            }
+        }
+        return langs;
+    }
+
+
+    private static String read(String name) throws IOException {
+        try (InputStream in = PatentXmlParserTest.class.getResourceAsStream("/patents/" + name)) {
+            Scanner scanner = new Scanner(in, StandardCharsets.UTF_8.name()).useDelimiter("\\A");
+            return scanner.hasNext() ? scanner.next() : "";
+        }
+    }
+
+
+    /**
+     * The original parser, one regular expression per tag
+     */
+    private static class RegexPatentXmlParser {
+
+        private static final String[] TAGS = {
+                "abstract", "description", "claims", "invention-title", "non-patent-citations"
+        };
+
+
+        static PatentContent parse(String xml) {
+            List<List<String>> sections = new ArrayList<>();
+            for (String tag : TAGS) {
+                sections.add(extractInnerXml(tag, xml));
+            }
+
+            return new PatentContent(extractExternalId(xml), sections.get(0), sections.get(1), sections.get(2),
+                    sections.get(3), sections.get(4));
+        }
+
+
+        private static List<String> extractInnerXml(String tag, String xml) {
+            Matcher matcher = Pattern.compile("<" + tag + ".*?</" + tag + ">", Pattern.DOTALL).matcher(xml);
+
+            List<String> results = new ArrayList<>();
+            while (matcher.find()) {
+                String match = matcher.group(0);
+                String lang = extractLang(match);
+
+                // Any other language, expected or not, was dropped
+                if (lang == null || lang.equalsIgnoreCase("EN") || lang.equals("\">")) {
+                    results.add(match);
+                }
+            }
+
+            return results;
+        }
+
+
+        private static String extractExternalId(String xml) {
+            String UCID = "ucid=\"";
+            int index = xml.indexOf(UCID);
+            int endQuoteIndex = xml.indexOf("\"", index + UCID.length());
+            return xml.substring(index + UCID.length(), endQuoteIndex);
+        }
+
+
+        static String extractLang(String xml) {
+            String LANG = "lang=\"";
+            int index = xml.indexOf(LANG);
+            return index == -1 ? null : xml.substring(index + LANG.length(), index + LANG.length() + 2);
+        }
+    }
+}
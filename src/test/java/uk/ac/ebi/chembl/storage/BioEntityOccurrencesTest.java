@@ -0,0 +1,152 @@
+package uk.ac.ebi.chembl.storage;
+
+import org.junit.Test;
+import uk.ac.ebi.chembl.model.Dictionary;
+import uk.ac.ebi.chembl.model.Field;
+import uk.ac.ebi.chembl.model.PatentAnnotations;
+
+import java.util.*;
+
+import static org.junit.Assert.assertEquals;
+
+
+public class BioEntityOccurrencesTest {
+
+    private static final Field[] FIELDS = Field.values();
+
+    private static final String[] TERMS = {"aspirin", "Aspirin", "ASPIRIN", "aspirin ", "aspirin\t", "aspirins",
+            "ibuprofen", "Ibuprofen  ", "COX1", "cox1", "Éthanol", "éTHANOL", " aspirin", ""};
+
+    private final BioEntityOccurrences occurrences = new BioEntityOccurrences();
+
+
+    @Test
+    public void mergesTermsIgnoringCaseAndTrailingWhitespaceKeepingTheFirst() {
+        Dictionary dictionary = Dictionary.builder(null).add(7, "CHEMICAL", "aspirin").build();
+        PatentAnnotations patent = PatentAnnotations.builder("EP-1-A1", dictionary)
+                .add(Field.ABSTRACT, 0, "CHEMICAL", "aspirin", "Aspirin", 0, 7)
+                .add(Field.ABSTRACT, 0, "CHEMICAL", "aspirin", "aspirin ", 10, 18)
+                .add(Field.ABSTRACT, 0, "CHEMICAL", "aspirin", "ASPIRIN", 20, 27)
+                .add(Field.ABSTRACT, 0, "CHEMICAL", "aspirin", " aspirin", 30, 38)
+                .add(Field.CLAIMS, 1, "CHEMICAL", "aspirin", "aspirin", 0, 7)
+                .build();
+
+        count(100, patent);
+
+        assertEquals(Arrays.asList(
+                "100\t7\t3\tAspirin\t3",
+                "100\t7\t3\t aspirin\t1",
+                "100\t7\t2\taspirin\t1"), rows());
+    }
+
+
+    @Test
+    public void countsEachPatentSeparately() {
+        Dictionary dictionary = Dictionary.builder(null).add(7, "CHEMICAL", "aspirin").build();
+        PatentAnnotations first = PatentAnnotations.builder("EP-1-A1", dictionary)
+                .add(Field.TITLE, 0, "CHEMICAL", "aspirin", "aspirin", 0, 7)
+                .add(Field.TITLE, 0, "CHEMICAL", "aspirin", "Aspirin", 8, 15)
+                .build();
+        PatentAnnotations second = PatentAnnotations.builder("EP-2-A1", dictionary)
+                .add(Field.TITLE, 0, "CHEMICAL", "aspirin", "ASPIRIN", 0, 7)
+                .build();
+
+        count(1, first);
+        count(2, second);
+
+        assertEquals(Arrays.asList("1\t7\t4\taspirin\t2", "2\t7\t4\tASPIRIN\t1"), rows());
+    }
+
+
+    @Test
+    public void keepsUnknownEntitiesApartFromTheKnownOnes() {
+        Dictionary dictionary = Dictionary.builder(null).add(7, "CHEMICAL", "aspirin").build();
+        PatentAnnotations patent = PatentAnnotations.builder("EP-1-A1", dictionary)
+                .add(Field.CITATIONS, 0, "CHEMICAL", "aspirin", "aspirin", 0, 7)
+                .add(Field.CITATIONS, 0, "CHEMICAL", "unknown", "aspirin", 8, 15)
+                .add(Field.CITATIONS, 0, "CHEMICAL", "unknown", "Aspirin", 16, 23)
+                .build();
+
+        count(1, patent);
+
+        assertEquals(Arrays.asList("1\t7\t16\taspirin\t1", "1\t" + Dictionary.UNKNOWN + "\t16\taspirin\t2"), rows());
+    }
+
+
+    @Test
+    public void countsLikeAMapThroughManyResizes() {
+        Random random = new Random(42);
+        Dictionary.Builder entities = Dictionary.builder(null);
+        for (int entity = 0; entity < 200; entity++) {
+            entities.add(entity, "CHEMICAL", "entity-" + entity);
+        }
+        Dictionary dictionary = entities.build();
+
+        // Large patents, well past the initial capacity of the tables, between
+        // small ones that reuse them
+        Map<String, Integer> expected = new LinkedHashMap<>();
+        Map<String, String> firstRows = new HashMap<>();
+        for (int patentId = 0; patentId < 40; patentId++) {
+            int size = patentId % 4 == 0 ? 5000 + random.nextInt(5000) : random.nextInt(50);
+
+            PatentAnnotations.Builder builder = PatentAnnotations.builder("EP-" + patentId + "-A1", dictionary);
+            for (int annotation = 0; annotation < size; annotation++) {
+                // Some entities are not in the dictionary
+                int entity = random.nextInt(210);
+                Field field = FIELDS[random.nextInt(FIELDS.length)];
+                String term = TERMS[random.nextInt(TERMS.length)] + (random.nextBoolean() ? random.nextInt(300) : "");
+                builder.add(field, 0, "CHEMICAL", "entity-" + entity, term, 0, term.length());
+
+                int bioEntityId = entity < 200 ? entity : Dictionary.UNKNOWN;
+                String row = patentId + "\t" + bioEntityId + "\t" + field.id() + "\t";
+                String key = row + mysqlNormalized(term);
+                expected.merge(key, 1, Integer::sum);
+                firstRows.putIfAbsent(key, row + term);
+            }
+
+            count(patentId, builder.build());
+        }
+
+        List<String> expectedRows = new ArrayList<>();
+        for (Map.Entry<String, Integer> entry : expected.entrySet()) {
+            expectedRows.add(firstRows.get(entry.getKey()) + "\t" + entry.getValue());
+        }
+        assertEquals(expectedRows, rows());
+    }
+
+
+    private void count(long patentId, PatentAnnotations patent) {
+        occurrences.startPatent(patentId, patent);
+        for (int annotation = 0; annotation < patent.size(); annotation++) {
+            occurrences.count(annotation);
+        }
+    }
+
+
+    /**
+     * The rows, in the order they were first found
+     */
+    private List<String> rows() {
+        List<String> rows = new ArrayList<>();
+        for (int row = 0; row < occurrences.size(); row++) {
+            rows.add(occurrences.getPatentId(row) + "\t" + occurrences.getBioEntityId(row) + "\t" +
+                    occurrences.getFieldId(row) + "\t" + occurrences.getTerm(row) + "\t" +
+                    occurrences.getFrequency(row));
+        }
+        return rows;
+    }
+
+
+    private static String mysqlNormalized(String term) {
+        int length = term.length();
+        while (length > 0 && Character.isWhitespace(term.charAt(length - 1))) {
+            length--;
+        }
+
+        StringBuilder normalized = new StringBuilder();
+        for (int i = 0; i < length; i++) {
+            normalized.append(Character.toLowerCase(term.charAt(i)));
+        }
+        return normalized.toString();
+    }
+}
@@ -0,0 +1,61 @@
+package uk.ac.ebi.chembl.storage.xml;
+
+import org.junit.Test;
+
+import java.util.*;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+
+public class PatentNumberIndexTest {
+
+    @Test
+    public void behavesLikeAHashMapThroughManyMerges() {
+        PatentNumberIndex index = new PatentNumberIndex();
+        Map<String, Long> expected = new HashMap<>();
+        Random random = new Random(42);
+
+        for (int i = 0; i < 200_000; i++) {
+            String patentNumber = "EP-" + random.nextInt(50_000) + "-A1";
+            if (random.nextInt(4) == 0) {
+                assertEquals(expected.remove(patentNumber) != null, index.remove(patentNumber));
+            } else {
+                long value = random.nextInt(Integer.MAX_VALUE);
+                assertEquals(expected.put(patentNumber, value) == null, index.put(patentNumber, value));
+            }
+        }
+
+        assertEquals(expected.size(), index.size());
+        for (int i = 0; i < 50_000; i++) {
+            String patentNumber = "EP-" + i + "-A1";
+            Long value = expected.get(patentNumber);
+            assertEquals(value == null ? PatentNumberIndex.ABSENT : value, index.get(patentNumber));
+        }
+        assertEquals(new TreeSet<>(expected.keySet()), index.patentNumbers().collect(Collectors.toCollection(TreeSet::new)));
+    }
+
+
+    @Test
+    public void comparesNonAsciiPatentNumbersAsUtf8() {
+        PatentNumberIndex index = new PatentNumberIndex();
+        List<String> patentNumbers = Arrays.asList("EP-1-A1", "EP-é-A1", "EP-😀-A1", "EP-�-A1", "EP-");
+        for (int round = 0; round < 2; round++) {
+            for (int i = 0; i < 5000; i++) {
+                index.put("US-" + i, i);
+            }
+            for (String patentNumber : patentNumbers) {
+                index.put(patentNumber, patentNumber.length());
+            }
+        }
+
+        for (String patentNumber : patentNumbers) {
+            assertEquals(patentNumber.length(), index.get(patentNumber));
+        }
+        assertFalse(index.contains("EP-2-A1"));
+        assertTrue(index.remove("EP-é-A1"));
+        assertFalse(index.contains("EP-é-A1"));
+    }
+}